@@ -49,6 +49,8 @@ import com.phloc.commons.annotations.Nonempty;
 public class AS2Message extends AbstractMessage
 {
   public static final String PROTOCOL_AS2 = "as2";
+  // MIC of compressed data that was signed (RFC 5402), set when receiving
+  public static final String MA_COMPRESSED_MIC = "compressed_mic";
   public static final String DEFAULT_ID_FORMAT = "OPENAS2-$date.ddMMyyyyHHmmssZ$-$rand.1234$@$msg.sender.as2_id$_$msg.receiver.as2_id$";
 
   public final String getProtocol ()
@@ -39,8 +39,12 @@ public final class CPartnershipIDs
 {
   // AS2 ID
   public static final String PID_AS2 = "as2_id";
-  // URL destination for AS2 transactions
+  // URL destination for AS2 transactions. May be a list of URLs separated by
+  // commas or whitespace, each with an optional ";weight=n" suffix
   public static final String PA_AS2_URL = "as2_url";
+  // How one of several URLs is selected - "roundrobin" (default) or
+  // "leastoutstanding"
+  public static final String PA_AS2_URL_SELECTION = "as2_url_selection";
   // Fill in to request an MDN for a transaction
   public static final String PA_AS2_MDN_TO = "as2_mdn_to";
   // Requested options for returned MDN
@@ -50,6 +54,16 @@ public final class CPartnershipIDs
   // format to use for message-id if not default
   public static final String PA_MESSAGEID = "messageid";
 
+  // Maximum size in bytes of a message received from this partner
+  public static final String PA_MAX_CONTENT_LENGTH = "max_content_length";
+  // Limits for messages received from this partner
+  public static final String PA_MAX_CONCURRENT_MESSAGES = "max_concurrent_messages";
+  public static final String PA_MAX_MESSAGES_PER_SECOND = "max_messages_per_second";
+  public static final String PA_MAX_BYTES_PER_SECOND = "max_bytes_per_second";
+  // Bounds of the adaptive limit of concurrent messages sent to this partner
+  public static final String PA_MIN_CONCURRENT_SENDS = "min_concurrent_sends";
+  public static final String PA_MAX_CONCURRENT_SENDS = "max_concurrent_sends";
+
   // Subject sent in MDN messages
   public static final String PA_MDN_SUBJECT = "mdnsubject";
   /*
@@ -69,6 +83,14 @@ public final class CPartnershipIDs
   public static final String PA_ENCRYPT = "encrypt";
   // Set this to the signature digest algorithm to sign sent messages
   public static final String PA_SIGN = "sign";
+  // Set this to the compression algorithm (RFC 5402) to compress sent
+  // messages. Only "zlib" is supported
+  public static final String PA_COMPRESSION_TYPE = "compression";
+  // Whether the data is compressed before or after signing. Defaults to
+  // COMPRESS_BEFORE_SIGNING
+  public static final String PA_COMPRESSION_MODE = "compression_mode";
+  public static final String COMPRESS_BEFORE_SIGNING = "compress-before-signing";
+  public static final String COMPRESS_AFTER_SIGNING = "compress-after-signing";
 
   private CPartnershipIDs ()
   {}
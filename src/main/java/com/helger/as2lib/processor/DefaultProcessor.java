@@ -35,22 +35,30 @@ package com.helger.as2lib.processor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.helger.as2lib.exception.NoModuleException;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.ProcessorException;
 import com.helger.as2lib.message.IMessage;
 import com.helger.as2lib.processor.module.IProcessorActiveModule;
 import com.helger.as2lib.processor.module.IProcessorModule;
+import com.helger.as2lib.processor.receiver.IProcessorReceiverModule;
 import com.phloc.commons.ValueEnforcer;
 import com.phloc.commons.annotations.ReturnsMutableCopy;
 import com.phloc.commons.collections.ContainerHelper;
+import com.phloc.commons.concurrent.ExtendedDefaultThreadFactory;
 
 public class DefaultProcessor extends AbstractProcessor
 {
+  private static final Logger s_aLogger = LoggerFactory.getLogger (DefaultProcessor.class);
+
   private final List <IProcessorModule> m_aModules = new ArrayList <IProcessorModule> ();
 
   public final void addModule (@Nonnull final IProcessorModule aModule)
@@ -117,16 +125,64 @@ public class DefaultProcessor extends AbstractProcessor
       }
   }
 
+  /**
+   * Stop all active modules. The receiver modules are stopped first so that
+   * the messages in flight can still be processed - e.g. sending asynchronous
+   * MDNs. Afterwards all other active modules are stopped. Within each group
+   * the modules are stopped in parallel, so that the total shutdown time is
+   * the time of the slowest module and not the sum of all.
+   */
   public void stopActiveModules ()
   {
+    final List <IProcessorActiveModule> aReceivers = new ArrayList <IProcessorActiveModule> ();
+    final List <IProcessorActiveModule> aOthers = new ArrayList <IProcessorActiveModule> ();
     for (final IProcessorActiveModule aModule : getAllActiveModules ())
-      try
-      {
-        aModule.stop ();
-      }
-      catch (final OpenAS2Exception ex)
+      if (aModule instanceof IProcessorReceiverModule)
+        aReceivers.add (aModule);
+      else
+        aOthers.add (aModule);
+
+    _stopInParallel (aReceivers);
+    _stopInParallel (aOthers);
+  }
+
+  private static void _stopInParallel (@Nonnull final List <IProcessorActiveModule> aModules)
+  {
+    final ThreadFactory aThreadFactory = new ExtendedDefaultThreadFactory ("stop");
+    final List <Thread> aThreads = new ArrayList <Thread> ();
+    for (final IProcessorActiveModule aModule : aModules)
+    {
+      final Thread aThread = aThreadFactory.newThread (new Runnable ()
       {
-        ex.terminate ();
-      }
+        public void run ()
+        {
+          try
+          {
+            aModule.stop ();
+          }
+          catch (final OpenAS2Exception ex)
+          {
+            ex.terminate ();
+          }
+          catch (final RuntimeException ex)
+          {
+            // Would otherwise only end up on stderr
+            s_aLogger.error ("Failed to stop module " + aModule.getName (), ex);
+          }
+        }
+      });
+      aThread.start ();
+      aThreads.add (aThread);
+    }
+
+    try
+    {
+      for (final Thread aThread : aThreads)
+        aThread.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
   }
 }
@@ -40,6 +40,14 @@ import com.helger.as2lib.partner.CPartnershipIDs;
 import com.helger.as2lib.processor.receiver.net.AS2ReceiverHandler;
 import com.helger.as2lib.processor.receiver.net.INetModuleHandler;
 
+/**
+ * Receives AS2 messages via HTTP. Each message is read, decrypted, verified
+ * and stored on a connection worker thread of {@link AbstractNetModule}.
+ * Asynchronous MDNs are queued and sent by the
+ * {@link com.helger.as2lib.processor.sender.AsynchMDNSenderModule}.
+ *
+ * @author Philip Helger
+ */
 public class AS2ReceiverModule extends AbstractNetModule
 {
   // Macros for responses
@@ -78,6 +86,7 @@ public class AS2ReceiverModule extends AbstractNetModule
   public static final String DISP_PARSING_MIME_FAILED = DP_HEADER +
                                                         "but an error occured while parsing the MIME content.";
   public static final String DISP_DECRYPTION_ERROR = DP_HEADER + "but an error occured decrypting the content.";
+  public static final String DISP_DECOMPRESSION_ERROR = DP_HEADER + "but an error occured decompressing the content.";
   public static final String DISP_VERIFY_SIGNATURE_FAILED = DP_DECRYPTED +
                                                             "Authentication of the originator of the message failed.";
   public static final String DISP_STORAGE_FAILED = DP_VERIFIED +
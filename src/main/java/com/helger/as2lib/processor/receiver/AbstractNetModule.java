@@ -35,27 +35,63 @@ package com.helger.as2lib.processor.receiver;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.io.OutputStream;
 import java.net.Socket;
-
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509KeyManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.as2lib.ISession;
+import com.helger.as2lib.cert.ICertificateFactory;
+import com.helger.as2lib.cert.PKCS12CertificateFactory;
 import com.helger.as2lib.exception.InvalidMessageException;
+import com.helger.as2lib.exception.InvalidParameterException;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
 import com.helger.as2lib.message.IMessage;
 import com.helger.as2lib.params.CompositeParameters;
 import com.helger.as2lib.params.DateParameters;
 import com.helger.as2lib.params.MessageParameters;
+import com.helger.as2lib.processor.receiver.net.AbstractListenerThread;
+import com.helger.as2lib.processor.receiver.net.AdmissionController;
+import com.helger.as2lib.processor.receiver.net.ConnectionHandler;
+import com.helger.as2lib.processor.receiver.net.ConnectionSocket;
 import com.helger.as2lib.processor.receiver.net.INetModuleHandler;
+import com.helger.as2lib.processor.receiver.net.MainThread;
+import com.helger.as2lib.processor.receiver.net.NetModuleMetrics;
+import com.helger.as2lib.processor.receiver.net.SelectorThread;
+import com.helger.as2lib.util.HTTPUtil;
 import com.helger.as2lib.util.IOUtil;
 import com.helger.as2lib.util.IStringMap;
+import com.helger.as2lib.util.SpoolOutputStream;
+import com.helger.as2lib.util.ThreadUtil;
+import com.helger.as2lib.util.cert.FixedAliasKeyManager;
+import com.phloc.commons.CGlobal;
+import com.phloc.commons.annotations.ReturnsMutableCopy;
+import com.phloc.commons.concurrent.ExtendedDefaultThreadFactory;
 import com.phloc.commons.io.file.FilenameHelper;
 
 public abstract class AbstractNetModule extends AbstractReceiverModule
@@ -65,198 +101,841 @@ public abstract class AbstractNetModule extends AbstractReceiverModule
   public static final String PARAM_ERROR_DIRECTORY = "errordir";
   public static final String PARAM_ERRORS = "errors";
   public static final String DEFAULT_ERRORS = "$date.yyyyMMddhhmmss$";
-
-  private MainThread m_aMainThread;
+  // Maximum number of connections handled in parallel
+  public static final String PARAM_MAX_THREADS = "maxthreads";
+  public static final int DEFAULT_MAX_THREADS = 50;
+  // Maximum number of accepted connections waiting for a free thread
+  public static final String PARAM_QUEUE_SIZE = "queuesize";
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+  // Retry-After value in seconds sent when all threads and the queue are busy
+  public static final String PARAM_RETRY_AFTER = "retryafter";
+  public static final int DEFAULT_RETRY_AFTER = 60;
+  // How connections are accepted: "blocking" or "nio"
+  public static final String PARAM_ACCEPTOR = "acceptor";
+  public static final String ACCEPTOR_BLOCKING = "blocking";
+  public static final String ACCEPTOR_NIO = "nio";
+  public static final String DEFAULT_ACCEPTOR = ACCEPTOR_BLOCKING;
+  // Number of accepting threads
+  public static final String PARAM_ACCEPTORS = "acceptors";
+  public static final int DEFAULT_ACCEPTORS = 1;
+  // Bind a separate socket per accepting thread with SO_REUSEPORT if supported
+  public static final String PARAM_REUSE_PORT = "reuseport";
+  public static final boolean DEFAULT_REUSE_PORT = true;
+  // Maximum size of request line and headers in bytes in "nio" acceptor mode
+  public static final String PARAM_MAX_HEADER_SIZE = "maxheadersize";
+  public static final int DEFAULT_MAX_HEADER_SIZE = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  // Kind of worker threads: "platform" or "virtual" (requires Java 21)
+  public static final String PARAM_THREAD_MODE = "threadmode";
+  public static final String THREAD_MODE_PLATFORM = "platform";
+  public static final String THREAD_MODE_VIRTUAL = "virtual";
+  public static final String DEFAULT_THREAD_MODE = THREAD_MODE_PLATFORM;
+
+  // Message bodies larger than this are written to a temporary file
+  public static final String PARAM_SPOOL_THRESHOLD = "spoolthreshold";
+  public static final long DEFAULT_SPOOL_THRESHOLD = CGlobal.BYTES_PER_MEGABYTE;
+
+  // Directory for temporary files - defaults to java.io.tmpdir
+  public static final String PARAM_SPOOL_DIRECTORY = "spooldir";
+
+  // Allow persistent HTTP connections
+  public static final String PARAM_KEEP_ALIVE = "keepalive";
+  public static final boolean DEFAULT_KEEP_ALIVE = true;
+
+  // Milliseconds to wait for the next request on a persistent connection
+  public static final String PARAM_KEEP_ALIVE_TIMEOUT = "keepalivetimeout";
+  public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+
+  // Maximum number of requests per connection
+  public static final String PARAM_MAX_KEEP_ALIVE_REQUESTS = "maxkeepaliverequests";
+  public static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+
+  // Milliseconds a read may block - 0 means infinite
+  public static final String PARAM_READ_TIMEOUT = "readtimeout";
+  public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+  // Milliseconds to receive the request line and all headers - 0 means
+  // unlimited
+  public static final String PARAM_HEADER_TIMEOUT = "headertimeout";
+  public static final int DEFAULT_HEADER_TIMEOUT = 30000;
+
+  // Minimum average bytes per second while receiving the data - 0 means
+  // unlimited
+  public static final String PARAM_MIN_DATA_RATE = "mindatarate";
+  public static final int DEFAULT_MIN_DATA_RATE = 0;
+
+  // Milliseconds before the data rate is checked first
+  public static final String PARAM_MIN_DATA_RATE_GRACE = "mindatarategrace";
+  public static final int DEFAULT_MIN_DATA_RATE_GRACE = 10000;
+
+  // Milliseconds to wait for in-flight messages on stop
+  public static final String PARAM_SHUTDOWN_TIMEOUT = "shutdowntimeout";
+  public static final int DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+
+  // Limits per source IP address - 0 means unlimited
+  public static final String PARAM_MAX_CONNECTIONS_PER_IP = "maxconnectionsperip";
+  public static final String PARAM_MAX_MESSAGES_PER_SECOND_PER_IP = "maxmessagespersecondperip";
+  public static final String PARAM_MAX_BYTES_PER_SECOND_PER_IP = "maxbytespersecondperip";
+
+  // Accept TLS connections - the key is taken from the PKCS12 certificate
+  // factory of the session
+  public static final String PARAM_SSL = "ssl";
+  public static final boolean DEFAULT_SSL = false;
+
+  // Alias of the server key - required if the key store contains several keys
+  public static final String PARAM_SSL_KEY_ALIAS = "sslkeyalias";
+
+  public static final String PARAM_SSL_PROTOCOL = "sslprotocol";
+  public static final String DEFAULT_SSL_PROTOCOL = "TLS";
+
+  // Number of cached TLS sessions for abbreviated handshakes
+  public static final String PARAM_SSL_SESSION_CACHE_SIZE = "sslsessioncachesize";
+  public static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 1000;
+
+  // Seconds a cached TLS session may be resumed
+  public static final String PARAM_SSL_SESSION_TIMEOUT = "sslsessiontimeout";
+  public static final int DEFAULT_SSL_SESSION_TIMEOUT = 24 * 60 * 60;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AbstractNetModule.class);
+
+  private final List <AbstractListenerThread> m_aListenerThreads = new CopyOnWriteArrayList <AbstractListenerThread> ();
+  private volatile ThreadPoolExecutor m_aExecutor;
+  private final Set <ConnectionSocket> m_aActiveConnections = Collections.newSetFromMap (new IdentityHashMap <ConnectionSocket, Boolean> ());
+  private AdmissionController m_aAdmissionController;
+  private final NetModuleMetrics m_aMetrics = new NetModuleMetrics ();
 
   @Override
   public void doStart () throws OpenAS2Exception
   {
+    final int nMaxThreads = Math.max (1, getAttributeAsInt (PARAM_MAX_THREADS, DEFAULT_MAX_THREADS));
+    final int nQueueSize = Math.max (1, getAttributeAsInt (PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+    m_aExecutor = new ThreadPoolExecutor (nMaxThreads,
+                                          nMaxThreads,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue <Runnable> (nQueueSize),
+                                          createThreadFactory ());
+    // Don't keep idle threads around forever
+    m_aExecutor.allowCoreThreadTimeOut (true);
+    m_aAdmissionController = new AdmissionController (getAttributeAsInt (PARAM_MAX_CONNECTIONS_PER_IP, 0),
+                                                      getAttributeAsDouble (PARAM_MAX_MESSAGES_PER_SECOND_PER_IP, 0),
+                                                      getAttributeAsDouble (PARAM_MAX_BYTES_PER_SECOND_PER_IP, 0));
+
     try
     {
-      m_aMainThread = new MainThread (this, getAttributeAsString (PARAM_ADDRESS), getAttributeAsInt (PARAM_PORT, 0));
-      m_aMainThread.start ();
+      final String sAddress = getAttributeAsString (PARAM_ADDRESS);
+      final int nPort = getAttributeAsInt (PARAM_PORT, 0);
+      final String sAcceptor = getAttributeAsString (PARAM_ACCEPTOR, DEFAULT_ACCEPTOR);
+      final boolean bSSL = getAttributeAsBoolean (PARAM_SSL, DEFAULT_SSL);
+      final int nAcceptors = Math.max (1, getAttributeAsInt (PARAM_ACCEPTORS, DEFAULT_ACCEPTORS));
+      final boolean bReusePort = nAcceptors > 1 && getAttributeAsBoolean (PARAM_REUSE_PORT, DEFAULT_REUSE_PORT);
+      if (ACCEPTOR_NIO.equalsIgnoreCase (sAcceptor))
+      {
+        // The selector reads the headers before the TLS handshake
+        if (bSSL)
+          throw new InvalidParameterException ("TLS is only supported with the blocking acceptor",
+                                               this,
+                                               PARAM_ACCEPTOR,
+                                               sAcceptor);
+        final int nMaxHeaderSize = getAttributeAsInt (PARAM_MAX_HEADER_SIZE, DEFAULT_MAX_HEADER_SIZE);
+        final int nHeaderTimeoutMS = getAttributeAsInt (PARAM_HEADER_TIMEOUT, DEFAULT_HEADER_TIMEOUT);
+        final SelectorThread aFirst = new SelectorThread (this,
+                                                          sAddress,
+                                                          nPort,
+                                                          nMaxHeaderSize,
+                                                          nHeaderTimeoutMS,
+                                                          bReusePort);
+        m_aListenerThreads.add (aFirst);
+        // Without SO_REUSEPORT all selectors accept from the same channel
+        final int nBoundPort = aFirst.getServerChannel ().socket ().getLocalPort ();
+        for (int i = 1; i < nAcceptors; ++i)
+          m_aListenerThreads.add (aFirst.isReusePort () ? new SelectorThread (this,
+                                                                              sAddress,
+                                                                              nBoundPort,
+                                                                              nMaxHeaderSize,
+                                                                              nHeaderTimeoutMS,
+                                                                              true)
+                                                        : new SelectorThread (this,
+                                                                              aFirst.getServerChannel (),
+                                                                              nMaxHeaderSize,
+                                                                              nHeaderTimeoutMS));
+      }
+      else
+        if (ACCEPTOR_BLOCKING.equalsIgnoreCase (sAcceptor))
+        {
+          final ServerSocketFactory aFactory = bSSL ? createSSLContext ().getServerSocketFactory ()
+                                                    : ServerSocketFactory.getDefault ();
+          final MainThread aFirst = new MainThread (this, aFactory, sAddress, nPort, bReusePort);
+          m_aListenerThreads.add (aFirst);
+          // Without SO_REUSEPORT all threads accept from the same socket
+          final int nBoundPort = aFirst.getSocket ().getLocalPort ();
+          for (int i = 1; i < nAcceptors; ++i)
+            m_aListenerThreads.add (aFirst.isReusePort () ? new MainThread (this, aFactory, sAddress, nBoundPort, true)
+                                                          : new MainThread (this, aFirst.getSocket ()));
+        }
+        else
+          throw new InvalidParameterException ("Unsupported acceptor", this, PARAM_ACCEPTOR, sAcceptor);
+      if (nAcceptors > 1)
+        s_aLogger.info (getName () +
+                        " accepts with " +
+                        nAcceptors +
+                        " threads " +
+                        (m_aListenerThreads.get (0).isReusePort () ? "on separate sockets with SO_REUSEPORT"
+                                                                   : "on a shared socket"));
+      for (final AbstractListenerThread aListener : m_aListenerThreads)
+        aListener.start ();
     }
     catch (final IOException ioe)
     {
+      _terminateListeners ();
+      m_aExecutor.shutdown ();
+      m_aExecutor = null;
       throw new WrappedException (ioe);
     }
   }
 
+  private void _terminateListeners ()
+  {
+    // Flag all threads before any socket is closed, because the threads may
+    // share one socket
+    for (final AbstractListenerThread aListener : m_aListenerThreads)
+      aListener.terminate ();
+    for (final AbstractListenerThread aListener : m_aListenerThreads)
+      aListener.unblock ();
+    m_aListenerThreads.clear ();
+  }
+
+  /**
+   * @return The executor, which is reset, so that concurrent stops don't shut
+   *         it down twice. May be <code>null</code> if already stopped.
+   */
+  @Nullable
+  private synchronized ThreadPoolExecutor _takeExecutor ()
+  {
+    final ThreadPoolExecutor ret = m_aExecutor;
+    m_aExecutor = null;
+    return ret;
+  }
+
+  /**
+   * Stop accepting new connections and wait until the messages in flight are
+   * handled completely. Idle persistent connections are closed right away.
+   * Connections still active after {@link #PARAM_SHUTDOWN_TIMEOUT} are closed
+   * forcibly.
+   */
   @Override
   public void doStop () throws OpenAS2Exception
   {
-    if (m_aMainThread != null)
+    _terminateListeners ();
+    final ThreadPoolExecutor aExecutor = _takeExecutor ();
+    if (aExecutor != null)
     {
-      m_aMainThread.terminate ();
-      m_aMainThread = null;
+      // Already accepted connections are still handled
+      aExecutor.shutdown ();
+
+      final long nDeadline = System.currentTimeMillis () +
+                             getAttributeAsInt (PARAM_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT);
+      try
+      {
+        while (true)
+        {
+          // A handler may become idle at any time
+          _closeIdleConnections ();
+          final long nRemaining = nDeadline - System.currentTimeMillis ();
+          if (nRemaining <= 0)
+            break;
+          if (aExecutor.awaitTermination (Math.min (nRemaining, 100), TimeUnit.MILLISECONDS))
+            break;
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+
+      if (!aExecutor.isTerminated ())
+      {
+        final List <Runnable> aQueued = aExecutor.shutdownNow ();
+        final int nAborted = _closeAllConnections ();
+        s_aLogger.warn ("Module " +
+                        getName () +
+                        " did not finish within the shutdown timeout - aborted " +
+                        nAborted +
+                        " active and " +
+                        aQueued.size () +
+                        " queued connections");
+      }
     }
   }
 
-  @Override
-  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aOptions) throws OpenAS2Exception
+  private void _closeIdleConnections ()
   {
-    super.initDynamicComponent (aSession, aOptions);
-
-    // Ensure port parameter is present
-    getParameterRequired (PARAM_PORT);
+    synchronized (m_aActiveConnections)
+    {
+      for (final ConnectionSocket aConnSocket : m_aActiveConnections)
+        aConnSocket.closeIfIdle ();
+    }
   }
 
-  protected abstract INetModuleHandler getHandler ();
+  private int _closeAllConnections ()
+  {
+    synchronized (m_aActiveConnections)
+    {
+      for (final ConnectionSocket aConnSocket : m_aActiveConnections)
+        try
+        {
+          aConnSocket.close ();
+        }
+        catch (final IOException ex)
+        {
+          // Ignore - we're shutting down
+        }
+      return m_aActiveConnections.size ();
+    }
+  }
 
-  public void handleError (final IMessage aMsg, final OpenAS2Exception aSrcEx)
+  /**
+   * Create the TLS context for <code>ssl=true</code>. The key material is read
+   * from the {@link PKCS12CertificateFactory} of the session. The server
+   * session cache allows returning partners to resume their TLS session with
+   * an abbreviated handshake. Stateless session tickets are used in addition
+   * if the JDK supports them - they can only be configured globally via the
+   * system property <code>jdk.tls.server.enableSessionTicketExtension</code>.
+   *
+   * @return The initialized context. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         If no PKCS12 certificate factory is configured or the context
+   *         cannot be initialized
+   */
+  @Nonnull
+  protected SSLContext createSSLContext () throws OpenAS2Exception
   {
-    aSrcEx.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
-    aSrcEx.terminate ();
+    final ICertificateFactory aCertFactory = getSession ().getCertificateFactory ();
+    if (!(aCertFactory instanceof PKCS12CertificateFactory))
+      throw new OpenAS2Exception ("TLS requires a PKCS12 certificate factory but found " + aCertFactory);
+    final PKCS12CertificateFactory aPKCS12Factory = (PKCS12CertificateFactory) aCertFactory;
 
     try
     {
-      final CompositeParameters aParams = new CompositeParameters (false).add ("date", new DateParameters ())
-                                                                         .add ("msg", new MessageParameters (aMsg));
-
-      final String sName = aParams.format (getAttributeAsString (PARAM_ERRORS, DEFAULT_ERRORS));
-      final String sDirectory = getParameterRequired (PARAM_ERROR_DIRECTORY);
+      final KeyManagerFactory aKMF = KeyManagerFactory.getInstance (KeyManagerFactory.getDefaultAlgorithm ());
+      aKMF.init (aPKCS12Factory.getKeyStore (), aPKCS12Factory.getPassword ());
+      KeyManager [] aKeyManagers = aKMF.getKeyManagers ();
 
-      final File aMsgFile = IOUtil.getUniqueFile (IOUtil.getDirectoryFile (sDirectory),
-                                                  FilenameHelper.getAsSecureValidFilename (sName));
-      final String sMsgText = aMsg.toString ();
-      final FileOutputStream aFOS = new FileOutputStream (aMsgFile);
+      final String sKeyAlias = getAttributeAsString (PARAM_SSL_KEY_ALIAS);
+      if (sKeyAlias != null)
+      {
+        final List <KeyManager> aFixed = new ArrayList <KeyManager> ();
+        for (final KeyManager aKeyManager : aKeyManagers)
+          if (aKeyManager instanceof X509KeyManager)
+            aFixed.add (new FixedAliasKeyManager ((X509KeyManager) aKeyManager, sKeyAlias));
+        aKeyManagers = aFixed.toArray (new KeyManager [aFixed.size ()]);
+      }
 
-      aFOS.write (sMsgText.getBytes ());
-      aFOS.close ();
+      final SSLContext aSSLContext = SSLContext.getInstance (getAttributeAsString (PARAM_SSL_PROTOCOL,
+                                                                                   DEFAULT_SSL_PROTOCOL));
+      aSSLContext.init (aKeyManagers, null, null);
 
-      // make sure an error of this event is logged
-      final InvalidMessageException im = new InvalidMessageException ("Stored invalid message to " +
-                                                                      aMsgFile.getAbsolutePath ());
-      im.terminate ();
+      final SSLSessionContext aSessionContext = aSSLContext.getServerSessionContext ();
+      aSessionContext.setSessionCacheSize (getAttributeAsInt (PARAM_SSL_SESSION_CACHE_SIZE,
+                                                              DEFAULT_SSL_SESSION_CACHE_SIZE));
+      aSessionContext.setSessionTimeout (getAttributeAsInt (PARAM_SSL_SESSION_TIMEOUT, DEFAULT_SSL_SESSION_TIMEOUT));
+      return aSSLContext;
     }
-    catch (final OpenAS2Exception ex)
+    catch (final GeneralSecurityException ex)
     {
-      ex.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
-      ex.terminate ();
+      throw new WrappedException (ex);
     }
-    catch (final IOException ex)
+  }
+
+  /**
+   * Create the factory for the worker threads. With
+   * <code>threadmode=virtual</code> each connection is handled on a virtual
+   * thread, so <code>maxthreads</code> can be set to a much higher value.
+   *
+   * @return The thread factory to use. Never <code>null</code>.
+   * @throws OpenAS2Exception
+   *         In case the thread mode is invalid
+   */
+  @Nonnull
+  protected ThreadFactory createThreadFactory () throws OpenAS2Exception
+  {
+    final String sThreadMode = getAttributeAsString (PARAM_THREAD_MODE, DEFAULT_THREAD_MODE);
+    if (THREAD_MODE_VIRTUAL.equalsIgnoreCase (sThreadMode))
     {
-      final WrappedException we = new WrappedException (ex);
-      we.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
-      we.terminate ();
+      final ThreadFactory aFactory = ThreadUtil.createVirtualThreadFactory (getName () + "-");
+      if (aFactory != null)
+        return aFactory;
+      s_aLogger.warn ("Virtual threads are not supported by this Java runtime - using platform threads");
     }
+    else
+      if (!THREAD_MODE_PLATFORM.equalsIgnoreCase (sThreadMode))
+        throw new InvalidParameterException ("Unsupported thread mode", this, PARAM_THREAD_MODE, sThreadMode);
+    return new ExtendedDefaultThreadFactory (getName ());
   }
 
-  protected static final class ConnectionThread extends Thread
+  /**
+   * Create a new output stream that receives the content of an incoming
+   * message. Small messages are kept in memory, larger ones are written to a
+   * temporary file.
+   *
+   * @return A new spool output stream. Never <code>null</code>. The caller is
+   *         responsible for disposing it.
+   */
+  @Nonnull
+  public SpoolOutputStream createSpoolOutputStream ()
   {
-    private final AbstractNetModule m_aOwner;
-    private final Socket m_aSocket;
+    final String sSpoolDir = getAttributeAsString (PARAM_SPOOL_DIRECTORY);
+    return new SpoolOutputStream (getAttributeAsLong (PARAM_SPOOL_THRESHOLD, DEFAULT_SPOOL_THRESHOLD),
+                                  sSpoolDir == null ? null : IOUtil.getDirectoryFile (sSpoolDir));
+  }
 
-    public ConnectionThread (final AbstractNetModule aOwner, final Socket aSocket)
+  /**
+   * Check if the connection may be kept open after the response to the passed
+   * message. This is the case if the client requested it, keep-alive is
+   * enabled, the per-connection request limit is not reached and no other
+   * connections of the blocking acceptor are waiting for a worker thread.
+   *
+   * @param aSocket
+   *        The socket the message was received on. May not be
+   *        <code>null</code>.
+   * @param aMsg
+   *        The received message. May not be <code>null</code>.
+   * @return <code>true</code> if the response should announce a persistent
+   *         connection.
+   */
+  public boolean isKeepAlive (@Nonnull final Socket aSocket, @Nonnull final IMessage aMsg)
+  {
+    if (!(aSocket instanceof ConnectionSocket))
+      return false;
+    if (!getAttributeAsBoolean (PARAM_KEEP_ALIVE, DEFAULT_KEEP_ALIVE))
+      return false;
+    if (((ConnectionSocket) aSocket).getRequestCount () >= getAttributeAsInt (PARAM_MAX_KEEP_ALIVE_REQUESTS,
+                                                                               DEFAULT_MAX_KEEP_ALIVE_REQUESTS))
+      return false;
+
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    if (aExecutor == null || aExecutor.isShutdown ())
+      return false;
+    // Idle connections of the blocking acceptor occupy a worker - don't keep
+    // them if others are waiting. The non-blocking acceptor takes them back.
+    if (aSocket.getChannel () == null && !aExecutor.getQueue ().isEmpty ())
+      return false;
+
+    return HTTPUtil.isKeepAliveRequested (aMsg);
+  }
+
+  /**
+   * Called by a handler after the headers of a request were read and before
+   * the data is read. Removes the header deadline and enforces the minimum
+   * data rate instead.
+   *
+   * @param aSocket
+   *        The socket the request is read from. May not be <code>null</code>.
+   */
+  public void startDataPhase (@Nonnull final Socket aSocket)
+  {
+    if (aSocket instanceof ConnectionSocket)
     {
-      super ();
-      m_aOwner = aOwner;
-      m_aSocket = aSocket;
-      start ();
+      final ConnectionSocket aConnSocket = (ConnectionSocket) aSocket;
+      aConnSocket.setReadDeadline (0);
+      aConnSocket.setMinimumDataRate (getAttributeAsInt (PARAM_MIN_DATA_RATE, DEFAULT_MIN_DATA_RATE),
+                                      getAttributeAsInt (PARAM_MIN_DATA_RATE_GRACE, DEFAULT_MIN_DATA_RATE_GRACE));
     }
+  }
 
-    public AbstractNetModule getOwner ()
+  /**
+   * Mark the connection as reusable after a response announcing a persistent
+   * connection was sent completely.
+   *
+   * @param aSocket
+   *        The socket to mark. May not be <code>null</code>.
+   */
+  public void setReusable (@Nonnull final Socket aSocket)
+  {
+    if (aSocket instanceof ConnectionSocket)
+      ((ConnectionSocket) aSocket).setReusable (true);
+  }
+
+  /**
+   * Hand an accepted connection over to the worker pool. If all workers are
+   * busy and the queue is full, the connection is answered with
+   * <code>503 Service Unavailable</code> and closed immediately.
+   *
+   * @param aSocket
+   *        The accepted socket. May not be <code>null</code>.
+   */
+  public void dispatchConnection (@Nonnull final Socket aSocket)
+  {
+    dispatchConnection (aSocket, null);
+  }
+
+  /**
+   * Hand an accepted connection over to the worker pool. If all workers are
+   * busy and the queue is full, the connection is answered with
+   * <code>503 Service Unavailable</code> and closed immediately.
+   *
+   * @param aSocket
+   *        The accepted socket. May not be <code>null</code>.
+   * @param aSelectorThread
+   *        The selector thread that read the headers of the connection. Idle
+   *        persistent connections are handed back to it while waiting for the
+   *        next request. May be <code>null</code>.
+   */
+  public void dispatchConnection (@Nonnull final Socket aSocket, @Nullable final SelectorThread aSelectorThread)
+  {
+    AdmissionController.Permit aPermit = null;
+    final AdmissionController aAdmissionController = m_aAdmissionController;
+    if (aAdmissionController != null)
     {
-      return m_aOwner;
+      aPermit = aAdmissionController.admitConnection (aSocket.getInetAddress ().toString ());
+      if (aPermit == null)
+      {
+        s_aLogger.warn ("Rejecting connection from " +
+                        aSocket.getInetAddress ().getHostAddress () +
+                        " - too many connections from this address");
+        _rejectConnection (aSocket);
+        return;
+      }
     }
 
-    public Socket getSocket ()
+    _execute (new ConnectionHandler (this, getHandler (), aSocket, aPermit, aSelectorThread));
+  }
+
+  /**
+   * Hand a persistent connection over to the worker pool again, once the
+   * selector thread received the headers of its next request.
+   *
+   * @param aConnSocket
+   *        The connection. May not be <code>null</code>.
+   * @param aPermit
+   *        The admission permit the connection was dispatched with. May be
+   *        <code>null</code>.
+   * @param aSelectorThread
+   *        The selector thread the connection is handed back to while idle.
+   *        May not be <code>null</code>.
+   */
+  public void redispatchConnection (@Nonnull final ConnectionSocket aConnSocket,
+                                    @Nullable final AdmissionController.Permit aPermit,
+                                    @Nonnull final SelectorThread aSelectorThread)
+  {
+    _execute (new ConnectionHandler (this, getHandler (), aConnSocket, aPermit, aSelectorThread));
+  }
+
+  private void _execute (@Nonnull final ConnectionHandler aHandler)
+  {
+    final Socket aSocket = aHandler.getSocket ();
+    final AdmissionController.Permit aPermit = aHandler.getPermit ();
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    try
     {
-      return m_aSocket;
+      if (aExecutor == null)
+        throw new RejectedExecutionException ("Module is not running");
+      aExecutor.execute (aHandler);
     }
-
-    @Override
-    public void run ()
+    catch (final RejectedExecutionException ex)
     {
-      final Socket s = getSocket ();
-
-      getOwner ().getHandler ().handle (getOwner (), s);
+      if (aPermit != null)
+        aPermit.release ();
+      m_aMetrics.onRejected ();
+      s_aLogger.warn ("Rejecting connection from " +
+                      aSocket.getInetAddress ().getHostAddress () +
+                      " - all " +
+                      getMaxPoolSize () +
+                      " threads and " +
+                      getQueuedConnectionCount () +
+                      " queue slots are in use");
+      _rejectConnection (aSocket);
+    }
+  }
 
+  private void _rejectConnection (@Nonnull final Socket aSocket)
+  {
+    try
+    {
+      // Writing to a TLS socket would start the handshake in this thread
+      if (aSocket instanceof SSLSocket)
+        return;
+      // Don't let a slow client block the accepting thread
+      aSocket.setSoLinger (false, 0);
+      final OutputStream aOS = aSocket.getOutputStream ();
+      HTTPUtil.sendServiceUnavailable (aOS, getAttributeAsInt (PARAM_RETRY_AFTER, DEFAULT_RETRY_AFTER));
+      aOS.flush ();
+    }
+    catch (final IOException ex)
+    {
+      // Client is gone already
+    }
+    finally
+    {
       try
       {
-        s.close ();
+        aSocket.close ();
       }
       catch (final IOException ex)
       {
-        new WrappedException (ex).terminate ();
+        // ignore
       }
     }
   }
 
-  protected static final class MainThread extends Thread
+  /**
+   * Called by the {@link ConnectionHandler} while it handles a connection, so
+   * that idle connections can be closed on shutdown.
+   *
+   * @param aConnSocket
+   *        The connection. May not be <code>null</code>.
+   */
+  public void addActiveConnection (@Nonnull final ConnectionSocket aConnSocket)
   {
-    private static final Logger s_aLogger = LoggerFactory.getLogger (MainThread.class);
-
-    private final AbstractNetModule m_aOwner;
-    private final ServerSocket m_aSocket;
-    private boolean m_bTerminated;
-
-    public MainThread (final AbstractNetModule aOwner, final String sAddress, final int nPort) throws IOException
+    synchronized (m_aActiveConnections)
     {
-      super ();
-      m_aOwner = aOwner;
-      m_aSocket = new ServerSocket ();
-      if (sAddress != null)
-        m_aSocket.bind (new InetSocketAddress (sAddress, nPort));
-      else
-        m_aSocket.bind (new InetSocketAddress (nPort));
+      m_aActiveConnections.add (aConnSocket);
     }
+  }
 
-    public AbstractNetModule getOwner ()
+  /**
+   * Called by the {@link ConnectionHandler} once it no longer handles the
+   * connection.
+   *
+   * @param aConnSocket
+   *        The connection. May not be <code>null</code>.
+   */
+  public void removeActiveConnection (@Nonnull final ConnectionSocket aConnSocket)
+  {
+    synchronized (m_aActiveConnections)
     {
-      return m_aOwner;
+      m_aActiveConnections.remove (aConnSocket);
     }
+  }
 
-    public ServerSocket getSocket ()
-    {
-      return m_aSocket;
-    }
+  /**
+   * @return The connection statistics of this module. Never <code>null</code>.
+   */
+  @Nonnull
+  public NetModuleMetrics getMetrics ()
+  {
+    return m_aMetrics;
+  }
 
-    public void setTerminated (final boolean bTerminated)
-    {
-      m_bTerminated = bTerminated;
-      if (m_aSocket != null)
-      {
-        try
-        {
-          m_aSocket.close ();
-        }
-        catch (final IOException ex)
-        {
-          m_aOwner.forceStop (ex);
-        }
-      }
-    }
+  /**
+   * @return The maximum number of connections handled in parallel.
+   */
+  @Nonnegative
+  public int getMaxPoolSize ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getMaximumPoolSize ();
+  }
 
-    public boolean isTerminated ()
-    {
-      return m_bTerminated;
-    }
+  /**
+   * @return The number of worker threads currently alive.
+   */
+  @Nonnegative
+  public int getPoolSize ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getPoolSize ();
+  }
+
+  /**
+   * @return The highest number of worker threads that were alive at the same
+   *         time.
+   */
+  @Nonnegative
+  public int getLargestPoolSize ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getLargestPoolSize ();
+  }
+
+  /**
+   * @return The number of connections currently being handled.
+   */
+  @Nonnegative
+  public int getActiveConnectionCount ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getActiveCount ();
+  }
+
+  /**
+   * @return The number of accepted connections waiting for a worker thread.
+   */
+  @Nonnegative
+  public int getQueuedConnectionCount ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The number of connections that were completely handled since the
+   *         module was started.
+   */
+  @Nonnegative
+  public long getCompletedConnectionCount ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getCompletedTaskCount ();
+  }
+
+  /**
+   * @return The number of connections rejected with 503 because the pool was
+   *         saturated.
+   */
+  @Nonnegative
+  public long getRejectedConnectionCount ()
+  {
+    return m_aMetrics.getRejectedCount ();
+  }
 
-    @Override
-    public void run ()
+  /**
+   * @return The total number of accepted connections.
+   */
+  @Nonnegative
+  public long getAcceptedConnectionCount ()
+  {
+    return m_aMetrics.getAcceptedCount ();
+  }
+
+  /**
+   * @return The number of connections accepted in the last complete second.
+   */
+  @Nonnegative
+  public long getAcceptRate ()
+  {
+    return m_aMetrics.getAcceptRate ();
+  }
+
+  /**
+   * @return The highest number of connections accepted in a single second.
+   */
+  @Nonnegative
+  public long getPeakAcceptRate ()
+  {
+    return m_aMetrics.getPeakAcceptRate ();
+  }
+
+  /**
+   * @return The number of accepted connections per accepting thread, to check
+   *         how evenly the connections are spread.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public List <Long> getAcceptedConnectionCountPerAcceptor ()
+  {
+    final List <Long> ret = new ArrayList <Long> ();
+    for (final AbstractListenerThread aListener : m_aListenerThreads)
+      ret.add (Long.valueOf (aListener.getAcceptedCount ()));
+    return ret;
+  }
+
+  /**
+   * @return The number of connections aborted because the client was too slow
+   *         - read timeout, header deadline or minimum data rate.
+   */
+  @Nonnegative
+  public long getTimedOutConnectionCount ()
+  {
+    return m_aMetrics.getTimedOutCount ();
+  }
+
+  /**
+   * @return The admission controller that limits the load per source IP
+   *         address and partner. Only available after the module was started.
+   */
+  @Nullable
+  public AdmissionController getAdmissionController ()
+  {
+    return m_aAdmissionController;
+  }
+
+  /**
+   * @return The number of connections and messages rejected because a per
+   *         source IP address or per partner limit was exceeded.
+   */
+  @Nonnegative
+  public long getAdmissionRejectedCount ()
+  {
+    final AdmissionController aAdmissionController = m_aAdmissionController;
+    return aAdmissionController == null ? 0 : aAdmissionController.getRejectedCount ();
+  }
+
+  /**
+   * @return The number of successful TLS handshakes since the module was
+   *         created.
+   */
+  @Nonnegative
+  public long getSSLHandshakeCount ()
+  {
+    return m_aMetrics.getSSLHandshakeCount ();
+  }
+
+  /**
+   * @return The number of TLS handshakes that resumed a cached session since
+   *         the module was created.
+   */
+  @Nonnegative
+  public long getSSLResumedHandshakeCount ()
+  {
+    return m_aMetrics.getSSLResumedHandshakeCount ();
+  }
+
+  /**
+   * @return The ratio of resumed TLS handshakes to all TLS handshakes between
+   *         0 and 1.
+   */
+  public double getSSLResumptionRatio ()
+  {
+    return m_aMetrics.getSSLResumptionRatio ();
+  }
+
+  @Override
+  public void initDynamicComponent (@Nonnull final ISession aSession, @Nullable final IStringMap aOptions) throws OpenAS2Exception
+  {
+    super.initDynamicComponent (aSession, aOptions);
+
+    // Ensure port parameter is present
+    getParameterRequired (PARAM_PORT);
+  }
+
+  protected abstract INetModuleHandler getHandler ();
+
+  public void handleError (final IMessage aMsg, final OpenAS2Exception aSrcEx)
+  {
+    aSrcEx.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
+    aSrcEx.terminate ();
+
+    try
     {
-      while (!isTerminated ())
-      {
-        try
-        {
-          final Socket aConn = m_aSocket.accept ();
-          aConn.setSoLinger (true, 60);
-          new ConnectionThread (getOwner (), aConn);
-        }
-        catch (final IOException ex)
-        {
-          if (!isTerminated ())
-            m_aOwner.forceStop (ex);
-        }
-      }
+      final CompositeParameters aParams = new CompositeParameters (false).add ("date", new DateParameters ())
+                                                                         .add ("msg", new MessageParameters (aMsg));
 
-      s_aLogger.info ("exited");
-    }
+      final String sName = aParams.format (getAttributeAsString (PARAM_ERRORS, DEFAULT_ERRORS));
+      final String sDirectory = getParameterRequired (PARAM_ERROR_DIRECTORY);
+
+      final File aMsgFile = IOUtil.getUniqueFile (IOUtil.getDirectoryFile (sDirectory),
+                                                  FilenameHelper.getAsSecureValidFilename (sName));
+      final String sMsgText = aMsg.toString ();
+      final FileOutputStream aFOS = new FileOutputStream (aMsgFile);
+
+      aFOS.write (sMsgText.getBytes ());
+      aFOS.close ();
 
-    public void terminate ()
+      // make sure an error of this event is logged
+      final InvalidMessageException im = new InvalidMessageException ("Stored invalid message to " +
+                                                                      aMsgFile.getAbsolutePath ());
+      im.terminate ();
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      ex.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
+      ex.terminate ();
+    }
+    catch (final IOException ex)
     {
-      setTerminated (true);
+      final WrappedException we = new WrappedException (ex);
+      we.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
+      we.terminate ();
     }
   }
 }
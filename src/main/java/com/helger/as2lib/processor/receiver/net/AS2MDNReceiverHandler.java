@@ -41,10 +41,12 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.security.cert.X509Certificate;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.InternetHeaders;
@@ -69,7 +71,7 @@ import com.helger.as2lib.util.AS2Util;
 import com.helger.as2lib.util.CAS2Header;
 import com.helger.as2lib.util.DispositionType;
 import com.helger.as2lib.util.HTTPUtil;
-import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.helger.as2lib.util.SpoolOutputStream;
 import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
 import com.phloc.commons.io.streams.StreamUtils;
 import com.phloc.commons.string.StringParser;
@@ -102,12 +104,19 @@ public class AS2MDNReceiverHandler implements INetModuleHandler
 
     final AS2Message aMsg = new AS2Message ();
 
-    byte [] aData = null;
+    // Small messages are kept in memory, large ones are spooled to disk
+    final SpoolOutputStream aData = aOwner.createSpoolOutputStream ();
 
     // Read in the message request, headers, and data
     try
     {
-      aData = HTTPUtil.readData (aSocket, aMsg);
+      final InputStream aIS = StreamUtils.getBuffered (aSocket.getInputStream ());
+      HTTPUtil.readHeaders (aIS, aMsg);
+      if (HTTPUtil.isContinueExpected (aMsg))
+        HTTPUtil.sendContinue (aSocket.getOutputStream ());
+      aOwner.startDataPhase (aSocket);
+      HTTPUtil.readBody (aIS, aSocket.getOutputStream (), aMsg, aData);
+      aData.close ();
       // Asynch MDN 2007-03-12
       // check if the requested URL is defined in attribute "as2_receipt_option"
       // in one of partnerships, if yes, then process incoming AsyncMDN
@@ -117,35 +126,40 @@ public class AS2MDNReceiverHandler implements INetModuleHandler
                       "]" +
                       aMsg.getLoggingText ());
 
-      final MimeBodyPart aReceivedPart = new MimeBodyPart (aMsg.getHeaders (), aData);
-      aMsg.setData (aReceivedPart);
-      ContentType aReceivedContentType = new ContentType (aReceivedPart.getContentType ());
-
-      aReceivedContentType = new ContentType (aMsg.getHeader (CAS2Header.HEADER_CONTENT_TYPE));
+      final ContentType aReceivedContentType = new ContentType (aMsg.getHeader (CAS2Header.HEADER_CONTENT_TYPE));
+      final DataSource aDataSource = aData.getAsDataSource (aReceivedContentType.toString ());
 
-      // MimeBodyPart receivedPart = new MimeBodyPart();
-      aReceivedPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aData,
-                                                                              aReceivedContentType.toString (),
-                                                                              null)));
+      final MimeBodyPart aReceivedPart = new MimeBodyPart ();
+      aReceivedPart.setDataHandler (new DataHandler (aDataSource));
       aReceivedPart.setHeader (CAS2Header.HEADER_CONTENT_TYPE, aReceivedContentType.toString ());
 
       aMsg.setData (aReceivedPart);
 
-      receiveMDN (aMsg, aData, aSocket.getOutputStream ());
+      final boolean bKeepAlive = aOwner.isKeepAlive (aSocket, aMsg);
+      receiveMDN (aMsg, aDataSource, aSocket.getOutputStream (), bKeepAlive);
+      if (bKeepAlive)
+        aOwner.setReusable (aSocket);
     }
     catch (final Exception ex)
     {
       final NetException ne = new NetException (aSocket.getInetAddress (), aSocket.getPort (), ex);
       ne.terminate ();
     }
+    finally
+    {
+      // The message content is no longer needed
+      aData.dispose ();
+    }
   }
 
   // Asynch MDN 2007-03-12
   /**
    * method for receiving & processing Async MDN sent from receiver.
    */
-  protected final void receiveMDN (final AS2Message aMsg, final byte [] aData, final OutputStream aOS) throws OpenAS2Exception,
-                                                                                                      IOException
+  protected final void receiveMDN (final AS2Message aMsg,
+                                   final DataSource aDataSource,
+                                   final OutputStream aOS,
+                                   final boolean bKeepAlive) throws OpenAS2Exception, IOException
   {
     try
     {
@@ -153,8 +167,12 @@ public class AS2MDNReceiverHandler implements INetModuleHandler
       final IMessageMDN aMdn = new AS2MessageMDN (aMsg);
       // copy headers from msg to MDN from msg
       aMdn.setHeaders (aMsg.getHeaders ());
-      final MimeBodyPart part = new MimeBodyPart (aMdn.getHeaders (), aData);
-      aMsg.getMDN ().setData (part);
+      final MimeBodyPart aPart = new MimeBodyPart ();
+      aPart.setDataHandler (new DataHandler (aDataSource));
+      final Enumeration <?> aHeaders = aMdn.getHeaders ().getAllHeaderLines ();
+      while (aHeaders.hasMoreElements ())
+        aPart.addHeaderLine ((String) aHeaders.nextElement ());
+      aMsg.getMDN ().setData (aPart);
 
       // get the MDN partnership info
       aMdn.getPartnership ().setSenderID (CPartnershipIDs.PID_AS2, aMdn.getHeader (CAS2Header.HEADER_AS2_FROM));
@@ -178,9 +196,9 @@ public class AS2MDNReceiverHandler implements INetModuleHandler
       // check if the mic (message integrity check) is correct
 
       if (checkAsyncMDN (aMsg))
-        HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false);
+        HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false, bKeepAlive);
       else
-        HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_NOT_FOUND, false);
+        HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_NOT_FOUND, false, bKeepAlive);
 
       final String sDisposition = aMsg.getMDN ().getAttribute (AS2MessageMDN.MDNA_DISPOSITION);
       try
@@ -32,15 +32,17 @@
  */
 package com.helger.as2lib.processor.receiver.net;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.util.Enumeration;
 
 import javax.activation.DataHandler;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 
@@ -63,16 +65,26 @@ import com.helger.as2lib.processor.sender.IProcessorSenderModule;
 import com.helger.as2lib.processor.storage.IProcessorStorageModule;
 import com.helger.as2lib.util.AS2Util;
 import com.helger.as2lib.util.CAS2Header;
+import com.helger.as2lib.util.DispositionOptions;
 import com.helger.as2lib.util.DispositionType;
 import com.helger.as2lib.util.HTTPUtil;
 import com.helger.as2lib.util.ICryptoHelper;
 import com.helger.as2lib.util.IOUtil;
-import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.helger.as2lib.util.MDNSerializer;
+import com.helger.as2lib.util.SpoolOutputStream;
 import com.phloc.commons.annotations.Nonempty;
-import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
 import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.string.StringParser;
 import com.phloc.commons.timing.StopWatch;
 
+/**
+ * Handles a single AS2 request of a connection. Decrypting, verifying and
+ * storing run on the connection thread, as a synchronous MDN can only be
+ * written afterwards. Only asynchronous MDNs are sent after the request is
+ * handled.
+ *
+ * @author Philip Helger
+ */
 public class AS2ReceiverHandler implements INetModuleHandler
 {
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS2ReceiverHandler.class);
@@ -103,15 +115,90 @@ public class AS2ReceiverHandler implements INetModuleHandler
 
     final AS2Message aMsg = createMessage (aSocket);
 
-    byte [] aData = null;
+    // Small messages are kept in memory, large ones are spooled to disk
+    final SpoolOutputStream aData = owner.createSpoolOutputStream ();
+    try
+    {
+      _handle (aSocket, aMsg, aData);
+    }
+    finally
+    {
+      // The message content is no longer needed
+      aData.dispose ();
+    }
+  }
 
+  private void _handle (@Nonnull final Socket aSocket,
+                        @Nonnull final AS2Message aMsg,
+                        @Nonnull final SpoolOutputStream aData)
+  {
     // Time the transmission
     final StopWatch aSW = new StopWatch (true);
 
-    // Read in the message request, headers, and data
+    // Read in the message request and headers
+    final InputStream aIS;
     try
     {
-      aData = HTTPUtil.readData (aSocket, aMsg);
+      aIS = StreamUtils.getBuffered (aSocket.getInputStream ());
+      HTTPUtil.readHeaders (aIS, aMsg);
+    }
+    catch (final Exception ex)
+    {
+      final NetException ne = new NetException (aSocket.getInetAddress (), aSocket.getPort (), ex);
+      ne.terminate ();
+      return;
+    }
+
+    // Extract AS2 ID's from header, find the message's partnership and
+    // update the message - before the data is read
+    OpenAS2Exception aPartnershipEx = null;
+    try
+    {
+      aMsg.getPartnership ().setSenderID (CPartnershipIDs.PID_AS2, aMsg.getHeader (CAS2Header.HEADER_AS2_FROM));
+      aMsg.getPartnership ().setReceiverID (CPartnershipIDs.PID_AS2, aMsg.getHeader (CAS2Header.HEADER_AS2_TO));
+      getModule ().getSession ().getPartnershipFactory ().updatePartnership (aMsg, false);
+    }
+    catch (final OpenAS2Exception ex)
+    {
+      aPartnershipEx = ex;
+    }
+
+    if (!acceptData (aSocket, aMsg, aPartnershipEx))
+      return;
+
+    // Apply the limits per source IP address and per partner
+    final AdmissionController.Permit aPermit = admitMessage (aSocket, aMsg, aPartnershipEx);
+    if (aPermit == null)
+      return;
+
+    try
+    {
+      _readAndProcess (aSocket, aMsg, aData, aIS, aSW, aPartnershipEx);
+    }
+    finally
+    {
+      aPermit.release ();
+    }
+  }
+
+  private void _readAndProcess (@Nonnull final Socket aSocket,
+                                @Nonnull final AS2Message aMsg,
+                                @Nonnull final SpoolOutputStream aData,
+                                @Nonnull final InputStream aIS,
+                                @Nonnull final StopWatch aSW,
+                                @Nullable final OpenAS2Exception aPartnershipEx)
+  {
+    // Read in the data
+    boolean bRead = false;
+    try
+    {
+      if (HTTPUtil.isContinueExpected (aMsg))
+        HTTPUtil.sendContinue (aSocket.getOutputStream ());
+      getModule ().startDataPhase (aSocket);
+      // Chunked content has no length up front - it is limited while reading
+      HTTPUtil.readBody (aIS, aSocket.getOutputStream (), aMsg, aData, getMaxContentLength (aMsg));
+      aData.close ();
+      bRead = true;
     }
     catch (final Exception ex)
     {
@@ -121,10 +208,10 @@ public class AS2ReceiverHandler implements INetModuleHandler
 
     aSW.stop ();
 
-    if (aData != null)
+    if (bRead)
     {
       s_aLogger.info ("received " +
-                      IOUtil.getTransferRate (aData.length, aSW) +
+                      IOUtil.getTransferRate (aData.getSize (), aSW) +
                       " from" +
                       getClientInfo (aSocket) +
                       aMsg.getLoggingText ());
@@ -145,7 +232,7 @@ public class AS2ReceiverHandler implements INetModuleHandler
           final String sReceivedContentType = aReceivedContentType.toString ();
 
           final MimeBodyPart aReceivedPart = new MimeBodyPart ();
-          aReceivedPart.setDataHandler (new DataHandler (new ByteArrayDataSource (aData, sReceivedContentType, null)));
+          aReceivedPart.setDataHandler (new DataHandler (aData.getAsDataSource (sReceivedContentType)));
           aReceivedPart.setHeader (CAS2Header.HEADER_CONTENT_TYPE, sReceivedContentType);
           aMsg.setData (aReceivedPart);
         }
@@ -160,15 +247,8 @@ public class AS2ReceiverHandler implements INetModuleHandler
                                           ex);
         }
 
-        // Extract AS2 ID's from header, find the message's partnership and
-        // update the message
-        try
-        {
-          aMsg.getPartnership ().setSenderID (CPartnershipIDs.PID_AS2, aMsg.getHeader (CAS2Header.HEADER_AS2_FROM));
-          aMsg.getPartnership ().setReceiverID (CPartnershipIDs.PID_AS2, aMsg.getHeader (CAS2Header.HEADER_AS2_TO));
-          getModule ().getSession ().getPartnershipFactory ().updatePartnership (aMsg, false);
-        }
-        catch (final OpenAS2Exception ex)
+        // The partnership was already determined from the headers
+        if (aPartnershipEx != null)
         {
           throw new DispositionException (new DispositionType ("automatic-action",
                                                                "MDN-sent-automatically",
@@ -176,7 +256,7 @@ public class AS2ReceiverHandler implements INetModuleHandler
                                                                "Error",
                                                                "authentication-failed"),
                                           AS2ReceiverModule.DISP_PARTNERSHIP_NOT_FOUND,
-                                          ex);
+                                          aPartnershipEx);
         }
 
         // Decrypt and verify signature of the data, and attach data to the
@@ -211,15 +291,19 @@ public class AS2ReceiverHandler implements INetModuleHandler
           }
           else
           {
+            final boolean bKeepAlive = getModule ().isKeepAlive (aSocket, aMsg);
             final OutputStream aOS = StreamUtils.getBuffered (aSocket.getOutputStream ());
             try
             {
-              HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false);
+              HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false, bKeepAlive);
+              aOS.flush ();
             }
             finally
             {
               StreamUtils.close (aOS);
             }
+            if (bKeepAlive)
+              getModule ().setReusable (aSocket);
             s_aLogger.info ("sent HTTP OK" + getClientInfo (aSocket) + aMsg.getLoggingText ());
           }
         }
@@ -240,6 +324,129 @@ public class AS2ReceiverHandler implements INetModuleHandler
     }
   }
 
+  /**
+   * Decide whether the data of a message should be read, based on the headers
+   * only. If the client sent <code>Expect: 100-continue</code>, messages from
+   * unknown partners are rejected with <code>403</code> instead of reading the
+   * data and sending an error MDN. Messages whose Content-Length exceeds the
+   * partnership attribute {@link CPartnershipIDs#PA_MAX_CONTENT_LENGTH} are
+   * always rejected with <code>413</code>. Chunked messages are checked while
+   * their data is read.
+   *
+   * @param aSocket
+   *        The socket to send the rejection to
+   * @param aMsg
+   *        The message with the headers
+   * @param aPartnershipEx
+   *        The exception from determining the partnership. <code>null</code>
+   *        if the partnership was found.
+   * @return <code>true</code> if the data should be read, <code>false</code> if
+   *         the message was rejected.
+   */
+  protected boolean acceptData (@Nonnull final Socket aSocket,
+                                @Nonnull final AS2Message aMsg,
+                                @Nullable final OpenAS2Exception aPartnershipEx)
+  {
+    int nResponseCode;
+    String sReason;
+    if (aPartnershipEx != null)
+    {
+      // Without 100-continue the client sends the data anyway and expects an
+      // error MDN
+      if (!HTTPUtil.isContinueExpected (aMsg))
+        return true;
+      nResponseCode = HttpURLConnection.HTTP_FORBIDDEN;
+      sReason = "partnership not found: " + aPartnershipEx.getMessage ();
+    }
+    else
+    {
+      // Only a Content-Length can be checked before reading the data
+      final long nMaxContentLength = getMaxContentLength (aMsg);
+      final long nContentLength = HTTPUtil.getContentLength (aMsg);
+      if (nMaxContentLength < 0 || nContentLength <= nMaxContentLength)
+        return true;
+      nResponseCode = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+      sReason = "Content-Length " + nContentLength + " exceeds the maximum of " + nMaxContentLength;
+    }
+
+    s_aLogger.warn ("rejecting message" + getClientInfo (aSocket) + aMsg.getLoggingText () + ": " + sReason);
+    try
+    {
+      final OutputStream aOS = aSocket.getOutputStream ();
+      HTTPUtil.sendHTTPResponse (aOS, nResponseCode, false);
+      aOS.flush ();
+    }
+    catch (final IOException ex)
+    {
+      final NetException ne = new NetException (aSocket.getInetAddress (), aSocket.getPort (), ex);
+      ne.terminate ();
+    }
+    return false;
+  }
+
+  /**
+   * @param aMsg
+   *        The message with the partnership
+   * @return The value of the partnership attribute
+   *         {@link CPartnershipIDs#PA_MAX_CONTENT_LENGTH} or -1 if there is no
+   *         limit.
+   */
+  protected long getMaxContentLength (@Nonnull final AS2Message aMsg)
+  {
+    return StringParser.parseLong (aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_MAX_CONTENT_LENGTH), -1);
+  }
+
+  /**
+   * Check the limits per source IP address and per partner of the module's
+   * {@link AdmissionController}. If a limit is exceeded, the message is
+   * rejected with <code>503</code> before the data is read.
+   *
+   * @param aSocket
+   *        The socket to send the rejection to
+   * @param aMsg
+   *        The message with the headers
+   * @param aPartnershipEx
+   *        The exception from determining the partnership. <code>null</code>
+   *        if the partnership was found.
+   * @return The permit to release after the message was handled or
+   *         <code>null</code> if the message was rejected.
+   */
+  @Nullable
+  protected AdmissionController.Permit admitMessage (@Nonnull final Socket aSocket,
+                                                     @Nonnull final AS2Message aMsg,
+                                                     @Nullable final OpenAS2Exception aPartnershipEx)
+  {
+    final AdmissionController aAdmissionController = getModule ().getAdmissionController ();
+    if (aAdmissionController == null)
+      return new AdmissionController.Permit (null);
+
+    final Partnership aPartnership = aPartnershipEx == null ? aMsg.getPartnership () : null;
+    final AdmissionController.Permit aPermit = aAdmissionController.admitMessage (aMsg.getAttribute (CNetAttribute.MA_SOURCE_IP),
+                                                                                   aMsg.getHeader (CAS2Header.HEADER_AS2_FROM),
+                                                                                   aPartnership,
+                                                                                   HTTPUtil.getContentLength (aMsg));
+    if (aPermit == null)
+    {
+      s_aLogger.warn ("rejecting message" +
+                      getClientInfo (aSocket) +
+                      aMsg.getLoggingText () +
+                      ": admission limit exceeded");
+      try
+      {
+        final OutputStream aOS = aSocket.getOutputStream ();
+        HTTPUtil.sendServiceUnavailable (aOS, getModule ().getAttributeAsInt (AbstractNetModule.PARAM_RETRY_AFTER,
+                                                                              AbstractNetModule.DEFAULT_RETRY_AFTER));
+        aOS.flush ();
+      }
+      catch (final IOException ex)
+      {
+        final NetException ne = new NetException (aSocket.getInetAddress (), aSocket.getPort (), ex);
+        ne.terminate ();
+      }
+    }
+    return aPermit;
+  }
+
   // Create a new message and record the source ip and port
   @Nonnull
   protected AS2Message createMessage (@Nonnull final Socket aSocket)
@@ -284,6 +491,9 @@ public class AS2ReceiverHandler implements INetModuleHandler
                                       ex);
     }
 
+    // Compressed after signing or not signed at all
+    _decompress (aMsg, aCryptoHelper);
+
     try
     {
       if (aCryptoHelper.isSigned (aMsg.getData ()))
@@ -292,6 +502,15 @@ public class AS2ReceiverHandler implements INetModuleHandler
 
         final X509Certificate aSenderCert = aCertFactory.getCertificate (aMsg, Partnership.PARTNERSHIP_TYPE_SENDER);
         aMsg.setData (aCryptoHelper.verify (aMsg.getData (), aSenderCert));
+
+        // Compressed before signing
+        if (aCryptoHelper.isCompressed (aMsg.getData ()))
+        {
+          // RFC 5402: the MIC is calculated over the signed, compressed data
+          final String sMICAlg = new DispositionOptions (aMsg.getHeader (CAS2Header.HEADER_DISPOSITION_NOTIFICATION_OPTIONS)).getMICAlg ();
+          if (sMICAlg != null)
+            aMsg.setAttribute (AS2Message.MA_COMPRESSED_MIC, aCryptoHelper.calculateMIC (aMsg.getData (), sMICAlg, true));
+        }
       }
     }
     catch (final Exception ex)
@@ -305,6 +524,35 @@ public class AS2ReceiverHandler implements INetModuleHandler
                                       AS2ReceiverModule.DISP_VERIFY_SIGNATURE_FAILED,
                                       ex);
     }
+
+    // Compressed before signing
+    _decompress (aMsg, aCryptoHelper);
+  }
+
+  private static void _decompress (@Nonnull final IMessage aMsg, @Nonnull final ICryptoHelper aCryptoHelper) throws DispositionException
+  {
+    try
+    {
+      if (aCryptoHelper.isCompressed (aMsg.getData ()))
+      {
+        s_aLogger.debug ("decompressing" + aMsg.getLoggingText ());
+
+        aMsg.setData (aCryptoHelper.decompress (aMsg.getData ()));
+        // Ensure a valid content type
+        new ContentType (aMsg.getData ().getContentType ());
+      }
+    }
+    catch (final Exception ex)
+    {
+      s_aLogger.error ("Error decompressing " + aMsg.getLoggingText () + ": " + ex.getMessage ());
+      throw new DispositionException (new DispositionType ("automatic-action",
+                                                           "MDN-sent-automatically",
+                                                           "processed",
+                                                           "Error",
+                                                           "decompression-failed"),
+                                      AS2ReceiverModule.DISP_DECOMPRESSION_ERROR,
+                                      ex);
+    }
   }
 
   protected void sendMDN (final Socket aSocket,
@@ -317,47 +565,43 @@ public class AS2ReceiverHandler implements INetModuleHandler
     {
       try
       {
+        // The MIC is calculated from the received data, which is only
+        // available until the request is handled
         final IMessageMDN aMdn = AS2Util.createMDN (getModule ().getSession (), aMsg, aDisposition, sText);
 
+        final boolean bKeepAlive = getModule ().isKeepAlive (aSocket, aMsg);
         final OutputStream aOS = StreamUtils.getBuffered (aSocket.getOutputStream ());
-        // if asyncMDN requested, close connection and initiate separate MDN
+        // if asyncMDN requested, answer this request and initiate separate MDN
         // send
         if (aMsg.isRequestingAsynchMDN ())
         {
-          HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false);
-          aOS.write ("Content-Length: 0\r\n\r\n".getBytes ());
+          HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, false, bKeepAlive);
           aOS.flush ();
           aOS.close ();
+          if (bKeepAlive)
+            getModule ().setReusable (aSocket);
           s_aLogger.info ("setup to send asynch MDN [" +
                           aDisposition.toString () +
                           "]" +
                           getClientInfo (aSocket) +
                           aMsg.getLoggingText ());
+          // The received data is deleted when the request is handled, but the
+          // MDN is sent later. Sending or resending the MDN only needs the MDN,
+          // so detach the message from the spooled data.
+          aMsg.setData (null, null);
+
+          // A started AsynchMDNSenderModule only queues the MDN - it is sent by
+          // the workers of that module
           getModule ().getSession ().getProcessor ().handle (IProcessorSenderModule.DO_SENDMDN, aMsg, null);
           return;
         }
 
         // otherwise, send sync MDN back on same connection
-        HTTPUtil.sendHTTPResponse (aOS, HttpURLConnection.HTTP_OK, true);
-
-        // make sure to set the content-length header
-        final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
-        final MimeBodyPart aPart = aMdn.getData ();
-        StreamUtils.copyInputStreamToOutputStream (aPart.getInputStream (), aData);
-        aMdn.setHeader (CAS2Header.HEADER_CONTENT_LENGTH, Integer.toString (aData.size ()));
-
-        final Enumeration <?> aHeaders = aMdn.getHeaders ().getAllHeaderLines ();
-        while (aHeaders.hasMoreElements ())
-        {
-          final String sHeader = (String) aHeaders.nextElement () + "\r\n";
-          aOS.write (sHeader.getBytes ());
-        }
-
-        aOS.write ("\r\n".getBytes ());
-
-        aData.writeTo (aOS);
+        MDNSerializer.writeHTTPResponse (aOS, aMdn, bKeepAlive);
         aOS.flush ();
         aOS.close ();
+        if (bKeepAlive)
+          getModule ().setReusable (aSocket);
 
         // Save sent MDN for later examination
         getModule ().getSession ().getProcessor ().handle (IProcessorStorageModule.DO_STOREMDN, aMsg, null);
@@ -0,0 +1,85 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import com.helger.as2lib.processor.receiver.AbstractNetModule;
+
+/**
+ * Base class of the threads accepting the connections of an
+ * {@link AbstractNetModule}.
+ *
+ * @author Philip Helger
+ */
+public abstract class AbstractListenerThread extends Thread
+{
+  private final AtomicLong m_aAccepted = new AtomicLong ();
+
+  protected final void onAccepted (@Nonnull final AbstractNetModule aOwner)
+  {
+    m_aAccepted.incrementAndGet ();
+    aOwner.getMetrics ().onAccepted ();
+  }
+
+  /**
+   * @return The number of connections accepted by this thread.
+   */
+  @Nonnegative
+  public long getAcceptedCount ()
+  {
+    return m_aAccepted.get ();
+  }
+
+  /**
+   * @return <code>true</code> if this thread accepts from its own socket
+   *         bound with <code>SO_REUSEPORT</code>.
+   */
+  public abstract boolean isReusePort ();
+
+  /**
+   * Flag this thread as terminated. Nothing is closed yet, so that threads
+   * sharing a socket don't take its closing for an error.
+   */
+  public abstract void terminate ();
+
+  /**
+   * Wake up this thread after {@link #terminate()} was called on all threads
+   * of the module, so that it exits. A socket shared by several threads is
+   * only closed by the thread that bound it.
+   */
+  public abstract void unblock ();
+}
@@ -0,0 +1,288 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as2lib.partner.CPartnershipIDs;
+import com.helger.as2lib.partner.Partnership;
+import com.helger.as2lib.util.TokenBucket;
+import com.phloc.commons.string.StringParser;
+
+/**
+ * Limits the load a single source IP address or a single partner may put on a
+ * receiver module, so that one misbehaving client cannot starve all others.
+ * <ul>
+ * <li>Per source IP: concurrent connections, messages per second and bytes per
+ * second - configured on the module.</li>
+ * <li>Per sending partner: concurrent messages, messages per second and bytes
+ * per second - configured with the partnership attributes
+ * {@link CPartnershipIDs#PA_MAX_CONCURRENT_MESSAGES},
+ * {@link CPartnershipIDs#PA_MAX_MESSAGES_PER_SECOND} and
+ * {@link CPartnershipIDs#PA_MAX_BYTES_PER_SECOND}.</li>
+ * </ul>
+ * All checks only need the request headers, so messages can be rejected before
+ * the data is read. A value &le; 0 disables the respective limit.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AdmissionController
+{
+  /**
+   * A granted admission. Must be released when the connection or message is
+   * done.
+   */
+  public static final class Permit
+  {
+    private final AtomicInteger m_aCounter;
+    private final AtomicBoolean m_aReleased = new AtomicBoolean (false);
+
+    Permit (@Nullable final AtomicInteger aCounter)
+    {
+      m_aCounter = aCounter;
+    }
+
+    public void release ()
+    {
+      if (m_aCounter != null && m_aReleased.compareAndSet (false, true))
+        m_aCounter.decrementAndGet ();
+    }
+  }
+
+  private static final class SourceState
+  {
+    private final AtomicInteger m_aActive = new AtomicInteger (0);
+    private volatile TokenBucket m_aMessages;
+    private volatile TokenBucket m_aBytes;
+
+    boolean isIdle ()
+    {
+      final TokenBucket aMessages = m_aMessages;
+      final TokenBucket aBytes = m_aBytes;
+      return m_aActive.get () == 0 && (aMessages == null || aMessages.isFull ()) && (aBytes == null || aBytes.isFull ());
+    }
+  }
+
+  // Remove idle sources when more sources are tracked
+  private static final int CLEANUP_THRESHOLD = 1000;
+
+  private final int m_nMaxConnectionsPerIP;
+  private final double m_dMaxMessagesPerSecondPerIP;
+  private final double m_dMaxBytesPerSecondPerIP;
+  private final ConcurrentMap <String, SourceState> m_aIPs = new ConcurrentHashMap <String, SourceState> ();
+  private final ConcurrentMap <String, SourceState> m_aPartners = new ConcurrentHashMap <String, SourceState> ();
+  private final AtomicLong m_aRejected = new AtomicLong ();
+
+  public AdmissionController (final int nMaxConnectionsPerIP,
+                              final double dMaxMessagesPerSecondPerIP,
+                              final double dMaxBytesPerSecondPerIP)
+  {
+    m_nMaxConnectionsPerIP = nMaxConnectionsPerIP;
+    m_dMaxMessagesPerSecondPerIP = dMaxMessagesPerSecondPerIP;
+    m_dMaxBytesPerSecondPerIP = dMaxBytesPerSecondPerIP;
+  }
+
+  @Nonnull
+  private static SourceState _getState (@Nonnull final ConcurrentMap <String, SourceState> aMap,
+                                        @Nonnull final String sKey)
+  {
+    SourceState aState = aMap.get (sKey);
+    if (aState == null)
+    {
+      final SourceState aNewState = new SourceState ();
+      aState = aMap.putIfAbsent (sKey, aNewState);
+      if (aState == null)
+      {
+        aState = aNewState;
+        if (aMap.size () > CLEANUP_THRESHOLD)
+          _removeIdle (aMap);
+      }
+    }
+    return aState;
+  }
+
+  private static void _removeIdle (@Nonnull final ConcurrentMap <String, SourceState> aMap)
+  {
+    final Iterator <SourceState> it = aMap.values ().iterator ();
+    while (it.hasNext ())
+      if (it.next ().isIdle ())
+        it.remove ();
+  }
+
+  /**
+   * @return The existing bucket if the rate did not change, a new bucket or
+   *         <code>null</code> if the rate is unlimited.
+   */
+  @Nullable
+  private static TokenBucket _getBucket (@Nullable final TokenBucket aBucket,
+                                         final double dRatePerSecond,
+                                         final double dMinCapacity)
+  {
+    if (dRatePerSecond <= 0)
+      return null;
+    if (aBucket != null && aBucket.getRatePerSecond () == dRatePerSecond)
+      return aBucket;
+    // Allow a burst of one second
+    return new TokenBucket (dRatePerSecond, Math.max (dMinCapacity, dRatePerSecond));
+  }
+
+  private static boolean _tryAcquire (@Nonnull final SourceState aState,
+                                      final double dMessagesPerSecond,
+                                      final double dBytesPerSecond,
+                                      final long nContentLength)
+  {
+    final TokenBucket aMessages = _getBucket (aState.m_aMessages, dMessagesPerSecond, 1);
+    aState.m_aMessages = aMessages;
+    if (aMessages != null && !aMessages.tryAcquire (1))
+      return false;
+
+    // Without a Content-Length the size is unknown upfront
+    final TokenBucket aBytes = _getBucket (aState.m_aBytes, dBytesPerSecond, 1);
+    aState.m_aBytes = aBytes;
+    if (aBytes != null && nContentLength > 0 && !aBytes.tryAcquire (nContentLength))
+      return false;
+    return true;
+  }
+
+  private static boolean _tryIncrement (@Nonnull final AtomicInteger aCounter, final int nMax)
+  {
+    if (aCounter.incrementAndGet () > nMax)
+    {
+      aCounter.decrementAndGet ();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Admit a new connection.
+   *
+   * @param sSourceIP
+   *        The source IP address of the connection
+   * @return The permit to release when the connection is closed or
+   *         <code>null</code> if the connection must be rejected.
+   */
+  @Nullable
+  public Permit admitConnection (@Nonnull final String sSourceIP)
+  {
+    if (m_nMaxConnectionsPerIP <= 0)
+      return new Permit (null);
+
+    final AtomicInteger aCounter = _getState (m_aIPs, sSourceIP).m_aActive;
+    if (!_tryIncrement (aCounter, m_nMaxConnectionsPerIP))
+    {
+      m_aRejected.incrementAndGet ();
+      return null;
+    }
+    return new Permit (aCounter);
+  }
+
+  /**
+   * Admit a new message based on its headers.
+   *
+   * @param sSourceIP
+   *        The source IP address of the message
+   * @param sSenderID
+   *        The AS2 ID of the sender. May be <code>null</code> if unknown.
+   * @param aPartnership
+   *        The partnership containing the limits of the sender. May be
+   *        <code>null</code> if unknown.
+   * @param nContentLength
+   *        The announced length of the message data or -1 if unknown.
+   * @return The permit to release when the message was handled or
+   *         <code>null</code> if the message must be rejected.
+   */
+  @Nullable
+  public Permit admitMessage (@Nonnull final String sSourceIP,
+                              @Nullable final String sSenderID,
+                              @Nullable final Partnership aPartnership,
+                              final long nContentLength)
+  {
+    if ((m_dMaxMessagesPerSecondPerIP > 0 || m_dMaxBytesPerSecondPerIP > 0) &&
+        !_tryAcquire (_getState (m_aIPs, sSourceIP),
+                      m_dMaxMessagesPerSecondPerIP,
+                      m_dMaxBytesPerSecondPerIP,
+                      nContentLength))
+    {
+      m_aRejected.incrementAndGet ();
+      return null;
+    }
+
+    if (sSenderID == null || aPartnership == null)
+      return new Permit (null);
+
+    final int nMaxConcurrent = StringParser.parseInt (aPartnership.getAttribute (CPartnershipIDs.PA_MAX_CONCURRENT_MESSAGES),
+                                                      0);
+    final double dMessagesPerSecond = StringParser.parseDouble (aPartnership.getAttribute (CPartnershipIDs.PA_MAX_MESSAGES_PER_SECOND),
+                                                                0);
+    final double dBytesPerSecond = StringParser.parseDouble (aPartnership.getAttribute (CPartnershipIDs.PA_MAX_BYTES_PER_SECOND),
+                                                             0);
+    if (nMaxConcurrent <= 0 && dMessagesPerSecond <= 0 && dBytesPerSecond <= 0)
+      return new Permit (null);
+
+    final SourceState aState = _getState (m_aPartners, sSenderID);
+    if (!_tryAcquire (aState, dMessagesPerSecond, dBytesPerSecond, nContentLength))
+    {
+      m_aRejected.incrementAndGet ();
+      return null;
+    }
+    if (nMaxConcurrent <= 0)
+      return new Permit (null);
+    if (!_tryIncrement (aState.m_aActive, nMaxConcurrent))
+    {
+      m_aRejected.incrementAndGet ();
+      return null;
+    }
+    return new Permit (aState.m_aActive);
+  }
+
+  /**
+   * @return The number of rejected connections and messages.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+}
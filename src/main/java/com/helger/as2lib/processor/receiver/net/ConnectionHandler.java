@@ -0,0 +1,200 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.WrappedException;
+import com.helger.as2lib.processor.receiver.AbstractNetModule;
+
+/**
+ * Handles all requests of a single accepted connection in a worker thread of
+ * an {@link AbstractNetModule}. With the non-blocking acceptor an idle
+ * persistent connection is handed back to its {@link SelectorThread} instead of
+ * waiting for the next request in the worker thread.
+ *
+ * @author Philip Helger
+ */
+public final class ConnectionHandler implements Runnable
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (ConnectionHandler.class);
+
+  private final AbstractNetModule m_aOwner;
+  private final INetModuleHandler m_aHandler;
+  private final Socket m_aSocket;
+  private final long m_nAcceptTime;
+  private final AdmissionController.Permit m_aPermit;
+  private final SelectorThread m_aSelectorThread;
+
+  /**
+   * @param aOwner
+   *        The owning module. May not be <code>null</code>.
+   * @param aHandler
+   *        The handler for each request. May not be <code>null</code>.
+   * @param aSocket
+   *        The accepted connection. May not be <code>null</code>.
+   * @param aPermit
+   *        The admission permit of the connection, released when the
+   *        connection is closed. May be <code>null</code>.
+   * @param aSelectorThread
+   *        The selector thread idle persistent connections are handed back to.
+   *        May be <code>null</code>.
+   */
+  public ConnectionHandler (@Nonnull final AbstractNetModule aOwner,
+                            @Nonnull final INetModuleHandler aHandler,
+                            @Nonnull final Socket aSocket,
+                            @Nullable final AdmissionController.Permit aPermit,
+                            @Nullable final SelectorThread aSelectorThread)
+  {
+    m_aOwner = aOwner;
+    m_aHandler = aHandler;
+    m_aSocket = aSocket;
+    m_nAcceptTime = System.currentTimeMillis ();
+    m_aPermit = aPermit;
+    m_aSelectorThread = aSelectorThread;
+  }
+
+  @Nonnull
+  public AbstractNetModule getOwner ()
+  {
+    return m_aOwner;
+  }
+
+  @Nonnull
+  public Socket getSocket ()
+  {
+    return m_aSocket;
+  }
+
+  @Nullable
+  public AdmissionController.Permit getPermit ()
+  {
+    return m_aPermit;
+  }
+
+  // Update the handshake statistics of the module
+  private void _handshake (@Nonnull final SSLSocket aSocket) throws IOException
+  {
+    aSocket.startHandshake ();
+    // A resumed session was created by an earlier connection
+    getOwner ().getMetrics ().onSSLHandshake (aSocket.getSession ().getCreationTime () < m_nAcceptTime);
+  }
+
+  @Override
+  public void run ()
+  {
+    final Socket s = getSocket ();
+    ConnectionSocket aConnSocket = null;
+    // Set if an idle connection was handed back to the selector thread
+    boolean bHandedBack = false;
+    try
+    {
+      if (s instanceof SSLSocket)
+        _handshake ((SSLSocket) s);
+
+      aConnSocket = s instanceof ConnectionSocket ? (ConnectionSocket) s : new ConnectionSocket (s, null);
+      getOwner ().addActiveConnection (aConnSocket);
+      final AbstractNetModule aOwner = getOwner ();
+      final int nIdleTimeoutMS = aOwner.getAttributeAsInt (AbstractNetModule.PARAM_KEEP_ALIVE_TIMEOUT,
+                                                           AbstractNetModule.DEFAULT_KEEP_ALIVE_TIMEOUT);
+      final int nHeaderTimeoutMS = aOwner.getAttributeAsInt (AbstractNetModule.PARAM_HEADER_TIMEOUT,
+                                                             AbstractNetModule.DEFAULT_HEADER_TIMEOUT);
+      aConnSocket.setSoTimeout (aOwner.getAttributeAsInt (AbstractNetModule.PARAM_READ_TIMEOUT,
+                                                          AbstractNetModule.DEFAULT_READ_TIMEOUT));
+      while (true)
+      {
+        aConnSocket.startRequest ();
+        aConnSocket.setReadDeadline (nHeaderTimeoutMS > 0 ? System.currentTimeMillis () + nHeaderTimeoutMS : 0);
+        m_aHandler.handle (getOwner (), aConnSocket);
+        if (aConnSocket.isTimedOut ())
+        {
+          getOwner ().getMetrics ().onTimedOut ();
+          s_aLogger.warn ("Aborted connection from " +
+                          s.getInetAddress ().getHostAddress () +
+                          " - client is too slow");
+          break;
+        }
+        if (!aConnSocket.isReusable ())
+          break;
+
+        // Don't occupy this worker while the connection is idle - unless the
+        // next request was already read
+        if (m_aSelectorThread != null &&
+            !aConnSocket.hasBufferedData () &&
+            m_aSelectorThread.returnIdleConnection (aConnSocket, m_aPermit, nIdleTimeoutMS))
+        {
+          bHandedBack = true;
+          break;
+        }
+        if (!aConnSocket.waitForNextRequest (nIdleTimeoutMS))
+          break;
+      }
+    }
+    catch (final IOException ex)
+    {
+      new WrappedException (ex).terminate ();
+    }
+    catch (final RuntimeException ex)
+    {
+      // E.g. from a handler that is still running after a stop - the worker
+      // thread must survive it
+      s_aLogger.error ("Error handling connection from " + s.getInetAddress ().getHostAddress (), ex);
+    }
+    finally
+    {
+      if (aConnSocket != null)
+        getOwner ().removeActiveConnection (aConnSocket);
+      if (!bHandedBack)
+      {
+        try
+        {
+          s.close ();
+        }
+        catch (final IOException ex)
+        {
+          new WrappedException (ex).terminate ();
+        }
+        if (m_aPermit != null)
+          m_aPermit.release ();
+      }
+    }
+  }
+}
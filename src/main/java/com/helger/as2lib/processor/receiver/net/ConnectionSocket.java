@@ -0,0 +1,623 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.phloc.commons.ValueEnforcer;
+import com.phloc.commons.io.streams.NonBlockingBufferedInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonClosingInputStream;
+import com.phloc.commons.io.streams.NonClosingOutputStream;
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * A socket view on an accepted connection that is handed to an
+ * {@link INetModuleHandler}. All calls are delegated to the real socket, except
+ * that bytes that were already read from the connection (e.g. the request line
+ * and the headers read by a non-blocking acceptor) are returned first by the
+ * input stream.<br>
+ * The input stream is buffered and kept for the whole lifetime of the
+ * connection, so that several HTTP requests can be read from one connection
+ * (keep-alive). Closing the input or output stream does not close the
+ * connection.<br>
+ * Reads can additionally be limited by an absolute deadline (e.g. for the
+ * headers) and by a minimum data rate (e.g. for the body), so that slow
+ * clients cannot occupy a worker thread forever.<br>
+ * A non-blocking acceptor may take an idle connection back while it waits for
+ * the next request and hand it over again with {@link #resume(byte[])}.
+ *
+ * @author Philip Helger
+ */
+public class ConnectionSocket extends Socket
+{
+  private final Socket m_aSocket;
+  private byte [] m_aPreread;
+  private InputStream m_aIS;
+  private OutputStream m_aOS;
+  private int m_nRequestCount = 0;
+  private boolean m_bReusable = false;
+  private long m_nReadDeadline = 0;
+  private long m_nMinDataRate = 0;
+  private int m_nMinDataRateGraceMS = 0;
+  private long m_nDataRateStart;
+  private long m_nDataRateBytes;
+  private boolean m_bTimedOut = false;
+  private boolean m_bIdle = false;
+
+  /**
+   * Enforces the read deadline and the minimum data rate on the socket input
+   * stream.
+   */
+  private final class ReadGuardInputStream extends FilterInputStream
+  {
+    ReadGuardInputStream (@Nonnull final InputStream aIS)
+    {
+      super (aIS);
+    }
+
+    @Nonnull
+    private SocketTimeoutException _timedOut (@Nonnull final String sMsg)
+    {
+      m_bTimedOut = true;
+      return new SocketTimeoutException (sMsg);
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final byte [] aBuf = new byte [1];
+      final int nRead = read (aBuf, 0, 1);
+      return nRead <= 0 ? -1 : aBuf[0] & 0xff;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      int nRead;
+      try
+      {
+        if (m_nReadDeadline > 0)
+        {
+          // Don't block longer than the deadline
+          final long nRemaining = m_nReadDeadline - System.currentTimeMillis ();
+          if (nRemaining <= 0)
+            throw _timedOut ("Read deadline exceeded");
+          final int nOldTimeout = m_aSocket.getSoTimeout ();
+          final int nTimeout = (int) Math.min (nRemaining, Integer.MAX_VALUE);
+          m_aSocket.setSoTimeout (nOldTimeout == 0 ? nTimeout : Math.min (nOldTimeout, nTimeout));
+          try
+          {
+            nRead = super.read (aBuf, nOfs, nLen);
+          }
+          finally
+          {
+            m_aSocket.setSoTimeout (nOldTimeout);
+          }
+        }
+        else
+          nRead = super.read (aBuf, nOfs, nLen);
+      }
+      catch (final SocketTimeoutException ex)
+      {
+        m_bTimedOut = true;
+        throw ex;
+      }
+
+      if (nRead > 0 && m_nMinDataRate > 0)
+      {
+        m_nDataRateBytes += nRead;
+        final long nElapsed = System.currentTimeMillis () - m_nDataRateStart;
+        if (nElapsed > m_nMinDataRateGraceMS && m_nDataRateBytes * 1000 / nElapsed < m_nMinDataRate)
+          throw _timedOut ("Data rate below " + m_nMinDataRate + " bytes/s");
+      }
+      return nRead;
+    }
+  }
+
+  public ConnectionSocket (@Nonnull final Socket aSocket, @Nullable final byte [] aPreread) throws SocketException
+  {
+    super ((SocketImpl) null);
+    ValueEnforcer.notNull (aSocket, "Socket");
+    m_aSocket = aSocket;
+    m_aPreread = aPreread;
+  }
+
+  /**
+   * @return The wrapped socket. Never <code>null</code>.
+   */
+  @Nonnull
+  public Socket getWrappedSocket ()
+  {
+    return m_aSocket;
+  }
+
+  @Override
+  public InputStream getInputStream () throws IOException
+  {
+    if (m_aIS == null)
+    {
+      InputStream aSocketIS = m_aSocket.getInputStream ();
+      if (m_aPreread != null && m_aPreread.length > 0)
+        aSocketIS = new SequenceInputStream (new NonBlockingByteArrayInputStream (m_aPreread), aSocketIS);
+      // Don't close the connection when a handler closes the stream
+      m_aIS = new NonBlockingBufferedInputStream (new NonClosingInputStream (new ReadGuardInputStream (aSocketIS)));
+    }
+    return m_aIS;
+  }
+
+  @Override
+  public OutputStream getOutputStream () throws IOException
+  {
+    if (m_aOS == null)
+    {
+      // Don't close the connection when a handler closes the stream
+      m_aOS = new NonClosingOutputStream (m_aSocket.getOutputStream ());
+    }
+    return m_aOS;
+  }
+
+  /**
+   * Called before a new request is read from this connection.
+   */
+  public void startRequest ()
+  {
+    m_nRequestCount++;
+    m_bReusable = false;
+  }
+
+  /**
+   * @return The number of requests that were read from this connection so far,
+   *         including the current one.
+   */
+  @Nonnegative
+  public int getRequestCount ()
+  {
+    return m_nRequestCount;
+  }
+
+  /**
+   * Mark this connection as reusable for another request. Must only be called
+   * after the current request was read completely and a response with a
+   * defined length was sent.
+   *
+   * @param bReusable
+   *        <code>true</code> to keep the connection open
+   */
+  public void setReusable (final boolean bReusable)
+  {
+    m_bReusable = bReusable;
+  }
+
+  /**
+   * @return <code>true</code> if the connection may be used for another
+   *         request.
+   */
+  public boolean isReusable ()
+  {
+    return m_bReusable;
+  }
+
+  /**
+   * Set an absolute deadline for all following reads. Reading after the
+   * deadline fails with a {@link SocketTimeoutException}.
+   *
+   * @param nDeadlineMillis
+   *        The deadline in milliseconds since the epoch or 0 for no deadline.
+   */
+  public void setReadDeadline (final long nDeadlineMillis)
+  {
+    m_nReadDeadline = nDeadlineMillis;
+  }
+
+  /**
+   * Require a minimum average data rate for all following reads. Measuring
+   * starts now. If the average rate falls below the minimum after the grace
+   * period, reading fails with a {@link SocketTimeoutException}.
+   *
+   * @param nBytesPerSecond
+   *        The minimum number of bytes per second or 0 to disable the check.
+   * @param nGracePeriodMS
+   *        The number of milliseconds after which the rate is checked first.
+   */
+  public void setMinimumDataRate (@Nonnegative final long nBytesPerSecond, @Nonnegative final int nGracePeriodMS)
+  {
+    m_nMinDataRate = nBytesPerSecond;
+    m_nMinDataRateGraceMS = nGracePeriodMS;
+    m_nDataRateStart = System.currentTimeMillis ();
+    m_nDataRateBytes = 0;
+  }
+
+  /**
+   * @return <code>true</code> if a read on this connection failed because of
+   *         the read timeout, the read deadline or the minimum data rate.
+   */
+  public boolean isTimedOut ()
+  {
+    return m_bTimedOut;
+  }
+
+  /**
+   * Close this connection if it is currently waiting for the next request.
+   * Used on shutdown to end persistent connections without losing a request.
+   *
+   * @return <code>true</code> if the connection was idle and was closed.
+   */
+  public synchronized boolean closeIfIdle ()
+  {
+    if (!m_bIdle)
+      return false;
+    try
+    {
+      m_aSocket.close ();
+    }
+    catch (final IOException ex)
+    {
+      // Ignore - the connection is gone anyway
+    }
+    return true;
+  }
+
+  private synchronized void _setIdle (final boolean bIdle)
+  {
+    m_bIdle = bIdle;
+  }
+
+  /**
+   * Wait until the client starts sending the next request on this connection.
+   *
+   * @param nIdleTimeoutMS
+   *        The maximum number of milliseconds to wait.
+   * @return <code>true</code> if data for a new request is available,
+   *         <code>false</code> if the client closed the connection or the idle
+   *         timeout was exceeded.
+   */
+  public boolean waitForNextRequest (@Nonnegative final int nIdleTimeoutMS)
+  {
+    // Waiting is not limited by the limits of the previous request
+    setReadDeadline (0);
+    setMinimumDataRate (0, 0);
+    try
+    {
+      final InputStream aIS = getInputStream ();
+      final int nOldTimeout = m_aSocket.getSoTimeout ();
+      m_aSocket.setSoTimeout (nIdleTimeoutMS);
+      _setIdle (true);
+      try
+      {
+        aIS.mark (1);
+        if (aIS.read () < 0)
+          return false;
+        aIS.reset ();
+      }
+      finally
+      {
+        _setIdle (false);
+        m_aSocket.setSoTimeout (nOldTimeout);
+      }
+      return true;
+    }
+    catch (final IOException ex)
+    {
+      // Timeout or connection closed by the client - an idle connection is
+      // not considered as timed out
+      m_bTimedOut = false;
+      return false;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if bytes of a following request were already read
+   *         from the connection and are buffered by the input stream.
+   * @throws IOException
+   *         If the input stream is closed
+   */
+  public boolean hasBufferedData () throws IOException
+  {
+    return m_aIS != null && m_aIS.available () > 0;
+  }
+
+  /**
+   * Continue with a connection that waited for the next request outside of a
+   * worker thread, e.g. in a selector. Must only be called if
+   * {@link #hasBufferedData()} returned <code>false</code> before, as the
+   * buffer of the input stream is discarded.
+   *
+   * @param aPreread
+   *        The bytes of the next request that were read while waiting. May be
+   *        <code>null</code>.
+   */
+  public void resume (@Nullable final byte [] aPreread)
+  {
+    m_aPreread = aPreread;
+    // Created again on the next access
+    m_aIS = null;
+    // Not limited by the limits of the previous request
+    setReadDeadline (0);
+    setMinimumDataRate (0, 0);
+  }
+
+  @Override
+  public void connect (final SocketAddress aEndpoint) throws IOException
+  {
+    throw new SocketException ("Already connected");
+  }
+
+  @Override
+  public void connect (final SocketAddress aEndpoint, final int nTimeout) throws IOException
+  {
+    throw new SocketException ("Already connected");
+  }
+
+  @Override
+  public void bind (final SocketAddress aBindpoint) throws IOException
+  {
+    throw new SocketException ("Already bound");
+  }
+
+  @Override
+  public InetAddress getInetAddress ()
+  {
+    return m_aSocket.getInetAddress ();
+  }
+
+  @Override
+  public InetAddress getLocalAddress ()
+  {
+    return m_aSocket.getLocalAddress ();
+  }
+
+  @Override
+  public int getPort ()
+  {
+    return m_aSocket.getPort ();
+  }
+
+  @Override
+  public int getLocalPort ()
+  {
+    return m_aSocket.getLocalPort ();
+  }
+
+  @Override
+  public SocketAddress getRemoteSocketAddress ()
+  {
+    return m_aSocket.getRemoteSocketAddress ();
+  }
+
+  @Override
+  public SocketAddress getLocalSocketAddress ()
+  {
+    return m_aSocket.getLocalSocketAddress ();
+  }
+
+  @Override
+  public SocketChannel getChannel ()
+  {
+    return m_aSocket.getChannel ();
+  }
+
+  @Override
+  public void setTcpNoDelay (final boolean bOn) throws SocketException
+  {
+    m_aSocket.setTcpNoDelay (bOn);
+  }
+
+  @Override
+  public boolean getTcpNoDelay () throws SocketException
+  {
+    return m_aSocket.getTcpNoDelay ();
+  }
+
+  @Override
+  public void setSoLinger (final boolean bOn, final int nLinger) throws SocketException
+  {
+    m_aSocket.setSoLinger (bOn, nLinger);
+  }
+
+  @Override
+  public int getSoLinger () throws SocketException
+  {
+    return m_aSocket.getSoLinger ();
+  }
+
+  @Override
+  public void sendUrgentData (final int nData) throws IOException
+  {
+    m_aSocket.sendUrgentData (nData);
+  }
+
+  @Override
+  public void setOOBInline (final boolean bOn) throws SocketException
+  {
+    m_aSocket.setOOBInline (bOn);
+  }
+
+  @Override
+  public boolean getOOBInline () throws SocketException
+  {
+    return m_aSocket.getOOBInline ();
+  }
+
+  @Override
+  public void setSoTimeout (final int nTimeout) throws SocketException
+  {
+    m_aSocket.setSoTimeout (nTimeout);
+  }
+
+  @Override
+  public int getSoTimeout () throws SocketException
+  {
+    return m_aSocket.getSoTimeout ();
+  }
+
+  @Override
+  public void setSendBufferSize (final int nSize) throws SocketException
+  {
+    m_aSocket.setSendBufferSize (nSize);
+  }
+
+  @Override
+  public int getSendBufferSize () throws SocketException
+  {
+    return m_aSocket.getSendBufferSize ();
+  }
+
+  @Override
+  public void setReceiveBufferSize (final int nSize) throws SocketException
+  {
+    m_aSocket.setReceiveBufferSize (nSize);
+  }
+
+  @Override
+  public int getReceiveBufferSize () throws SocketException
+  {
+    return m_aSocket.getReceiveBufferSize ();
+  }
+
+  @Override
+  public void setKeepAlive (final boolean bOn) throws SocketException
+  {
+    m_aSocket.setKeepAlive (bOn);
+  }
+
+  @Override
+  public boolean getKeepAlive () throws SocketException
+  {
+    return m_aSocket.getKeepAlive ();
+  }
+
+  @Override
+  public void setTrafficClass (final int nTC) throws SocketException
+  {
+    m_aSocket.setTrafficClass (nTC);
+  }
+
+  @Override
+  public int getTrafficClass () throws SocketException
+  {
+    return m_aSocket.getTrafficClass ();
+  }
+
+  @Override
+  public void setReuseAddress (final boolean bOn) throws SocketException
+  {
+    m_aSocket.setReuseAddress (bOn);
+  }
+
+  @Override
+  public boolean getReuseAddress () throws SocketException
+  {
+    return m_aSocket.getReuseAddress ();
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    m_aSocket.close ();
+  }
+
+  @Override
+  public void shutdownInput () throws IOException
+  {
+    m_aSocket.shutdownInput ();
+  }
+
+  @Override
+  public void shutdownOutput () throws IOException
+  {
+    m_aSocket.shutdownOutput ();
+  }
+
+  @Override
+  public boolean isConnected ()
+  {
+    return m_aSocket.isConnected ();
+  }
+
+  @Override
+  public boolean isBound ()
+  {
+    return m_aSocket.isBound ();
+  }
+
+  @Override
+  public boolean isClosed ()
+  {
+    return m_aSocket.isClosed ();
+  }
+
+  @Override
+  public boolean isInputShutdown ()
+  {
+    return m_aSocket.isInputShutdown ();
+  }
+
+  @Override
+  public boolean isOutputShutdown ()
+  {
+    return m_aSocket.isOutputShutdown ();
+  }
+
+  @Override
+  public void setPerformancePreferences (final int nConnectionTime, final int nLatency, final int nBandwidth)
+  {
+    m_aSocket.setPerformancePreferences (nConnectionTime, nLatency, nBandwidth);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("socket", m_aSocket)
+                                       .append ("prereadBytes", m_aPreread == null ? 0 : m_aPreread.length)
+                                       .append ("requestCount", m_nRequestCount)
+                                       .append ("reusable", m_bReusable)
+                                       .append ("timedOut", m_bTimedOut)
+                                       .toString ();
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.annotation.Nonnull;
+import javax.net.ServerSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.processor.receiver.AbstractNetModule;
+import com.helger.as2lib.util.SocketUtil;
+
+/**
+ * Blocking acceptor: accepts connections from a {@link ServerSocket} and hands
+ * them over to the worker pool of the module right away.
+ *
+ * @author Philip Helger
+ */
+public final class MainThread extends AbstractListenerThread
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (MainThread.class);
+
+  private final AbstractNetModule m_aOwner;
+  private final ServerSocket m_aSocket;
+  private final boolean m_bReusePort;
+  // Only the thread that bound the socket closes it
+  private final boolean m_bOwnsSocket;
+  private volatile boolean m_bTerminated;
+
+  public MainThread (final AbstractNetModule aOwner, final String sAddress, final int nPort) throws IOException
+  {
+    this (aOwner, ServerSocketFactory.getDefault (), sAddress, nPort);
+  }
+
+  public MainThread (@Nonnull final AbstractNetModule aOwner,
+                     @Nonnull final ServerSocketFactory aFactory,
+                     final String sAddress,
+                     final int nPort) throws IOException
+  {
+    this (aOwner, aFactory, sAddress, nPort, false);
+  }
+
+  public MainThread (@Nonnull final AbstractNetModule aOwner,
+                     @Nonnull final ServerSocketFactory aFactory,
+                     final String sAddress,
+                     final int nPort,
+                     final boolean bReusePort) throws IOException
+  {
+    super ();
+    m_aOwner = aOwner;
+    m_aSocket = aFactory.createServerSocket ();
+    m_bReusePort = bReusePort && SocketUtil.setReusePort (m_aSocket);
+    m_bOwnsSocket = true;
+    try
+    {
+      if (sAddress != null)
+        m_aSocket.bind (new InetSocketAddress (sAddress, nPort));
+      else
+        m_aSocket.bind (new InetSocketAddress (nPort));
+    }
+    catch (final IOException ex)
+    {
+      m_aSocket.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Accept from a server socket shared with other threads.
+   *
+   * @param aOwner
+   *        The owning module.
+   * @param aSharedSocket
+   *        The bound server socket of another thread.
+   */
+  public MainThread (@Nonnull final AbstractNetModule aOwner, @Nonnull final ServerSocket aSharedSocket)
+  {
+    super ();
+    m_aOwner = aOwner;
+    m_aSocket = aSharedSocket;
+    m_bReusePort = false;
+    m_bOwnsSocket = false;
+  }
+
+  @Override
+  public boolean isReusePort ()
+  {
+    return m_bReusePort;
+  }
+
+  public AbstractNetModule getOwner ()
+  {
+    return m_aOwner;
+  }
+
+  public ServerSocket getSocket ()
+  {
+    return m_aSocket;
+  }
+
+  public boolean isTerminated ()
+  {
+    return m_bTerminated;
+  }
+
+  @Override
+  public void run ()
+  {
+    while (!isTerminated ())
+    {
+      try
+      {
+        final Socket aConn = m_aSocket.accept ();
+        onAccepted (getOwner ());
+        getOwner ().dispatchConnection (aConn);
+      }
+      catch (final IOException ex)
+      {
+        if (!isTerminated ())
+          m_aOwner.forceStop (ex);
+      }
+    }
+
+    s_aLogger.info ("exited");
+  }
+
+  @Override
+  public void terminate ()
+  {
+    m_bTerminated = true;
+  }
+
+  @Override
+  public void unblock ()
+  {
+    if (m_bOwnsSocket)
+    {
+      try
+      {
+        m_aSocket.close ();
+      }
+      catch (final IOException ex)
+      {
+        s_aLogger.warn ("Failed to close the server socket", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as2lib.util.RateMeter;
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * The connection statistics of a single
+ * {@link com.helger.as2lib.processor.receiver.AbstractNetModule}, updated by
+ * the accepting threads and the connection handlers.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class NetModuleMetrics
+{
+  private final RateMeter m_aAcceptRate = new RateMeter ();
+  private final AtomicLong m_aRejected = new AtomicLong ();
+  private final AtomicLong m_aTimedOut = new AtomicLong ();
+  private final AtomicLong m_aSSLHandshakes = new AtomicLong ();
+  private final AtomicLong m_aSSLResumedHandshakes = new AtomicLong ();
+
+  /**
+   * Record an accepted connection.
+   */
+  public void onAccepted ()
+  {
+    m_aAcceptRate.mark ();
+  }
+
+  /**
+   * Record a connection rejected because the worker pool was saturated.
+   */
+  public void onRejected ()
+  {
+    m_aRejected.incrementAndGet ();
+  }
+
+  /**
+   * Record a connection aborted because the client was too slow.
+   */
+  public void onTimedOut ()
+  {
+    m_aTimedOut.incrementAndGet ();
+  }
+
+  /**
+   * Record a successful TLS handshake.
+   *
+   * @param bResumed
+   *        <code>true</code> if a cached session was resumed
+   */
+  public void onSSLHandshake (final boolean bResumed)
+  {
+    m_aSSLHandshakes.incrementAndGet ();
+    if (bResumed)
+      m_aSSLResumedHandshakes.incrementAndGet ();
+  }
+
+  /**
+   * @return The total number of accepted connections.
+   */
+  @Nonnegative
+  public long getAcceptedCount ()
+  {
+    return m_aAcceptRate.getTotalCount ();
+  }
+
+  /**
+   * @return The number of connections accepted in the last complete second.
+   */
+  @Nonnegative
+  public long getAcceptRate ()
+  {
+    return m_aAcceptRate.getRatePerSecond ();
+  }
+
+  /**
+   * @return The highest number of connections accepted in a single second.
+   */
+  @Nonnegative
+  public long getPeakAcceptRate ()
+  {
+    return m_aAcceptRate.getPeakRatePerSecond ();
+  }
+
+  /**
+   * @return The number of connections rejected with 503 because the pool was
+   *         saturated.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  /**
+   * @return The number of connections aborted because the client was too slow
+   *         - read timeout, header deadline or minimum data rate.
+   */
+  @Nonnegative
+  public long getTimedOutCount ()
+  {
+    return m_aTimedOut.get ();
+  }
+
+  /**
+   * @return The number of successful TLS handshakes.
+   */
+  @Nonnegative
+  public long getSSLHandshakeCount ()
+  {
+    return m_aSSLHandshakes.get ();
+  }
+
+  /**
+   * @return The number of TLS handshakes that resumed a cached session.
+   */
+  @Nonnegative
+  public long getSSLResumedHandshakeCount ()
+  {
+    return m_aSSLResumedHandshakes.get ();
+  }
+
+  /**
+   * @return The ratio of resumed TLS handshakes to all TLS handshakes between
+   *         0 and 1.
+   */
+  public double getSSLResumptionRatio ()
+  {
+    final long nHandshakes = m_aSSLHandshakes.get ();
+    return nHandshakes == 0 ? 0 : (double) m_aSSLResumedHandshakes.get () / nHandshakes;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("accepted", getAcceptedCount ())
+                                       .append ("rejected", getRejectedCount ())
+                                       .append ("timedOut", getTimedOutCount ())
+                                       .append ("sslHandshakes", getSSLHandshakeCount ())
+                                       .append ("sslResumedHandshakes", getSSLResumedHandshakeCount ())
+                                       .toString ();
+  }
+}
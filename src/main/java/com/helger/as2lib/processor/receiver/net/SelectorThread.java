@@ -0,0 +1,558 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.processor.receiver.AbstractNetModule;
+import com.helger.as2lib.util.HTTPUtil;
+import com.helger.as2lib.util.SocketUtil;
+import com.phloc.commons.CGlobal;
+
+/**
+ * Non-blocking acceptor: a single thread accepts connections and reads the
+ * request line and the headers of all connections via a {@link Selector}. A
+ * connection is only handed over to the worker pool once the headers are
+ * complete, so slow or idle clients don't occupy a worker thread. Idle
+ * persistent connections are handed back by the workers and wait here for
+ * their next request as well.
+ *
+ * @author Philip Helger
+ */
+public final class SelectorThread extends AbstractListenerThread
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SelectorThread.class);
+  private static final int INITIAL_BUFFER_SIZE = 4 * CGlobal.BYTES_PER_KILOBYTE;
+  private static final byte [] HEADER_TOO_LARGE = ("HTTP/1.1 " +
+                                                   HttpURLConnection.HTTP_BAD_REQUEST +
+                                                   " " +
+                                                   HTTPUtil.getHTTPResponseMessage (HttpURLConnection.HTTP_BAD_REQUEST) +
+                                                   "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes ();
+
+  /** The state of a connection whose headers are not yet complete */
+  private static final class PendingConnection
+  {
+    private ByteBuffer m_aBuffer = ByteBuffer.allocate (INITIAL_BUFFER_SIZE);
+    private long m_nDeadline;
+    // Only set for persistent connections handed back by a worker
+    private final ConnectionSocket m_aConnSocket;
+    private final AdmissionController.Permit m_aPermit;
+    // True while a persistent connection waits for its next request
+    private boolean m_bIdle;
+
+    PendingConnection (final long nDeadline)
+    {
+      this (nDeadline, null, null);
+    }
+
+    PendingConnection (final long nDeadline,
+                       @Nullable final ConnectionSocket aConnSocket,
+                       @Nullable final AdmissionController.Permit aPermit)
+    {
+      m_nDeadline = nDeadline;
+      m_aConnSocket = aConnSocket;
+      m_aPermit = aPermit;
+      m_bIdle = aConnSocket != null;
+    }
+
+    void close (@Nonnull final SocketChannel aChannel)
+    {
+      try
+      {
+        aChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        // ignore
+      }
+      if (m_aPermit != null)
+        m_aPermit.release ();
+    }
+  }
+
+  private final AbstractNetModule m_aOwner;
+  private final int m_nMaxHeaderSize;
+  private final int m_nHeaderTimeoutMS;
+  private long m_nLastExpiryCheck = 0;
+  private final Selector m_aSelector;
+  private final ServerSocketChannel m_aServerChannel;
+  private final boolean m_bReusePort;
+  // Only the thread that bound the channel closes it
+  private final boolean m_bOwnsChannel;
+  private volatile boolean m_bTerminated;
+  // Idle persistent connections handed back by the workers
+  private final Queue <PendingConnection> m_aHandedBack = new ConcurrentLinkedQueue <PendingConnection> ();
+
+  public SelectorThread (@Nonnull final AbstractNetModule aOwner,
+                         @Nullable final String sAddress,
+                         final int nPort,
+                         final int nMaxHeaderSize) throws IOException
+  {
+    this (aOwner, sAddress, nPort, nMaxHeaderSize, 0);
+  }
+
+  public SelectorThread (@Nonnull final AbstractNetModule aOwner,
+                         @Nullable final String sAddress,
+                         final int nPort,
+                         final int nMaxHeaderSize,
+                         final int nHeaderTimeoutMS) throws IOException
+  {
+    this (aOwner, sAddress, nPort, nMaxHeaderSize, nHeaderTimeoutMS, false);
+  }
+
+  public SelectorThread (@Nonnull final AbstractNetModule aOwner,
+                         @Nullable final String sAddress,
+                         final int nPort,
+                         final int nMaxHeaderSize,
+                         final int nHeaderTimeoutMS,
+                         final boolean bReusePort) throws IOException
+  {
+    super ();
+    m_aOwner = aOwner;
+    m_nMaxHeaderSize = Math.max (INITIAL_BUFFER_SIZE, nMaxHeaderSize);
+    m_nHeaderTimeoutMS = nHeaderTimeoutMS;
+    m_aSelector = Selector.open ();
+    m_aServerChannel = ServerSocketChannel.open ();
+    m_bReusePort = bReusePort && SocketUtil.setReusePort (m_aServerChannel);
+    m_bOwnsChannel = true;
+    try
+    {
+      m_aServerChannel.configureBlocking (false);
+      if (sAddress != null)
+        m_aServerChannel.socket ().bind (new InetSocketAddress (sAddress, nPort));
+      else
+        m_aServerChannel.socket ().bind (new InetSocketAddress (nPort));
+      m_aServerChannel.register (m_aSelector, SelectionKey.OP_ACCEPT);
+    }
+    catch (final IOException ex)
+    {
+      m_aServerChannel.close ();
+      m_aSelector.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Accept from a non-blocking server socket channel shared with other
+   * selector threads.
+   *
+   * @param aOwner
+   *        The owning module.
+   * @param aSharedChannel
+   *        The bound channel of another selector thread.
+   * @param nMaxHeaderSize
+   *        Maximum size of request line and headers in bytes.
+   * @param nHeaderTimeoutMS
+   *        Milliseconds to receive the request line and headers.
+   */
+  public SelectorThread (@Nonnull final AbstractNetModule aOwner,
+                         @Nonnull final ServerSocketChannel aSharedChannel,
+                         final int nMaxHeaderSize,
+                         final int nHeaderTimeoutMS) throws IOException
+  {
+    super ();
+    m_aOwner = aOwner;
+    m_nMaxHeaderSize = Math.max (INITIAL_BUFFER_SIZE, nMaxHeaderSize);
+    m_nHeaderTimeoutMS = nHeaderTimeoutMS;
+    m_aSelector = Selector.open ();
+    m_aServerChannel = aSharedChannel;
+    m_bReusePort = false;
+    m_bOwnsChannel = false;
+    try
+    {
+      m_aServerChannel.register (m_aSelector, SelectionKey.OP_ACCEPT);
+    }
+    catch (final IOException ex)
+    {
+      m_aSelector.close ();
+      throw ex;
+    }
+  }
+
+  @Nonnull
+  public ServerSocketChannel getServerChannel ()
+  {
+    return m_aServerChannel;
+  }
+
+  @Override
+  public boolean isReusePort ()
+  {
+    return m_bReusePort;
+  }
+
+  public AbstractNetModule getOwner ()
+  {
+    return m_aOwner;
+  }
+
+  public boolean isTerminated ()
+  {
+    return m_bTerminated;
+  }
+
+  @Override
+  public void terminate ()
+  {
+    m_bTerminated = true;
+  }
+
+  @Override
+  public void unblock ()
+  {
+    m_aSelector.wakeup ();
+  }
+
+  /**
+   * Take back a persistent connection while it waits for the next request,
+   * so that it doesn't occupy a worker thread. Once the headers of the next
+   * request are complete, it is dispatched again with the same permit.
+   *
+   * @param aConnSocket
+   *        The connection. Must not contain buffered data.
+   * @param aPermit
+   *        The admission permit of the connection. May be <code>null</code>.
+   * @param nIdleTimeoutMS
+   *        Milliseconds after which the connection is closed if no new
+   *        request started.
+   * @return <code>false</code> if the connection can't be taken back and the
+   *         caller stays responsible for it.
+   */
+  public boolean returnIdleConnection (@Nonnull final ConnectionSocket aConnSocket,
+                                       @Nullable final AdmissionController.Permit aPermit,
+                                       final int nIdleTimeoutMS)
+  {
+    if (isTerminated () || aConnSocket.getChannel () == null)
+      return false;
+    final long nDeadline = nIdleTimeoutMS > 0 ? System.currentTimeMillis () + nIdleTimeoutMS : 0;
+    m_aHandedBack.add (new PendingConnection (nDeadline, aConnSocket, aPermit));
+    // The selector thread may have drained the queue already
+    if (isTerminated ())
+      _closeHandedBack ();
+    else
+      m_aSelector.wakeup ();
+    return true;
+  }
+
+  // Register the connections handed back by the workers - only called from
+  // the selector thread
+  private void _registerHandedBack ()
+  {
+    PendingConnection aPending;
+    while ((aPending = m_aHandedBack.poll ()) != null)
+    {
+      final SocketChannel aChannel = aPending.m_aConnSocket.getChannel ();
+      try
+      {
+        aChannel.configureBlocking (false);
+        aChannel.register (m_aSelector, SelectionKey.OP_READ, aPending);
+      }
+      catch (final IOException ex)
+      {
+        aPending.close (aChannel);
+      }
+    }
+  }
+
+  private void _closeHandedBack ()
+  {
+    PendingConnection aPending;
+    while ((aPending = m_aHandedBack.poll ()) != null)
+      aPending.close (aPending.m_aConnSocket.getChannel ());
+  }
+
+  private void _accept () throws IOException
+  {
+    SocketChannel aChannel;
+    while ((aChannel = m_aServerChannel.accept ()) != null)
+    {
+      onAccepted (m_aOwner);
+      aChannel.configureBlocking (false);
+      final long nDeadline = m_nHeaderTimeoutMS > 0 ? System.currentTimeMillis () + m_nHeaderTimeoutMS : 0;
+      aChannel.register (m_aSelector, SelectionKey.OP_READ, new PendingConnection (nDeadline));
+    }
+  }
+
+  // Check whether the buffer contains an empty line terminating the headers
+  private static boolean _isHeaderComplete (@Nonnull final ByteBuffer aBuffer, final int nOldPos)
+  {
+    final byte [] aArray = aBuffer.array ();
+    final int nEnd = aBuffer.position ();
+    for (int i = Math.max (1, nOldPos - 3); i < nEnd; ++i)
+      if (aArray[i] == '\n')
+      {
+        if (aArray[i - 1] == '\n')
+          return true;
+        if (i >= 3 && aArray[i - 1] == '\r' && aArray[i - 2] == '\n' && aArray[i - 3] == '\r')
+          return true;
+      }
+    return false;
+  }
+
+  // Returns true if the connection is ready to be dispatched
+  private boolean _read (@Nonnull final SelectionKey aKey) throws IOException
+  {
+    final SocketChannel aChannel = (SocketChannel) aKey.channel ();
+    final PendingConnection aPending = (PendingConnection) aKey.attachment ();
+    ByteBuffer aBuffer = aPending.m_aBuffer;
+    while (true)
+    {
+      if (!aBuffer.hasRemaining ())
+      {
+        if (aBuffer.capacity () >= m_nMaxHeaderSize)
+        {
+          s_aLogger.warn ("Request headers from " +
+                          aChannel.socket ().getInetAddress ().getHostAddress () +
+                          " exceed " +
+                          m_nMaxHeaderSize +
+                          " bytes");
+          aChannel.write (ByteBuffer.wrap (HEADER_TOO_LARGE));
+          _close (aKey);
+          return false;
+        }
+        final ByteBuffer aNewBuffer = ByteBuffer.allocate (Math.min (aBuffer.capacity () * 2, m_nMaxHeaderSize));
+        aBuffer.flip ();
+        aNewBuffer.put (aBuffer);
+        aBuffer = aNewBuffer;
+        aPending.m_aBuffer = aBuffer;
+      }
+
+      final int nOldPos = aBuffer.position ();
+      final int nRead = aChannel.read (aBuffer);
+      if (nRead < 0)
+      {
+        // Client closed the connection before sending all headers
+        _close (aKey);
+        return false;
+      }
+      if (nRead == 0)
+        return false;
+      if (aPending.m_bIdle)
+      {
+        // The next request started - the headers must arrive in time
+        aPending.m_bIdle = false;
+        aPending.m_nDeadline = m_nHeaderTimeoutMS > 0 ? System.currentTimeMillis () + m_nHeaderTimeoutMS : 0;
+      }
+      if (_isHeaderComplete (aBuffer, nOldPos))
+        return true;
+    }
+  }
+
+  private static void _close (@Nonnull final SelectionKey aKey)
+  {
+    aKey.cancel ();
+    final Object aAttachment = aKey.attachment ();
+    if (aAttachment instanceof PendingConnection)
+      ((PendingConnection) aAttachment).close ((SocketChannel) aKey.channel ());
+    else
+      try
+      {
+        aKey.channel ().close ();
+      }
+      catch (final IOException ex)
+      {
+        // ignore
+      }
+  }
+
+  private void _dispatch (@Nonnull final SelectionKey aKey)
+  {
+    final SocketChannel aChannel = (SocketChannel) aKey.channel ();
+    final PendingConnection aPending = (PendingConnection) aKey.attachment ();
+    final ByteBuffer aBuffer = aPending.m_aBuffer;
+    try
+    {
+      // The key was cancelled and flushed by selectNow, so the channel may
+      // go back to blocking mode for the stream based handlers
+      aChannel.configureBlocking (true);
+
+      final byte [] aPreread = new byte [aBuffer.position ()];
+      System.arraycopy (aBuffer.array (), 0, aPreread, 0, aPreread.length);
+      if (aPending.m_aConnSocket != null)
+      {
+        // The next request of a persistent connection
+        aPending.m_aConnSocket.resume (aPreread);
+        m_aOwner.redispatchConnection (aPending.m_aConnSocket, aPending.m_aPermit, this);
+      }
+      else
+        m_aOwner.dispatchConnection (new ConnectionSocket (aChannel.socket (), aPreread), this);
+    }
+    catch (final IOException ex)
+    {
+      _close (aKey);
+    }
+  }
+
+  // Close all connections that did not send their headers in time and all
+  // persistent connections that were idle for too long
+  private void _closeExpired ()
+  {
+    final long nNow = System.currentTimeMillis ();
+    if (nNow - m_nLastExpiryCheck < CGlobal.MILLISECONDS_PER_SECOND)
+      return;
+    m_nLastExpiryCheck = nNow;
+
+    for (final SelectionKey aKey : m_aSelector.keys ())
+    {
+      final Object aAttachment = aKey.attachment ();
+      if (!aKey.isValid () || !(aAttachment instanceof PendingConnection))
+        continue;
+      final PendingConnection aPending = (PendingConnection) aAttachment;
+      if (aPending.m_nDeadline <= 0 || aPending.m_nDeadline >= nNow)
+        continue;
+      // An idle connection is not considered as timed out
+      if (aPending.m_bIdle)
+        _close (aKey);
+      else
+      {
+        m_aOwner.getMetrics ().onTimedOut ();
+        s_aLogger.warn ("Aborted connection from " +
+                        ((SocketChannel) aKey.channel ()).socket ().getInetAddress ().getHostAddress () +
+                        " - headers not received within " +
+                        m_nHeaderTimeoutMS +
+                        " ms");
+        _close (aKey);
+      }
+    }
+  }
+
+  private void _closeAll ()
+  {
+    for (final SelectionKey aKey : m_aSelector.keys ())
+      _close (aKey);
+    _closeHandedBack ();
+    try
+    {
+      m_aSelector.close ();
+    }
+    catch (final IOException ex)
+    {
+      // ignore
+    }
+    if (m_bOwnsChannel)
+    {
+      try
+      {
+        m_aServerChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        // ignore
+      }
+    }
+  }
+
+  @Override
+  public void run ()
+  {
+    final List <SelectionKey> aReady = new ArrayList <SelectionKey> ();
+    try
+    {
+      while (!isTerminated ())
+      {
+        m_aSelector.select (CGlobal.MILLISECONDS_PER_SECOND);
+        if (isTerminated ())
+          break;
+        _registerHandedBack ();
+
+        final Iterator <SelectionKey> it = m_aSelector.selectedKeys ().iterator ();
+        while (it.hasNext ())
+        {
+          final SelectionKey aKey = it.next ();
+          it.remove ();
+          if (!aKey.isValid ())
+            continue;
+          try
+          {
+            if (aKey.isAcceptable ())
+              _accept ();
+            else
+              if (aKey.isReadable () && _read (aKey))
+              {
+                aKey.cancel ();
+                aReady.add (aKey);
+              }
+          }
+          catch (final IOException ex)
+          {
+            if (aKey.channel () == m_aServerChannel)
+              throw ex;
+            _close (aKey);
+          }
+        }
+
+        _closeExpired ();
+
+        if (!aReady.isEmpty ())
+        {
+          // Deregister the cancelled keys
+          m_aSelector.selectNow ();
+          for (final SelectionKey aKey : aReady)
+            _dispatch (aKey);
+          aReady.clear ();
+        }
+      }
+    }
+    catch (final IOException ex)
+    {
+      if (!isTerminated ())
+        m_aOwner.forceStop (ex);
+    }
+    finally
+    {
+      // No more connections may be handed back
+      m_bTerminated = true;
+      _closeAll ();
+    }
+
+    s_aLogger.info ("exited");
+  }
+}
@@ -32,6 +32,7 @@
  */
 package com.helger.as2lib.processor.sender;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,7 +40,9 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -70,15 +73,58 @@ import com.helger.as2lib.util.DateUtil;
 import com.helger.as2lib.util.DispositionOptions;
 import com.helger.as2lib.util.DispositionType;
 import com.helger.as2lib.util.IOUtil;
+import com.phloc.commons.io.file.FileUtils;
 import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
 import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.mutable.MutableLong;
+import com.phloc.commons.mutable.Wrapper;
 import com.phloc.commons.string.StringParser;
 import com.phloc.commons.timing.StopWatch;
 
 public class AS2SenderModule extends AbstractHttpSenderModule
 {
+  // Directory to keep the secured data of messages that are resent - optional.
+  // A file is written only after a failed transfer and deleted once the
+  // message was sent or abandoned. Files of resend entries that were removed
+  // manually are not deleted - files older than the maximum resend period can
+  // be deleted safely.
+  public static final String PARAM_SECURED_CACHE_DIRECTORY = "securedcachedir";
+
+  // Message attributes of the secured data kept for a resend
+  public static final String MA_SECURED_FILE = "secured_file";
+  public static final String MA_SECURED_CONTENT_TYPE = "secured_content_type";
+  public static final String MA_SECURED_MIC = "secured_mic";
+
+  // Bounds of the adaptive limit of concurrent messages per URL. A maximum
+  // of 0 disables the limit. Partnerships may override both.
+  public static final String PARAM_MIN_CONCURRENCY = "minconcurrency";
+  public static final int DEFAULT_MIN_CONCURRENCY = 1;
+  public static final String PARAM_MAX_CONCURRENCY = "maxconcurrency";
+  public static final int DEFAULT_MAX_CONCURRENCY = 0;
+  // Milliseconds to wait for a free slot before the message is resent
+  public static final String PARAM_CONCURRENCY_TIMEOUT = "concurrencytimeout";
+  public static final int DEFAULT_CONCURRENCY_TIMEOUT = 60000;
+  // Milliseconds a failed endpoint of a partnership with several URLs is not
+  // used
+  public static final String PARAM_ENDPOINT_RETRY_INTERVAL = "endpointretryinterval";
+  public static final int DEFAULT_ENDPOINT_RETRY_INTERVAL = 30000;
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (AS2SenderModule.class);
 
+  // Shared by all sender modules
+  private static final AdaptiveConcurrencyLimiter s_aConcurrencyLimiter = new AdaptiveConcurrencyLimiter ();
+  private static final HttpEndpointSelector s_aEndpointSelector = new HttpEndpointSelector ();
+
+  /**
+   * @return The concurrency limiter shared by all AS2 sender modules. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static AdaptiveConcurrencyLimiter getConcurrencyLimiter ()
+  {
+    return s_aConcurrencyLimiter;
+  }
+
   public boolean canHandle (@Nonnull final String sAction,
                             @Nonnull final IMessage aMsg,
                             @Nullable final Map <String, Object> aOptions)
@@ -100,124 +146,453 @@ public class AS2SenderModule extends AbstractHttpSenderModule
     checkRequired (aMsg);
 
     final int nRetries = getRetries (aOptions);
+    // Only possible if the message may be resent
+    final boolean bCacheSecured = nRetries > 0 && getAttributeAsString (PARAM_SECURED_CACHE_DIRECTORY) != null;
 
     try
     {
-      // encrypt and/or sign the message if needed
-      final MimeBodyPart aSecuredData = secure (aMsg);
+      sendMessage (aMsg, bCacheSecured);
+    }
+    catch (final HttpResponseException ex)
+    {
+      // Resend if the HTTP Response has an error code
+      s_aLogger.error ("error hre " + ex.getMessage ());
+      ex.terminate ();
+      _resend (aMsg, ex, nRetries);
+    }
+    catch (final IOException ex)
+    {
+      // Resend if a network error occurs during transmission
+      final WrappedException wioe = new WrappedException (ex);
+      wioe.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
+      wioe.terminate ();
+
+      _resend (aMsg, wioe, nRetries);
+    }
+    catch (final Exception ex)
+    {
+      // Propagate error if it can't be handled by a resend
+      discardSecuredCache (aMsg);
+      throw new WrappedException (ex);
+    }
+  }
+
+  protected void sendMessage (@Nonnull final IMessage aMsg) throws Exception
+  {
+    sendMessage (aMsg, false);
+  }
+
+  /**
+   * @return The selector of the endpoints of partnerships with several URLs
+   *         shared by all AS2 sender modules. Never <code>null</code>.
+   */
+  @Nonnull
+  public static HttpEndpointSelector getEndpointSelector ()
+  {
+    return s_aEndpointSelector;
+  }
+
+  /**
+   * Acquire a slot of the adaptive concurrency limit of the URL.
+   *
+   * @param aPartnership
+   *        The partnership of the message
+   * @param sUrl
+   *        The destination URL
+   * @return The permit to release after the transfer or <code>null</code> if
+   *         the limit is disabled.
+   * @throws SendSlotTimeoutException
+   *         If no slot became available in time
+   */
+  @Nullable
+  protected AdaptiveConcurrencyLimiter.Permit acquireSendPermit (@Nonnull final Partnership aPartnership,
+                                                                 @Nonnull final String sUrl) throws SendSlotTimeoutException
+  {
+    final int nMax = StringParser.parseInt (aPartnership.getAttribute (CPartnershipIDs.PA_MAX_CONCURRENT_SENDS),
+                                            getAttributeAsInt (PARAM_MAX_CONCURRENCY, DEFAULT_MAX_CONCURRENCY));
+    if (nMax <= 0)
+      return null;
+    final int nMin = StringParser.parseInt (aPartnership.getAttribute (CPartnershipIDs.PA_MIN_CONCURRENT_SENDS),
+                                            getAttributeAsInt (PARAM_MIN_CONCURRENCY, DEFAULT_MIN_CONCURRENCY));
+
+    final AdaptiveConcurrencyLimiter.Permit aPermit = s_aConcurrencyLimiter.acquire (sUrl,
+                                                                                     nMin,
+                                                                                     nMax,
+                                                                                     getAttributeAsInt (PARAM_CONCURRENCY_TIMEOUT,
+                                                                                                        DEFAULT_CONCURRENCY_TIMEOUT));
+    if (aPermit == null)
+      throw new SendSlotTimeoutException ("No free send slot for " +
+                                          sUrl +
+                                          " - concurrency limit is " +
+                                          s_aConcurrencyLimiter.getLimit (sUrl));
+    return aPermit;
+  }
+
+  @Nullable
+  private static File _getSecuredCacheFile (@Nonnull final IMessage aMsg)
+  {
+    final String sFilename = aMsg.getAttribute (MA_SECURED_FILE);
+    if (sFilename == null)
+      return null;
+    final File aFile = new File (sFilename);
+    return aFile.isFile () ? aFile : null;
+  }
+
+  /**
+   * Delete the secured data kept for a resend of the message, if any.
+   *
+   * @param aMsg
+   *        The message
+   */
+  protected void discardSecuredCache (@Nonnull final IMessage aMsg)
+  {
+    final File aFile = _getSecuredCacheFile (aMsg);
+    if (aFile != null && IOUtil.getFileOperationManager ().deleteFile (aFile).isFailure ())
+      s_aLogger.warn ("Failed to delete secured data " + aFile.getAbsolutePath () + aMsg.getLoggingText ());
+    aMsg.setAttribute (MA_SECURED_FILE, null);
+    aMsg.setAttribute (MA_SECURED_CONTENT_TYPE, null);
+    aMsg.setAttribute (MA_SECURED_MIC, null);
+  }
+
+  /**
+   * Secure and transmit the message and receive a synchronous MDN if
+   * requested. Network and HTTP errors are not handled here, so no resend is
+   * triggered.
+   *
+   * @param aMsg
+   *        The message to send. It was already checked with
+   *        {@link #checkRequired(IMessage)}.
+   * @param bCacheSecured
+   *        <code>true</code> to keep the secured data and its MIC if the
+   *        transfer failed, so that a resend can transmit it without securing
+   *        the message again. If the message already contains cached secured
+   *        data, it is always used.
+   * @throws HttpResponseException
+   *         If the receiver answered with an HTTP error code
+   * @throws IOException
+   *         In case of a network error
+   * @throws DispositionException
+   *         If the received MDN contains an error disposition
+   * @throws Exception
+   *         In case securing the message failed
+   */
+  protected void sendMessage (@Nonnull final IMessage aMsg, final boolean bCacheSecured) throws Exception
+  {
+    // Secured data from a previous attempt
+    final File aCachedFile = _getSecuredCacheFile (aMsg);
+    final Wrapper <MimeBodyPart> aMICSource = new Wrapper <MimeBodyPart> (aMsg.getData ());
+    MimeBodyPart aSecuredData = null;
+    if (aCachedFile != null)
+    {
+      aMsg.setContentType (aMsg.getAttribute (MA_SECURED_CONTENT_TYPE));
+      s_aLogger.info ("reusing secured data from previous attempt" + aMsg.getLoggingText ());
+    }
+    else
+    {
+      // compress, encrypt and/or sign the message if needed
+      aSecuredData = secure (aMsg, aMICSource);
       aMsg.setContentType (aSecuredData.getContentType ());
+    }
 
-      // Create the HTTP connection and set up headers
-      final String sUrl = aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_URL);
-      final HttpURLConnection aConn = getConnection (sUrl, true, true, false, "POST");
+    // Try the endpoints of the partner until one is reachable
+    final String sURLs = aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_URL);
+    final String sSelection = aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_URL_SELECTION);
+    final long nRetryIntervalMS = getAttributeAsInt (PARAM_ENDPOINT_RETRY_INTERVAL, DEFAULT_ENDPOINT_RETRY_INTERVAL);
+    final Set <HttpEndpointSelector.Endpoint> aTried = new HashSet <HttpEndpointSelector.Endpoint> ();
+    HttpEndpointSelector.Endpoint aEndpoint = s_aEndpointSelector.select (sURLs, sSelection, aTried);
+    if (aEndpoint == null)
+      throw new InvalidParameterException ("No URL found", aMsg, CPartnershipIDs.PA_AS2_URL, sURLs);
+    while (true)
+    {
+      final HttpEndpointSelector.Endpoint aCurrent = aEndpoint;
+      aTried.add (aCurrent);
+      // Only connect, network and server errors mark the endpoint as failed -
+      // not local errors like securing the message or waiting for a send slot
+      boolean bFailed = false;
       try
       {
-        updateHttpHeaders (aConn, aMsg);
-        aMsg.setAttribute (CNetAttribute.MA_DESTINATION_IP, aConn.getURL ().getHost ());
-        aMsg.setAttribute (CNetAttribute.MA_DESTINATION_PORT, Integer.toString (aConn.getURL ().getPort ()));
-        final DispositionOptions aDispOptions = new DispositionOptions (aConn.getRequestProperty (CAS2Header.HEADER_DISPOSITION_NOTIFICATION_OPTIONS));
+        _sendTo (aMsg, aCurrent.getURL (), aCachedFile, aSecuredData, aMICSource, bCacheSecured);
+        return;
+      }
+      catch (final SendSlotTimeoutException ex)
+      {
+        // Nothing was sent - resend later to the same endpoints
+        throw ex;
+      }
+      catch (final IOException ex)
+      {
+        bFailed = true;
+        aEndpoint = _selectNextEndpoint (aMsg, aCurrent, sURLs, sSelection, aTried, ex);
+        if (aEndpoint == null)
+        {
+          if (bCacheSecured)
+            _writeSecuredCache (aMsg, aSecuredData);
+          throw ex;
+        }
+      }
+      catch (final HttpResponseException ex)
+      {
+        bFailed = ex.getCode () >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        aEndpoint = bFailed ? _selectNextEndpoint (aMsg, aCurrent, sURLs, sSelection, aTried, ex) : null;
+        if (aEndpoint == null)
+        {
+          if (bCacheSecured)
+            _writeSecuredCache (aMsg, aSecuredData);
+          throw ex;
+        }
+      }
+      finally
+      {
+        s_aEndpointSelector.release (aCurrent, bFailed, nRetryIntervalMS);
+      }
+    }
+  }
 
-        // Calculate and get the original mic
-        final boolean bIncludeHeaders = aMsg.getHistory ().getItemCount () > 1;
+  /**
+   * @return The next healthy endpoint that was not tried yet or
+   *         <code>null</code> if none is left.
+   */
+  @Nullable
+  private static HttpEndpointSelector.Endpoint _selectNextEndpoint (@Nonnull final IMessage aMsg,
+                                                                    @Nonnull final HttpEndpointSelector.Endpoint aFailed,
+                                                                    @Nonnull final String sURLs,
+                                                                    @Nullable final String sSelection,
+                                                                    @Nonnull final Set <HttpEndpointSelector.Endpoint> aTried,
+                                                                    @Nonnull final Exception ex)
+  {
+    final HttpEndpointSelector.Endpoint ret = s_aEndpointSelector.select (sURLs, sSelection, aTried);
+    if (ret != null)
+      s_aLogger.warn ("sending to " +
+                      aFailed.getURL () +
+                      " failed (" +
+                      ex.getMessage () +
+                      ") - trying " +
+                      ret.getURL () +
+                      aMsg.getLoggingText ());
+    return ret;
+  }
+
+  /**
+   * Transmit the secured data to a single endpoint within its concurrency
+   * limit.
+   */
+  private void _sendTo (@Nonnull final IMessage aMsg,
+                        @Nonnull final String sUrl,
+                        @Nullable final File aCachedFile,
+                        @Nullable final MimeBodyPart aSecuredData,
+                        @Nonnull final Wrapper <MimeBodyPart> aMICSource,
+                        final boolean bCacheSecured) throws Exception
+  {
+    checkCircuitBreaker (sUrl);
+    final AdaptiveConcurrencyLimiter.Permit aPermit = acquireSendPermit (aMsg.getPartnership (), sUrl);
+    // Time the receiver needed to respond, negative on network and server
+    // errors
+    final MutableLong aResponseMS = new MutableLong (-1);
+    final MutableLong aBytes = new MutableLong (0);
+    try
+    {
+      _transmit (aMsg, sUrl, aCachedFile, aSecuredData, aMICSource, bCacheSecured, aResponseMS, aBytes);
+    }
+    finally
+    {
+      if (aPermit != null)
+        aPermit.release (aResponseMS.longValue (), aBytes.longValue ());
+    }
+  }
 
-        final String sMIC = AS2Util.getCryptoHelper ().calculateMIC (aMsg.getData (),
-                                                                     aDispOptions.getMICAlg (),
-                                                                     bIncludeHeaders);
+  /**
+   * Transmit the secured data and receive a synchronous MDN if requested.
+   *
+   * @param aResponseMS
+   *        Filled with the milliseconds the receiver needed to respond after the
+   *        data was transferred, unless the transfer failed or the response is
+   *        a server error. Also filled if an exception is thrown afterwards,
+   *        e.g. for a client error or an error disposition.
+   * @param aBytes
+   *        Filled with the number of bytes transferred
+   */
+  private void _transmit (@Nonnull final IMessage aMsg,
+                          @Nonnull final String sUrl,
+                          @Nullable final File aCachedFile,
+                          @Nullable final MimeBodyPart aSecuredData,
+                          @Nonnull final Wrapper <MimeBodyPart> aMICSource,
+                          final boolean bCacheSecured,
+                          @Nonnull final MutableLong aResponseMS,
+                          @Nonnull final MutableLong aBytes) throws Exception
+  {
+    final HttpURLConnection aConn = getConnection (sUrl, true, true, false, "POST");
+    boolean bReusable = false;
+    // Only errors after connecting are reported to the circuit breaker
+    boolean bConnecting = false;
+    boolean bUploaded = false;
+    try
+    {
+      updateHttpHeaders (aConn, aMsg);
+      aMsg.setAttribute (CNetAttribute.MA_DESTINATION_IP, aConn.getURL ().getHost ());
+      aMsg.setAttribute (CNetAttribute.MA_DESTINATION_PORT, Integer.toString (aConn.getURL ().getPort ()));
+      final DispositionOptions aDispOptions = new DispositionOptions (aConn.getRequestProperty (CAS2Header.HEADER_DISPOSITION_NOTIFICATION_OPTIONS));
+
+      // Calculate and get the original mic
+      String sMIC = aCachedFile != null ? aMsg.getAttribute (MA_SECURED_MIC) : null;
+      if (sMIC == null)
+      {
+        final boolean bIncludeHeaders = aMsg.getHistory ().getItemCount () > 1;
+        sMIC = AS2Util.getCryptoHelper ().calculateMIC (aMICSource.get (), aDispOptions.getMICAlg (), bIncludeHeaders);
+        // Needed if the secured data is cached after a failed transfer
+        if (bCacheSecured)
+          aMsg.setAttribute (MA_SECURED_MIC, sMIC);
+      }
 
-        if (aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_RECEIPT_OPTION) != null)
-        {
-          // if yes : PA_AS2_RECEIPT_OPTION) != null
-          // then keep the original mic & message id.
-          // then wait for the another HTTP call by receivers
+      if (aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_RECEIPT_OPTION) != null)
+      {
+        // if yes : PA_AS2_RECEIPT_OPTION) != null
+        // then keep the original mic & message id.
+        // then wait for the another HTTP call by receivers
 
-          storePendingInfo ((AS2Message) aMsg, sMIC);
-        }
+        storePendingInfo ((AS2Message) aMsg, sMIC);
+      }
 
-        s_aLogger.info ("connecting to " + sUrl + aMsg.getLoggingText ());
+      s_aLogger.info ("connecting to " + sUrl + aMsg.getLoggingText ());
 
-        // Note: closing this stream causes connection abort errors on some AS2
-        // servers
-        final OutputStream aMsgOS = aConn.getOutputStream ();
+      // Stream the secured data if its length is known
+      setStreamingMode (aConn, aCachedFile != null ? aCachedFile.length () : getContentLength (aSecuredData));
 
-        // Transfer the data
-        final InputStream aMsgIS = aSecuredData.getInputStream ();
+      InputStream aCachedIS = null;
+      if (aCachedFile != null)
+      {
+        aCachedIS = FileUtils.getInputStream (aCachedFile);
+        if (aCachedIS == null)
+          throw new IOException ("Failed to read secured data " + aCachedFile.getAbsolutePath ());
+      }
 
-        final StopWatch aSW = new StopWatch (true);
-        final long nBytes = IOUtil.copy (aMsgIS, aMsgOS);
-        aSW.stop ();
-        s_aLogger.info ("transferred " + IOUtil.getTransferRate (nBytes, aSW) + aMsg.getLoggingText ());
+      // Note: closing this stream causes connection abort errors on some AS2
+      // servers
+      bConnecting = true;
+      final OutputStream aMsgOS = aConn.getOutputStream ();
 
-        // Check the HTTP Response code
-        final int nResponseCode = aConn.getResponseCode ();
-        if (nResponseCode != HttpURLConnection.HTTP_OK &&
-            nResponseCode != HttpURLConnection.HTTP_CREATED &&
-            nResponseCode != HttpURLConnection.HTTP_ACCEPTED &&
-            nResponseCode != HttpURLConnection.HTTP_PARTIAL &&
-            nResponseCode != HttpURLConnection.HTTP_NO_CONTENT)
-        {
-          s_aLogger.error ("Error url " + sUrl + " rc " + nResponseCode + " rm " + aConn.getResponseMessage ());
-          throw new HttpResponseException (sUrl, nResponseCode, aConn.getResponseMessage ());
-        }
+      // Transfer the data
+      final StopWatch aSW = new StopWatch (true);
+      long nBytes;
+      if (aCachedIS != null)
+        nBytes = IOUtil.copy (aCachedIS, aMsgOS);
+      else
+        nBytes = IOUtil.copy (aSecuredData.getInputStream (), aMsgOS);
+      aSW.stop ();
+      bUploaded = true;
+      aBytes.set (nBytes);
+      s_aLogger.info ("transferred " + IOUtil.getTransferRate (nBytes, aSW) + aMsg.getLoggingText ());
+
+      // Check the HTTP Response code
+      final StopWatch aResponseSW = new StopWatch (true);
+      final int nResponseCode = aConn.getResponseCode ();
+      final long nResponseMS = aResponseSW.stopAndGetMillis ();
+      reportCircuitBreaker (aConn, nResponseCode < HttpURLConnection.HTTP_INTERNAL_ERROR);
+      if (nResponseCode < HttpURLConnection.HTTP_INTERNAL_ERROR)
+        aResponseMS.set (nResponseMS);
+      if (nResponseCode != HttpURLConnection.HTTP_OK &&
+          nResponseCode != HttpURLConnection.HTTP_CREATED &&
+          nResponseCode != HttpURLConnection.HTTP_ACCEPTED &&
+          nResponseCode != HttpURLConnection.HTTP_PARTIAL &&
+          nResponseCode != HttpURLConnection.HTTP_NO_CONTENT)
+      {
+        s_aLogger.error ("Error url " + sUrl + " rc " + nResponseCode + " rm " + aConn.getResponseMessage ());
+        throw new HttpResponseException (sUrl, nResponseCode, aConn.getResponseMessage ());
+      }
 
-        // Asynch MDN 2007-03-12
+      // Asynch MDN 2007-03-12
+      // Receive an MDN
+      try
+      {
         // Receive an MDN
-        try
+        if (aMsg.isRequestingMDN ())
         {
-          // Receive an MDN
-          if (aMsg.isRequestingMDN ())
+          // Check if the AsyncMDN is required
+          if (aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_RECEIPT_OPTION) == null)
           {
-            // Check if the AsyncMDN is required
-            if (aMsg.getPartnership ().getAttribute (CPartnershipIDs.PA_AS2_RECEIPT_OPTION) == null)
-            {
-              // go ahead to receive sync MDN
-              receiveMDN ((AS2Message) aMsg, aConn, sMIC);
-              s_aLogger.info ("message sent" + aMsg.getLoggingText ());
-            }
+            // go ahead to receive sync MDN
+            receiveMDN ((AS2Message) aMsg, aConn, sMIC);
+            s_aLogger.info ("message sent" + aMsg.getLoggingText ());
           }
         }
-        catch (final DispositionException ex)
-        {
-          // If a disposition error hasn't been handled, the message transfer
-          // was not successful
-          throw ex;
-        }
-        catch (final OpenAS2Exception ex)
-        {
-          // Don't resend or fail, just log an error if one occurs while
-          // receiving the MDN
-          s_aLogger.error (OpenAS2Exception.SOURCE_MESSAGE, ex);
-          final OpenAS2Exception oae2 = new OpenAS2Exception ("Message was sent but an error occured while receiving the MDN");
-          oae2.initCause (ex);
-          oae2.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
-          oae2.terminate ();
-        }
       }
-      finally
+      catch (final DispositionException ex)
       {
-        aConn.disconnect ();
+        // If a disposition error hasn't been handled, the message transfer
+        // was not successful
+        throw ex;
       }
+      catch (final OpenAS2Exception ex)
+      {
+        // Don't resend or fail, just log an error if one occurs while
+        // receiving the MDN
+        s_aLogger.error (OpenAS2Exception.SOURCE_MESSAGE, ex);
+        final OpenAS2Exception oae2 = new OpenAS2Exception ("Message was sent but an error occured while receiving the MDN");
+        oae2.initCause (ex);
+        oae2.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
+        oae2.terminate ();
+      }
+
+      // Keep the connection alive for the next message
+      bReusable = consumeResponse (aConn);
+
+      // The message was transferred - no resend
+      discardSecuredCache (aMsg);
     }
-    catch (final HttpResponseException ex)
+    catch (final IOException ex)
     {
-      // Resend if the HTTP Response has an error code
-      s_aLogger.error ("error hre " + ex.getMessage ());
-      ex.terminate ();
-      _resend (aMsg, ex, nRetries);
+      // E.g. a read timeout while waiting for the synchronous MDN after the
+      // upload still means the receiver is available
+      if (bConnecting)
+        reportCircuitBreaker (aConn, bUploaded);
+      throw ex;
     }
-    catch (final IOException ex)
+    finally
     {
-      // Resend if a network error occurs during transmission
-      final WrappedException wioe = new WrappedException (ex);
-      wioe.addSource (OpenAS2Exception.SOURCE_MESSAGE, aMsg);
-      wioe.terminate ();
+      releaseConnection (aConn, bReusable);
+    }
+  }
 
-      _resend (aMsg, wioe, nRetries);
+  /**
+   * Write the secured data to a file of the secured cache directory after a
+   * failed transfer, so that a resend doesn't need to secure the message
+   * again. Nothing is written on the first attempt, so successful transfers
+   * cause no additional IO. Only once the file is complete, it is referenced in
+   * the message attributes, together with the content type. Errors are only
+   * logged - the resend secures the message again in this case.
+   */
+  private void _writeSecuredCache (@Nonnull final IMessage aMsg, @Nullable final MimeBodyPart aSecuredData)
+  {
+    // Already cached or the MIC was never calculated
+    if (aSecuredData == null || aMsg.getAttribute (MA_SECURED_MIC) == null)
+      return;
+
+    File aCacheFile = null;
+    boolean bComplete = false;
+    try
+    {
+      final File aCacheDir = IOUtil.getDirectoryFile (getAttributeAsString (PARAM_SECURED_CACHE_DIRECTORY));
+      aCacheFile = IOUtil.getUniqueFile (aCacheDir, aMsg.getMessageID () + ".secured");
+      bComplete = StreamUtils.copyInputStreamToOutputStreamAndCloseOS (aSecuredData.getInputStream (),
+                                                                       new FileOutputStream (aCacheFile))
+                             .isSuccess ();
     }
     catch (final Exception ex)
     {
-      // Propagate error if it can't be handled by a resend
-      throw new WrappedException (ex);
+      s_aLogger.warn ("Failed to cache secured data: " + ex.getMessage () + aMsg.getLoggingText ());
     }
+    finally
+    {
+      if (!bComplete && aCacheFile != null && IOUtil.getFileOperationManager ().deleteFile (aCacheFile).isFailure ())
+        s_aLogger.warn ("Failed to delete incomplete secured data " + aCacheFile.getAbsolutePath ());
+    }
+
+    if (bComplete)
+    {
+      aMsg.setAttribute (MA_SECURED_FILE, aCacheFile.getAbsolutePath ());
+      aMsg.setAttribute (MA_SECURED_CONTENT_TYPE, aMsg.getContentType ());
+    }
+    else
+      aMsg.setAttribute (MA_SECURED_MIC, null);
   }
 
   // Asynch MDN 2007-03-12
@@ -358,11 +733,32 @@ public class AS2SenderModule extends AbstractHttpSenderModule
       // Oh dear, we've run out of retries, do something interesting.
       // TODO create a fake failure MDN
       s_aLogger.error ("Message abandoned" + aMsg.getLoggingText ());
+      discardSecuredCache (aMsg);
     }
   }
 
   // Returns a MimeBodyPart or MimeMultipart object
   protected MimeBodyPart secure (@Nonnull final IMessage aMsg) throws Exception
+  {
+    return secure (aMsg, null);
+  }
+
+  /**
+   * Compress, sign and/or encrypt the data of the message as configured in the
+   * partnership.
+   *
+   * @param aMsg
+   *        The message to secure
+   * @param aMICSource
+   *        Optional wrapper that is filled with the part the MIC must be
+   *        calculated on. According to RFC 5402 this is the compressed data if
+   *        the data is compressed before signing, and the original data
+   *        otherwise. May be <code>null</code>.
+   * @return The secured data
+   * @throws Exception
+   *         In case something goes wrong
+   */
+  protected MimeBodyPart secure (@Nonnull final IMessage aMsg, @Nullable final Wrapper <MimeBodyPart> aMICSource) throws Exception
   {
     // Set up encrypt/sign variables
     MimeBodyPart aDataBP = aMsg.getData ();
@@ -370,6 +766,16 @@ public class AS2SenderModule extends AbstractHttpSenderModule
     final Partnership aPartnership = aMsg.getPartnership ();
     final boolean bEncrypt = aPartnership.getAttribute (CPartnershipIDs.PA_ENCRYPT) != null;
     final boolean bSign = aPartnership.getAttribute (CPartnershipIDs.PA_SIGN) != null;
+    final String sCompressionType = aPartnership.getAttribute (CPartnershipIDs.PA_COMPRESSION_TYPE);
+    final boolean bCompressBeforeSign = !CPartnershipIDs.COMPRESS_AFTER_SIGNING.equals (aPartnership.getAttribute (CPartnershipIDs.PA_COMPRESSION_MODE));
+
+    // Compress the data before signing if requested
+    if (sCompressionType != null && bCompressBeforeSign)
+    {
+      aDataBP = _compress (aMsg, aDataBP, sCompressionType);
+      if (aMICSource != null && bSign)
+        aMICSource.set (aDataBP);
+    }
 
     // Encrypt and/or sign the data if requested
     if (bEncrypt || bSign)
@@ -394,6 +800,10 @@ public class AS2SenderModule extends AbstractHttpSenderModule
           s_aLogger.debug ("signed data" + aMsg.getLoggingText ());
       }
 
+      // Compress the signed data if requested
+      if (sCompressionType != null && !bCompressBeforeSign)
+        aDataBP = _compress (aMsg, aDataBP, sCompressionType);
+
       // Encrypt the data if requested
       if (bEncrypt)
       {
@@ -411,15 +821,35 @@ public class AS2SenderModule extends AbstractHttpSenderModule
           s_aLogger.debug ("encrypted data" + aMsg.getLoggingText ());
       }
     }
+    else
+      if (sCompressionType != null && !bCompressBeforeSign)
+      {
+        // Not signed - compression mode is irrelevant
+        aDataBP = _compress (aMsg, aDataBP, sCompressionType);
+      }
 
     return aDataBP;
   }
 
+  @Nonnull
+  private static MimeBodyPart _compress (@Nonnull final IMessage aMsg,
+                                         @Nonnull final MimeBodyPart aDataBP,
+                                         @Nonnull final String sCompressionType) throws Exception
+  {
+    final MimeBodyPart aCompressedBP = AS2Util.getCryptoHelper ().compress (aDataBP, sCompressionType);
+
+    final DataHistoryItem aHistoryItem = new DataHistoryItem (aCompressedBP.getContentType ());
+    aMsg.getHistory ().addItem (aHistoryItem);
+
+    if (s_aLogger.isDebugEnabled ())
+      s_aLogger.debug ("compressed data" + aMsg.getLoggingText ());
+    return aCompressedBP;
+  }
+
   protected void updateHttpHeaders (@Nonnull final HttpURLConnection aConn, @Nonnull final IMessage aMsg)
   {
     final Partnership aPartnership = aMsg.getPartnership ();
 
-    aConn.setRequestProperty (CAS2Header.HEADER_CONNECTION, CAS2Header.DEFAULT_CONNECTION);
     aConn.setRequestProperty (CAS2Header.HEADER_USER_AGENT, CAS2Header.DEFAULT_USER_AGENT);
 
     aConn.setRequestProperty (CAS2Header.HEADER_DATE, DateUtil.getFormattedDateNow (CAS2Header.DEFAULT_DATE_FORMAT));
@@ -428,8 +858,8 @@ public class AS2SenderModule extends AbstractHttpSenderModule
     aConn.setRequestProperty (CAS2Header.HEADER_MIME_VERSION, CAS2Header.DEFAULT_MIME_VERSION);
     aConn.setRequestProperty (CAS2Header.HEADER_CONTENT_TYPE, aMsg.getContentType ());
     aConn.setRequestProperty (CAS2Header.HEADER_AS2_VERSION, CAS2Header.DEFAULT_AS2_VERSION);
-    aConn.setRequestProperty (CAS2Header.HEADER_RECIPIENT_ADDRESS,
-                              aPartnership.getAttribute (CPartnershipIDs.PA_AS2_URL));
+    // The selected endpoint, if the partnership has several URLs
+    aConn.setRequestProperty (CAS2Header.HEADER_RECIPIENT_ADDRESS, aConn.getURL ().toExternalForm ());
     aConn.setRequestProperty (CAS2Header.HEADER_AS2_TO, aPartnership.getReceiverID (CPartnershipIDs.PID_AS2));
     aConn.setRequestProperty (CAS2Header.HEADER_AS2_FROM, aPartnership.getSenderID (CPartnershipIDs.PID_AS2));
     aConn.setRequestProperty (CAS2Header.HEADER_SUBJECT, aMsg.getSubject ());
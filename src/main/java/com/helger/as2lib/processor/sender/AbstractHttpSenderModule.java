@@ -33,46 +33,286 @@
 package com.helger.as2lib.processor.sender;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
 import javax.annotation.Nonnull;
+import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
 
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
+import com.helger.as2lib.util.CAS2Header;
+import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.helger.as2lib.util.javamail.TempFileDataSource;
+import com.phloc.commons.io.streams.StreamUtils;
 
 public abstract class AbstractHttpSenderModule extends AbstractSenderModule
 {
 
   public static final String PARAM_READ_TIMEOUT = "readtimeout";
   public static final String PARAM_CONNECT_TIMEOUT = "connecttimeout";
+  // Keep connections alive between messages
+  public static final String PARAM_KEEP_ALIVE = "keepalive";
+  public static final boolean DEFAULT_KEEP_ALIVE = true;
+  // Maximum number of concurrent connections per protocol, host and port. 0
+  // means no limit. The first module using a route defines its limit. The JDK
+  // keeps at most http.maxConnections (default 5) of them alive when idle.
+  public static final String PARAM_MAX_CONNECTIONS_PER_ROUTE = "maxconnectionsperroute";
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 0;
+  // Stream the request body instead of letting the JDK buffer it completely,
+  // if its length is known in advance
+  public static final String PARAM_STREAMING_UPLOAD = "streamingupload";
+  public static final boolean DEFAULT_STREAMING_UPLOAD = true;
+  // Send request bodies of unknown length chunked. Disabled by default, as many
+  // AS2 servers don't accept chunked requests
+  public static final String PARAM_CHUNKED_UPLOAD = "chunkedupload";
+  public static final boolean DEFAULT_CHUNKED_UPLOAD = false;
+  // Chunk size in bytes for chunked request bodies
+  public static final String PARAM_CHUNK_SIZE = "chunksize";
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+  // Consecutive connect or server errors after which transfers to a host and
+  // port fail immediately. 0 disables the circuit breaker.
+  public static final String PARAM_CIRCUIT_BREAKER_THRESHOLD = "circuitbreakerthreshold";
+  public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+  // Milliseconds a circuit stays open before a single trial transfer is let
+  // through
+  public static final String PARAM_CIRCUIT_BREAKER_OPEN_INTERVAL = "circuitbreakeropeninterval";
+  public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_INTERVAL = 30000;
 
+  // Shared by all HTTP sender modules
+  private static final HttpConnectionPool s_aConnectionPool = new HttpConnectionPool ();
+  private static final HttpCircuitBreaker s_aCircuitBreaker = new HttpCircuitBreaker ();
+
+  /**
+   * @return The connection pool shared by all HTTP sender modules. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static HttpConnectionPool getConnectionPool ()
+  {
+    return s_aConnectionPool;
+  }
+
+  /**
+   * @return The circuit breaker shared by all HTTP sender modules. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static HttpCircuitBreaker getCircuitBreaker ()
+  {
+    return s_aCircuitBreaker;
+  }
+
+  /**
+   * Check the circuit breaker before connecting to a URL.
+   *
+   * @param sUrl
+   *        The destination URL
+   * @throws IOException
+   *         If the URL is invalid or transfers to its host and port currently
+   *         fail immediately
+   */
+  protected void checkCircuitBreaker (@Nonnull final String sUrl) throws IOException
+  {
+    if (getAttributeAsInt (PARAM_CIRCUIT_BREAKER_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_THRESHOLD) > 0)
+      s_aCircuitBreaker.checkClosed (new URL (sUrl));
+  }
+
+  /**
+   * Report the result of a transfer to the circuit breaker. Only connect
+   * errors, errors while uploading and server errors count as failures - e.g.
+   * a read timeout while waiting for the response means the server is
+   * available, and local errors before connecting should not be reported at
+   * all.
+   *
+   * @param aConn
+   *        The connection used
+   * @param bAvailable
+   *        <code>false</code> if connecting or uploading failed or the server
+   *        responded with a server error
+   */
+  protected void reportCircuitBreaker (@Nonnull final HttpURLConnection aConn, final boolean bAvailable)
+  {
+    final int nThreshold = getAttributeAsInt (PARAM_CIRCUIT_BREAKER_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+    if (nThreshold <= 0)
+      return;
+    if (bAvailable)
+      s_aCircuitBreaker.onSuccess (aConn.getURL ());
+    else
+      s_aCircuitBreaker.onFailure (aConn.getURL (),
+                                   nThreshold,
+                                   getAttributeAsInt (PARAM_CIRCUIT_BREAKER_OPEN_INTERVAL,
+                                                      DEFAULT_CIRCUIT_BREAKER_OPEN_INTERVAL));
+  }
+
+  public boolean isKeepAlive ()
+  {
+    return getAttributeAsBoolean (PARAM_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+  }
+
+  /**
+   * Get the number of bytes {@link MimeBodyPart#getInputStream()} delivers,
+   * without reading the data.
+   *
+   * @param aPart
+   *        The part to check
+   * @return The exact length or -1 if it is not known in advance, e.g. because
+   *         the data is created while it is read.
+   */
+  public static long getContentLength (@Nonnull final MimeBodyPart aPart) throws MessagingException
+  {
+    final DataHandler aDH = aPart.getDataHandler ();
+    final DataSource aDS = aDH == null ? null : aDH.getDataSource ();
+    if (aDS instanceof ByteArrayDataSource)
+      return ((ByteArrayDataSource) aDS).getBytes ().length;
+    if (aDS instanceof TempFileDataSource)
+      return ((TempFileDataSource) aDS).getFile ().length ();
+    if (aDS instanceof FileDataSource)
+      return ((FileDataSource) aDS).getFile ().length ();
+
+    // Raw content is only delivered unchanged without a transfer encoding
+    final String sEncoding = aPart.getEncoding ();
+    if (sEncoding == null ||
+        sEncoding.equalsIgnoreCase ("binary") ||
+        sEncoding.equalsIgnoreCase ("7bit") ||
+        sEncoding.equalsIgnoreCase ("8bit"))
+      return aPart.getSize ();
+    return -1;
+  }
+
+  /**
+   * Make the connection stream the request body with a fixed length if it is
+   * known. If the length is unknown, e.g. for signed or encrypted data, the body
+   * is only sent chunked if this was explicitly enabled - otherwise the JDK
+   * buffers the whole body in memory to determine the Content-Length, as many
+   * servers don't support chunked requests.
+   *
+   * @param aConn
+   *        The connection that was not yet connected
+   * @param nContentLength
+   *        The exact number of bytes that will be written, or -1 if unknown
+   */
+  public void setStreamingMode (@Nonnull final HttpURLConnection aConn, final long nContentLength)
+  {
+    if (getAttributeAsBoolean (PARAM_STREAMING_UPLOAD, DEFAULT_STREAMING_UPLOAD))
+    {
+      if (nContentLength >= 0 && nContentLength <= Integer.MAX_VALUE)
+        aConn.setFixedLengthStreamingMode ((int) nContentLength);
+      else
+        if (getAttributeAsBoolean (PARAM_CHUNKED_UPLOAD, DEFAULT_CHUNKED_UPLOAD))
+          aConn.setChunkedStreamingMode (getAttributeAsInt (PARAM_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+    }
+  }
+
+  /**
+   * Open a connection. If keep-alive is enabled the connection is leased from
+   * the shared connection pool and must be returned with
+   * {@link #releaseConnection(HttpURLConnection, boolean)}.
+   *
+   * @throws SendSlotTimeoutException
+   *         If the connection limit of the route is reached and no connection
+   *         became available within the connect timeout. Nothing was sent,
+   *         so the message can be resent.
+   */
   @Nonnull
   public HttpURLConnection getConnection (final String sUrl,
                                           final boolean bOutput,
                                           final boolean bInput,
                                           final boolean bUseCaches,
-                                          final String sRequestMethod) throws OpenAS2Exception
+                                          final String sRequestMethod) throws OpenAS2Exception,
+                                                                       SendSlotTimeoutException
   {
+    HttpURLConnection aConn;
     try
     {
       final URL aUrlObj = new URL (sUrl);
-      final HttpURLConnection aConn = (HttpURLConnection) aUrlObj.openConnection ();
+      aConn = (HttpURLConnection) aUrlObj.openConnection ();
       aConn.setDoOutput (bOutput);
       aConn.setDoInput (bInput);
       aConn.setUseCaches (bUseCaches);
       aConn.setRequestMethod (sRequestMethod);
       aConn.setConnectTimeout (getAttributeAsInt (PARAM_CONNECT_TIMEOUT, 60000));
       aConn.setReadTimeout (getAttributeAsInt (PARAM_READ_TIMEOUT, 60000));
-      return aConn;
     }
     catch (final IOException ex)
     {
       throw new WrappedException (ex);
     }
+
+    if (isKeepAlive ())
+    {
+      // Wait at most as long as for connecting
+      s_aConnectionPool.lease (aConn,
+                               getAttributeAsInt (PARAM_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE),
+                               aConn.getConnectTimeout ());
+    }
+    else
+      aConn.setRequestProperty (CAS2Header.HEADER_CONNECTION, CAS2Header.DEFAULT_CONNECTION);
+    return aConn;
+  }
+
+  /**
+   * Return a connection obtained by
+   * {@link #getConnection(String, boolean, boolean, boolean, String)}. Must be
+   * called exactly once per connection.
+   *
+   * @param aConn
+   *        The connection to return
+   * @param bReusable
+   *        <code>true</code> if the response was consumed with
+   *        {@link #consumeResponse(HttpURLConnection)} successfully. Otherwise
+   *        the connection is disconnected.
+   */
+  protected void releaseConnection (@Nonnull final HttpURLConnection aConn, final boolean bReusable)
+  {
+    if (isKeepAlive ())
+      s_aConnectionPool.release (aConn, bReusable);
+    else
+      aConn.disconnect ();
+  }
+
+  /**
+   * Read the rest of the response and close it, so that the JDK can reuse the
+   * connection. Does nothing if keep-alive is disabled.
+   *
+   * @param aConn
+   *        The connection whose response code was already read
+   * @return <code>true</code> if the connection can be reused,
+   *         <code>false</code> if keep-alive is disabled, reading failed or
+   *         the server requested to close the connection.
+   */
+  protected boolean consumeResponse (@Nonnull final HttpURLConnection aConn)
+  {
+    // Otherwise the JDK would keep the connection alive
+    if (!isKeepAlive ())
+      return false;
+
+    try
+    {
+      final InputStream aIS = aConn.getResponseCode () >= HttpURLConnection.HTTP_BAD_REQUEST ? aConn.getErrorStream ()
+                                                                                            : aConn.getInputStream ();
+      if (aIS != null)
+      {
+        final byte [] aBuffer = new byte [1024];
+        while (aIS.read (aBuffer) >= 0)
+        {}
+        StreamUtils.close (aIS);
+      }
+    }
+    catch (final IOException ex)
+    {
+      return false;
+    }
+    final String sConnection = aConn.getHeaderField (CAS2Header.HEADER_CONNECTION);
+    return sConnection == null || !sConnection.toLowerCase ().contains ("close");
   }
 
   // Copy headers from an Http connection to an InternetHeaders object
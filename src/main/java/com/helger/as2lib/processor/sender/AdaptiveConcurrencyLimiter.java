@@ -0,0 +1,287 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * Limits the number of concurrent transfers per destination and adapts the
+ * limit to the latency of the destination (AIMD - additive increase,
+ * multiplicative decrease):
+ * <ul>
+ * <li>A response whose latency stays within twice the lowest latency observed
+ * increases the limit by one per round trip, if the limit was used.</li>
+ * <li>A slower response, an HTTP error or a network error decreases the limit
+ * by 10%.</li>
+ * </ul>
+ * The limit always stays within the minimum and maximum passed on acquiring,
+ * so the highest concurrency a partner can take without timeouts is found
+ * automatically.<br>
+ * The response latency of AS2 includes the time the receiver needs to process
+ * the message (e.g. decrypt, verify and store it for a synchronous MDN), which
+ * grows with the payload size. Latencies are therefore normalised by the
+ * payload size before they are compared, so that a large message is not
+ * mistaken for overload.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AdaptiveConcurrencyLimiter
+{
+  // Factor to decrease the limit on overload
+  private static final double BACKOFF_RATIO = 0.9;
+  // Latencies above this multiple of the baseline indicate queuing
+  private static final double LATENCY_TOLERANCE = 2.0;
+  // The baseline rises slowly, so that it follows a permanently slower partner
+  private static final double BASELINE_DRIFT = 1.01;
+  // Latencies are normalised to the latency per this many bytes of payload -
+  // smaller payloads count as this size, as their latency is mostly fixed cost
+  private static final double PAYLOAD_UNIT = 1024 * 1024;
+
+  /**
+   * A granted transfer slot. Must be released exactly once.
+   */
+  public static final class Permit
+  {
+    private final Limit m_aLimit;
+    private final AtomicBoolean m_aReleased = new AtomicBoolean (false);
+
+    Permit (@Nonnull final Limit aLimit)
+    {
+      m_aLimit = aLimit;
+    }
+
+    /**
+     * Release the slot and adapt the limit.
+     *
+     * @param nLatencyMS
+     *        The time the destination needed to respond, or a negative value if
+     *        the transfer failed because of a network or server error.
+     * @param nPayloadBytes
+     *        The number of bytes transferred
+     */
+    public void release (final long nLatencyMS, @Nonnegative final long nPayloadBytes)
+    {
+      if (m_aReleased.compareAndSet (false, true))
+        m_aLimit.release (nLatencyMS < 0 ? -1 : nLatencyMS / Math.max (1, nPayloadBytes / PAYLOAD_UNIT));
+    }
+  }
+
+  private static final class Limit
+  {
+    private int m_nMin = 1;
+    private int m_nMax = 1;
+    private double m_dLimit = 1;
+    private int m_nInFlight = 0;
+    private double m_dBaselineMS = -1;
+
+    synchronized void setBounds (@Nonnegative final int nMin, @Nonnegative final int nMax)
+    {
+      m_nMin = nMin;
+      m_nMax = nMax;
+      m_dLimit = Math.max (nMin, Math.min (nMax, m_dLimit));
+      notifyAll ();
+    }
+
+    synchronized boolean tryAcquire (final long nWaitMS, @Nonnull final AtomicLong aQueued) throws InterruptedException
+    {
+      if (m_nInFlight >= (int) m_dLimit)
+      {
+        aQueued.incrementAndGet ();
+        final long nDeadline = System.currentTimeMillis () + nWaitMS;
+        while (m_nInFlight >= (int) m_dLimit)
+        {
+          final long nRemaining = nDeadline - System.currentTimeMillis ();
+          if (nRemaining <= 0)
+            return false;
+          wait (nRemaining);
+        }
+      }
+      m_nInFlight++;
+      return true;
+    }
+
+    synchronized void release (final double dLatencyMS)
+    {
+      // Only grow if the limit was actually used
+      final boolean bLimited = m_nInFlight >= (int) m_dLimit;
+      m_nInFlight--;
+
+      if (dLatencyMS >= 0)
+      {
+        if (m_dBaselineMS < 0 || dLatencyMS < m_dBaselineMS)
+          m_dBaselineMS = dLatencyMS;
+        else
+          m_dBaselineMS = Math.min (dLatencyMS, m_dBaselineMS * BASELINE_DRIFT);
+      }
+
+      if (dLatencyMS < 0 || dLatencyMS > Math.max (1, m_dBaselineMS) * LATENCY_TOLERANCE)
+        m_dLimit = Math.max (m_nMin, m_dLimit * BACKOFF_RATIO);
+      else
+        if (bLimited)
+          m_dLimit = Math.min (m_nMax, m_dLimit + 1 / m_dLimit);
+      notifyAll ();
+    }
+
+    synchronized double getLimit ()
+    {
+      return m_dLimit;
+    }
+  }
+
+  private final Map <String, Limit> m_aLimits = new HashMap <String, Limit> ();
+  private final AtomicLong m_aAdmitted = new AtomicLong ();
+  private final AtomicLong m_aQueued = new AtomicLong ();
+  private final AtomicLong m_aRejected = new AtomicLong ();
+
+  public AdaptiveConcurrencyLimiter ()
+  {}
+
+  @Nonnull
+  private synchronized Limit _getLimit (@Nonnull final String sKey)
+  {
+    Limit aLimit = m_aLimits.get (sKey);
+    if (aLimit == null)
+    {
+      aLimit = new Limit ();
+      m_aLimits.put (sKey, aLimit);
+    }
+    return aLimit;
+  }
+
+  /**
+   * Acquire a transfer slot for a destination. Waits if the current limit of
+   * the destination is reached.
+   *
+   * @param sKey
+   *        The destination, e.g. the URL
+   * @param nMin
+   *        The minimum concurrency limit. Must be &gt; 0.
+   * @param nMax
+   *        The maximum concurrency limit. Must be &ge; nMin.
+   * @param nWaitMS
+   *        Maximum milliseconds to wait for a free slot
+   * @return The permit to release after the transfer or <code>null</code> if
+   *         no slot became available in time.
+   */
+  @Nullable
+  public Permit acquire (@Nonnull final String sKey,
+                         @Nonnegative final int nMin,
+                         @Nonnegative final int nMax,
+                         final long nWaitMS)
+  {
+    final Limit aLimit = _getLimit (sKey);
+    aLimit.setBounds (Math.max (1, nMin), Math.max (Math.max (1, nMin), nMax));
+
+    boolean bAcquired;
+    try
+    {
+      bAcquired = aLimit.tryAcquire (nWaitMS, m_aQueued);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      bAcquired = false;
+    }
+    if (!bAcquired)
+    {
+      m_aRejected.incrementAndGet ();
+      return null;
+    }
+    m_aAdmitted.incrementAndGet ();
+    return new Permit (aLimit);
+  }
+
+  /**
+   * @param sKey
+   *        The destination
+   * @return The current concurrency limit of the destination or 0 if nothing
+   *         was sent to it so far.
+   */
+  public double getLimit (@Nonnull final String sKey)
+  {
+    final Limit aLimit;
+    synchronized (this)
+    {
+      aLimit = m_aLimits.get (sKey);
+    }
+    return aLimit == null ? 0 : aLimit.getLimit ();
+  }
+
+  /**
+   * @return The number of transfers that were admitted.
+   */
+  @Nonnegative
+  public long getAdmittedCount ()
+  {
+    return m_aAdmitted.get ();
+  }
+
+  /**
+   * @return The number of transfers that had to wait for a free slot.
+   */
+  @Nonnegative
+  public long getQueuedCount ()
+  {
+    return m_aQueued.get ();
+  }
+
+  /**
+   * @return The number of transfers that were rejected, because no slot became
+   *         available in time.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("admitted", getAdmittedCount ())
+                                       .append ("queued", getQueuedCount ())
+                                       .append ("rejected", getRejectedCount ())
+                                       .toString ();
+  }
+}
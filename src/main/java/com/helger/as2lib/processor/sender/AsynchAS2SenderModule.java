@@ -0,0 +1,339 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.exception.InvalidParameterException;
+import com.helger.as2lib.exception.OpenAS2Exception;
+import com.helger.as2lib.exception.WrappedException;
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.message.IMessageMDN;
+import com.helger.as2lib.processor.module.IProcessorActiveModule;
+import com.helger.as2lib.processor.receiver.AbstractNetModule;
+import com.helger.as2lib.util.ThreadUtil;
+import com.phloc.commons.concurrent.ExtendedDefaultThreadFactory;
+
+/**
+ * An AS2 sender that additionally supports sending messages asynchronously
+ * with {@link #sendAsync(AS2Message, IAS2SendCallback)}. Each transfer runs in
+ * its own thread of this module, so the calling thread is not blocked by
+ * connecting, uploading and waiting for the synchronous MDN. The number of
+ * concurrent transfers is limited by the in-flight window. With virtual
+ * threads hundreds of transfers to slow partners are cheap.<br>
+ * Configure this module instead of {@link AS2SenderModule} - the synchronous
+ * {@link IProcessorSenderModule#DO_SEND} handling is unchanged.
+ *
+ * @author Philip Helger
+ */
+public class AsynchAS2SenderModule extends AS2SenderModule implements IProcessorActiveModule
+{
+  // Maximum number of messages being sent concurrently
+  public static final String PARAM_MAX_IN_FLIGHT = "maxinflight";
+  public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+  // Milliseconds sendAsync waits if the in-flight window is full. 0 fails
+  // immediately.
+  public static final String PARAM_SUBMIT_TIMEOUT = "submittimeout";
+  public static final int DEFAULT_SUBMIT_TIMEOUT = 60000;
+  // "platform" or "virtual" threads for the transfers
+  public static final String PARAM_THREAD_MODE = AbstractNetModule.PARAM_THREAD_MODE;
+  public static final String DEFAULT_THREAD_MODE = AbstractNetModule.DEFAULT_THREAD_MODE;
+  // Milliseconds to wait for running transfers on stop
+  public static final String PARAM_SHUTDOWN_TIMEOUT = "shutdowntimeout";
+  public static final int DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+
+  private static final Logger s_aLogger = LoggerFactory.getLogger (AsynchAS2SenderModule.class);
+
+  /** A single asynchronous transfer */
+  private final class SendTask extends FutureTask <IMessageMDN>
+  {
+    private final AS2Message m_aMsg;
+    private final IAS2SendCallback m_aCallback;
+    // The window the slot was taken from - a restart creates a new one
+    private final Semaphore m_aTaskWindow;
+
+    SendTask (@Nonnull final AS2Message aMsg,
+              @Nullable final IAS2SendCallback aCallback,
+              @Nonnull final Semaphore aWindow)
+    {
+      super (new Callable <IMessageMDN> ()
+      {
+        public IMessageMDN call () throws Exception
+        {
+          sendMessage (aMsg);
+          return aMsg.getMDN ();
+        }
+      });
+      m_aMsg = aMsg;
+      m_aCallback = aCallback;
+      m_aTaskWindow = aWindow;
+    }
+
+    @Override
+    protected void done ()
+    {
+      m_aTaskWindow.release ();
+
+      IMessageMDN aMDN = null;
+      OpenAS2Exception aCause = null;
+      try
+      {
+        aMDN = get ();
+      }
+      catch (final ExecutionException ex)
+      {
+        aCause = ex.getCause () instanceof OpenAS2Exception ? (OpenAS2Exception) ex.getCause ()
+                                                            : new WrappedException (ex.getCause ());
+      }
+      catch (final Exception ex)
+      {
+        // Cancelled or interrupted
+        aCause = new WrappedException (ex);
+      }
+
+      if (aCause == null)
+      {
+        m_aSucceeded.incrementAndGet ();
+        s_aLogger.info ("message sent asynchronously" + m_aMsg.getLoggingText ());
+      }
+      else
+      {
+        m_aFailed.incrementAndGet ();
+        aCause.addSource (OpenAS2Exception.SOURCE_MESSAGE, m_aMsg);
+        s_aLogger.error ("asynchronous send failed: " + aCause.getMessage () + m_aMsg.getLoggingText ());
+      }
+
+      if (m_aCallback != null)
+        try
+        {
+          if (aCause == null)
+            m_aCallback.onSuccess (m_aMsg, aMDN);
+          else
+            m_aCallback.onFailure (m_aMsg, aCause);
+        }
+        catch (final RuntimeException ex)
+        {
+          s_aLogger.error ("Error in send callback" + m_aMsg.getLoggingText (), ex);
+        }
+    }
+  }
+
+  private volatile ThreadPoolExecutor m_aExecutor;
+  private volatile Semaphore m_aWindow;
+  private volatile int m_nMaxInFlight;
+  private volatile boolean m_bRunning = false;
+  private final AtomicLong m_aSucceeded = new AtomicLong ();
+  private final AtomicLong m_aFailed = new AtomicLong ();
+
+  public boolean isRunning ()
+  {
+    return m_bRunning;
+  }
+
+  @Nonnull
+  private ThreadFactory _createThreadFactory () throws OpenAS2Exception
+  {
+    final String sThreadMode = getAttributeAsString (PARAM_THREAD_MODE, DEFAULT_THREAD_MODE);
+    if (AbstractNetModule.THREAD_MODE_VIRTUAL.equalsIgnoreCase (sThreadMode))
+    {
+      final ThreadFactory aFactory = ThreadUtil.createVirtualThreadFactory (getName () + "-");
+      if (aFactory != null)
+        return aFactory;
+      s_aLogger.warn ("Virtual threads are not supported by this Java runtime - using platform threads");
+    }
+    else
+      if (!AbstractNetModule.THREAD_MODE_PLATFORM.equalsIgnoreCase (sThreadMode))
+        throw new InvalidParameterException ("Unsupported thread mode", this, PARAM_THREAD_MODE, sThreadMode);
+    return new ExtendedDefaultThreadFactory (getName ());
+  }
+
+  public void start () throws OpenAS2Exception
+  {
+    final int nMaxInFlight = Math.max (1, getAttributeAsInt (PARAM_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT));
+    // The window limits the number of queued tasks
+    final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (nMaxInFlight,
+                                                                 nMaxInFlight,
+                                                                 60,
+                                                                 TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue <Runnable> (),
+                                                                 _createThreadFactory ());
+    aExecutor.allowCoreThreadTimeOut (true);
+    m_nMaxInFlight = nMaxInFlight;
+    m_aWindow = new Semaphore (nMaxInFlight, true);
+    m_aExecutor = aExecutor;
+    m_bRunning = true;
+  }
+
+  /**
+   * Stop accepting new messages and wait for the running transfers within the
+   * shutdown timeout. Transfers still running afterwards are interrupted.
+   */
+  public void stop () throws OpenAS2Exception
+  {
+    m_bRunning = false;
+    // sendAsync may run concurrently - it works on its own copy
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    m_aExecutor = null;
+    if (aExecutor != null)
+    {
+      aExecutor.shutdown ();
+      try
+      {
+        if (!aExecutor.awaitTermination (getAttributeAsInt (PARAM_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT),
+                                         TimeUnit.MILLISECONDS))
+        {
+          s_aLogger.warn ("Interrupting " + aExecutor.getActiveCount () + " running transfers");
+          aExecutor.shutdownNow ();
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        aExecutor.shutdownNow ();
+        Thread.currentThread ().interrupt ();
+      }
+    }
+  }
+
+  /**
+   * Send a message asynchronously. If the in-flight window is full, this
+   * method blocks the calling thread until a running transfer finished, but at
+   * most for the submit timeout ({@link #PARAM_SUBMIT_TIMEOUT}). Failed
+   * transfers are not resent - this is left to the caller.
+   *
+   * @param aMsg
+   *        The message to send
+   * @param aCallback
+   *        Optional callback that is invoked when the transfer finished. May
+   *        be <code>null</code>.
+   * @return The future of the transfer. Never <code>null</code>. Its result is
+   *         the received synchronous MDN or <code>null</code> if none was
+   *         requested. In case of an error {@link Future#get()} throws an
+   *         {@link java.util.concurrent.ExecutionException} whose cause is the
+   *         {@link OpenAS2Exception}.
+   * @throws OpenAS2Exception
+   *         If the module is not running, the in-flight window stayed full for
+   *         the submit timeout or the message is missing required information
+   */
+  @Nonnull
+  public Future <IMessageMDN> sendAsync (@Nonnull final AS2Message aMsg, @Nullable final IAS2SendCallback aCallback) throws OpenAS2Exception
+  {
+    // Local copies - stop may run concurrently
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    final Semaphore aWindow = m_aWindow;
+    if (!m_bRunning || aExecutor == null)
+      throw new OpenAS2Exception ("Asynchronous sender " + getName () + " is not running");
+
+    s_aLogger.info ("message submitted asynchronously" + aMsg.getLoggingText ());
+
+    // verify all required information is present for sending
+    checkRequired (aMsg);
+
+    final int nTimeoutMS = getAttributeAsInt (PARAM_SUBMIT_TIMEOUT, DEFAULT_SUBMIT_TIMEOUT);
+    try
+    {
+      if (!aWindow.tryAcquire (Math.max (0, nTimeoutMS), TimeUnit.MILLISECONDS))
+        throw new OpenAS2Exception ("Asynchronous sender " +
+                                    getName () +
+                                    " has " +
+                                    m_nMaxInFlight +
+                                    " messages in flight - not submitted within " +
+                                    nTimeoutMS +
+                                    " ms");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new WrappedException (ex);
+    }
+
+    final SendTask aTask = new SendTask (aMsg, aCallback, aWindow);
+    try
+    {
+      aExecutor.execute (aTask);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Stopped in the meantime
+      aWindow.release ();
+      throw new OpenAS2Exception ("Asynchronous sender " + getName () + " is not running");
+    }
+    return aTask;
+  }
+
+  /**
+   * @return The number of messages currently being sent.
+   */
+  @Nonnegative
+  public int getInFlightCount ()
+  {
+    final Semaphore aWindow = m_aWindow;
+    return aWindow == null ? 0 : m_nMaxInFlight - aWindow.availablePermits ();
+  }
+
+  /**
+   * @return The number of messages sent successfully with
+   *         {@link #sendAsync(AS2Message, IAS2SendCallback)}.
+   */
+  @Nonnegative
+  public long getSucceededCount ()
+  {
+    return m_aSucceeded.get ();
+  }
+
+  /**
+   * @return The number of messages that could not be sent with
+   *         {@link #sendAsync(AS2Message, IAS2SendCallback)}.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailed.get ();
+  }
+}
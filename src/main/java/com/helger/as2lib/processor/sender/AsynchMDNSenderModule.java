@@ -32,39 +32,136 @@
  */
 package com.helger.as2lib.processor.sender;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.helger.as2lib.ISession;
 import com.helger.as2lib.exception.HttpResponseException;
 import com.helger.as2lib.exception.OpenAS2Exception;
 import com.helger.as2lib.exception.WrappedException;
 import com.helger.as2lib.message.AS2Message;
 import com.helger.as2lib.message.IMessage;
 import com.helger.as2lib.message.IMessageMDN;
+import com.helger.as2lib.processor.module.IProcessorActiveModule;
 import com.helger.as2lib.processor.resender.IProcessorResenderModule;
 import com.helger.as2lib.processor.storage.IProcessorStorageModule;
 import com.helger.as2lib.util.CAS2Header;
 import com.helger.as2lib.util.DateUtil;
 import com.helger.as2lib.util.DispositionType;
 import com.helger.as2lib.util.IOUtil;
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.concurrent.ExtendedDefaultThreadFactory;
+import com.phloc.commons.io.file.FileUtils;
+import com.phloc.commons.io.streams.NonBlockingBufferedInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+import com.phloc.commons.io.streams.StreamUtils;
 import com.phloc.commons.timing.StopWatch;
 
-public class AsynchMDNSenderModule extends AbstractHttpSenderModule
+/**
+ * Sends asynchronous MDNs. When the module is started, MDNs are put into a
+ * queue per destination URL and sent by a pool of worker threads, so the
+ * receiving thread is free as soon as the HTTP response is written. A worker
+ * sends all ready MDNs of one URL in a row, so that the JDK can reuse the
+ * persistent connection. Failed MDNs are retried with an exponential back-off
+ * without going through the resender module. If a pending directory is
+ * configured, queued MDNs are written to disk and are sent again after a
+ * restart. When the module is not started, MDNs are sent synchronously.
+ *
+ * @author Philip Helger
+ */
+public class AsynchMDNSenderModule extends AbstractHttpSenderModule implements IProcessorActiveModule
 {
+  // Number of worker threads
+  public static final String PARAM_THREADS = "threads";
+  public static final int DEFAULT_THREADS = 2;
+  // Maximum number of MDNs sent to one URL in a row
+  public static final String PARAM_BATCH_SIZE = "batchsize";
+  public static final int DEFAULT_BATCH_SIZE = 20;
+  // Milliseconds before the first retry - doubled on every further retry
+  public static final String PARAM_RETRY_DELAY = "retrydelay";
+  public static final int DEFAULT_RETRY_DELAY = 30000;
+  // Maximum milliseconds between two retries
+  public static final String PARAM_MAX_RETRY_DELAY = "maxretrydelay";
+  public static final int DEFAULT_MAX_RETRY_DELAY = 3600000;
+  // Directory to keep queued MDNs across restarts - optional
+  public static final String PARAM_PENDING_DIRECTORY = "pendingdir";
+  // Milliseconds to send the ready MDNs on stop
+  public static final String PARAM_SHUTDOWN_TIMEOUT = "shutdowntimeout";
+  public static final int DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+
   private static final Logger s_aLogger = LoggerFactory.getLogger (AsynchMDNSenderModule.class);
+  private static final String PENDING_EXTENSION = ".pending";
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final String FAILED_EXTENSION = ".failed";
+
+  /** A single MDN waiting to be sent */
+  private static final class PendingMDN
+  {
+    private final String m_sURL;
+    private final InternetHeaders m_aHeaders;
+    private final byte [] m_aData;
+    // The original message - null if loaded from the pending directory
+    private final AS2Message m_aMsg;
+    private File m_aFile;
+    private int m_nAttempts = 0;
+    private long m_nNextAttempt = 0;
+
+    PendingMDN (@Nonnull final String sURL,
+                @Nonnull final InternetHeaders aHeaders,
+                @Nonnull final byte [] aData,
+                @Nullable final AS2Message aMsg)
+    {
+      m_sURL = sURL;
+      m_aHeaders = aHeaders;
+      m_aData = aData;
+      m_aMsg = aMsg;
+    }
+
+    @Nonnull
+    String getLoggingText ()
+    {
+      return m_aMsg != null ? m_aMsg.getLoggingText () : " [" + m_aHeaders.getHeader (CAS2Header.HEADER_MESSAGE_ID, ",") + "]";
+    }
+  }
+
+  /** The MDNs for one URL */
+  private static final class Destination
+  {
+    private final LinkedList <PendingMDN> m_aQueue = new LinkedList <PendingMDN> ();
+    private boolean m_bBusy = false;
+  }
+
+  // All destinations with pending MDNs - also used as the lock
+  private final Map <String, Destination> m_aDestinations = new LinkedHashMap <String, Destination> ();
+  private final List <Thread> m_aWorkers = new ArrayList <Thread> ();
+  private volatile boolean m_bRunning = false;
+  private final AtomicLong m_aSent = new AtomicLong ();
+  private final AtomicLong m_aRetried = new AtomicLong ();
+  private final AtomicLong m_aFailed = new AtomicLong ();
 
   public boolean canHandle (@Nonnull final String sAction,
                             @Nonnull final IMessage aMsg,
@@ -79,20 +176,518 @@ public class AsynchMDNSenderModule extends AbstractHttpSenderModule
                       @Nonnull final IMessage aMsg,
                       @Nullable final Map <String, Object> aOptions) throws OpenAS2Exception
   {
+    if (!isRunning ())
+    {
+      try
+      {
+        _sendAsyncMDN ((AS2Message) aMsg, aOptions);
+      }
+      finally
+      {
+        if (s_aLogger.isDebugEnabled ())
+          s_aLogger.debug ("asynch mdn message sent");
+      }
+      return;
+    }
+
+    final PendingMDN aPending = _createPendingMDN ((AS2Message) aMsg);
+    _persist (aPending);
+    _enqueue (aPending);
+    s_aLogger.info ("Async MDN queued for " + aPending.m_sURL + aMsg.getLoggingText ());
+  }
+
+  public boolean isRunning ()
+  {
+    return m_bRunning;
+  }
+
+  public void start () throws OpenAS2Exception
+  {
+    final File aPendingDir = _getPendingDirectory ();
+    if (aPendingDir != null)
+      _loadPending (aPendingDir);
+
+    m_bRunning = true;
+    final int nThreads = Math.max (1, getAttributeAsInt (PARAM_THREADS, DEFAULT_THREADS));
+    final ThreadFactory aThreadFactory = new ExtendedDefaultThreadFactory (getName ());
+    for (int i = 0; i < nThreads; ++i)
+    {
+      final Thread aWorker = aThreadFactory.newThread (new Worker ());
+      aWorker.setDaemon (true);
+      aWorker.start ();
+      m_aWorkers.add (aWorker);
+    }
+  }
+
+  /**
+   * Stop the workers. All MDNs that are ready to be sent are sent first, within
+   * the shutdown timeout. MDNs that are still waiting for a retry remain in the
+   * pending directory. If no pending directory is configured, they are handed
+   * to the resender module instead.
+   */
+  public void stop () throws OpenAS2Exception
+  {
+    synchronized (m_aDestinations)
+    {
+      m_bRunning = false;
+      m_aDestinations.notifyAll ();
+    }
+
+    final long nDeadline = System.currentTimeMillis () +
+                           getAttributeAsInt (PARAM_SHUTDOWN_TIMEOUT, DEFAULT_SHUTDOWN_TIMEOUT);
+    try
+    {
+      for (final Thread aWorker : m_aWorkers)
+      {
+        aWorker.join (Math.max (1, nDeadline - System.currentTimeMillis ()));
+        // Interrupts a blocked HTTP connection only on some platforms
+        aWorker.interrupt ();
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    m_aWorkers.clear ();
+
+    final List <PendingMDN> aRemaining = new ArrayList <PendingMDN> ();
+    synchronized (m_aDestinations)
+    {
+      for (final Destination aDest : m_aDestinations.values ())
+        aRemaining.addAll (aDest.m_aQueue);
+      m_aDestinations.clear ();
+    }
+    for (final PendingMDN aPending : aRemaining)
+      if (aPending.m_aFile != null)
+        s_aLogger.info ("Async MDN to " + aPending.m_sURL + " remains pending" + aPending.getLoggingText ());
+      else
+        if (aPending.m_aMsg != null)
+          resend (aPending.m_aMsg, new OpenAS2Exception ("Async MDN not sent before shutdown"));
+  }
+
+  /**
+   * @return The number of MDNs waiting to be sent.
+   */
+  @Nonnegative
+  public int getQueueSize ()
+  {
+    int ret = 0;
+    synchronized (m_aDestinations)
+    {
+      for (final Destination aDest : m_aDestinations.values ())
+        ret += aDest.m_aQueue.size ();
+    }
+    return ret;
+  }
+
+  /**
+   * @return The number of MDNs sent successfully by the workers.
+   */
+  @Nonnegative
+  public long getSentCount ()
+  {
+    return m_aSent.get ();
+  }
+
+  /**
+   * @return The number of failed attempts that were scheduled for a retry.
+   */
+  @Nonnegative
+  public long getRetryCount ()
+  {
+    return m_aRetried.get ();
+  }
+
+  /**
+   * @return The number of MDNs given up after all retries.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailed.get ();
+  }
+
+  @Nonnull
+  private static PendingMDN _createPendingMDN (@Nonnull final AS2Message aMsg) throws OpenAS2Exception
+  {
+    final IMessageMDN aMdn = aMsg.getMDN ();
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    final Enumeration <?> aMdnHeaders = aMdn.getHeaders ().getAllHeaders ();
+    while (aMdnHeaders.hasMoreElements ())
+    {
+      final Header aHeader = (Header) aMdnHeaders.nextElement ();
+      final String sHeaderValue = aHeader.getValue ().replace ('\t', ' ').replace ('\n', ' ').replace ('\r', ' ');
+      aHeaders.addHeader (aHeader.getName (), sHeaderValue);
+    }
+
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    try
+    {
+      StreamUtils.copyInputStreamToOutputStream (aMdn.getData ().getInputStream (), aData);
+    }
+    catch (final Exception ex)
+    {
+      throw new WrappedException (ex);
+    }
+    return new PendingMDN (aMsg.getAsyncMDNurl (), aHeaders, aData.toByteArray (), aMsg);
+  }
+
+  @Nullable
+  private File _getPendingDirectory () throws OpenAS2Exception
+  {
+    final String sPendingDir = getAttributeAsString (PARAM_PENDING_DIRECTORY);
+    return sPendingDir == null ? null : IOUtil.getDirectoryFile (sPendingDir);
+  }
+
+  // Write the URL, the headers and the data - no Java serialization. The data
+  // is written to a temporary file that is synced and renamed afterwards, so a
+  // crash never leaves a partial pending file behind
+  private void _persist (@Nonnull final PendingMDN aPending) throws OpenAS2Exception
+  {
+    final File aPendingDir = _getPendingDirectory ();
+    if (aPendingDir == null)
+      return;
+
+    FileOutputStream aOS = null;
+    File aTempFile = null;
+    try
+    {
+      aTempFile = File.createTempFile ("mdn-", TEMP_EXTENSION, aPendingDir);
+      aOS = new FileOutputStream (aTempFile);
+      aOS.write ((aPending.m_sURL + "\r\n").getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+      final Enumeration <?> aLines = aPending.m_aHeaders.getAllHeaderLines ();
+      while (aLines.hasMoreElements ())
+        aOS.write ((aLines.nextElement () + "\r\n").getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+      aOS.write ("\r\n".getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+      aOS.write (aPending.m_aData);
+      aOS.getFD ().sync ();
+      aOS.close ();
+      aOS = null;
+
+      final String sTempName = aTempFile.getName ();
+      final File aFile = new File (aPendingDir, sTempName.substring (0, sTempName.length () - TEMP_EXTENSION.length ()) +
+                                                PENDING_EXTENSION);
+      if (!aTempFile.renameTo (aFile))
+        throw new IOException ("Failed to rename " + aTempFile + " to " + aFile);
+      aTempFile = null;
+      aPending.m_aFile = aFile;
+    }
+    catch (final IOException ex)
+    {
+      throw new WrappedException (ex);
+    }
+    finally
+    {
+      StreamUtils.close (aOS);
+      if (aTempFile != null)
+        if (!aTempFile.delete ())
+          s_aLogger.warn ("Failed to delete temporary file " + aTempFile);
+    }
+  }
+
+  private void _loadPending (@Nonnull final File aPendingDir)
+  {
+    final File [] aFiles = aPendingDir.listFiles ();
+    if (aFiles == null)
+      return;
+    // Keep the original order
+    Arrays.sort (aFiles, new Comparator <File> ()
+    {
+      public int compare (final File aFile1, final File aFile2)
+      {
+        final long nDiff = aFile1.lastModified () - aFile2.lastModified ();
+        return nDiff < 0 ? -1 : nDiff > 0 ? 1 : 0;
+      }
+    });
+    for (final File aFile : aFiles)
+      if (aFile.isFile () && aFile.getName ().endsWith (PENDING_EXTENSION))
+      {
+        final InputStream aFileIS = FileUtils.getInputStream (aFile);
+        if (aFileIS == null)
+        {
+          s_aLogger.error ("Failed to open pending async MDN " + aFile.getAbsolutePath ());
+          continue;
+        }
+        final InputStream aIS = new NonBlockingBufferedInputStream (aFileIS);
+        try
+        {
+          final StringBuilder aURL = new StringBuilder ();
+          int nByte;
+          while ((nByte = aIS.read ()) >= 0 && nByte != '\n')
+            if (nByte != '\r')
+              aURL.append ((char) nByte);
+          final InternetHeaders aHeaders = new InternetHeaders (aIS);
+          final PendingMDN aPending = new PendingMDN (aURL.toString (), aHeaders, StreamUtils.getAllBytes (aIS), null);
+          aPending.m_aFile = aFile;
+          _enqueue (aPending);
+          s_aLogger.info ("Loaded pending async MDN for " + aPending.m_sURL + aPending.getLoggingText ());
+        }
+        catch (final IOException ex)
+        {
+          s_aLogger.error ("Failed to read pending async MDN " + aFile.getAbsolutePath (), ex);
+        }
+        catch (final MessagingException ex)
+        {
+          s_aLogger.error ("Failed to read pending async MDN " + aFile.getAbsolutePath (), ex);
+        }
+        finally
+        {
+          StreamUtils.close (aIS);
+        }
+      }
+  }
+
+  private void _enqueue (@Nonnull final PendingMDN aPending)
+  {
+    synchronized (m_aDestinations)
+    {
+      Destination aDest = m_aDestinations.get (aPending.m_sURL);
+      if (aDest == null)
+      {
+        aDest = new Destination ();
+        m_aDestinations.put (aPending.m_sURL, aDest);
+      }
+      aDest.m_aQueue.add (aPending);
+      m_aDestinations.notifyAll ();
+    }
+  }
+
+  /**
+   * Send a single queued MDN. The response is read completely and the
+   * connection is returned to the pool, so that the JDK keeps it alive for the
+   * next MDN to the same host.
+   */
+  private void _send (@Nonnull final PendingMDN aPending) throws OpenAS2Exception, IOException
+  {
+    checkCircuitBreaker (aPending.m_sURL);
+    final HttpURLConnection aConn = getConnection (aPending.m_sURL, true, true, false, "POST");
+    boolean bReusable = false;
+    // Only errors after connecting are reported to the circuit breaker
+    boolean bConnecting = false;
+    boolean bUploaded = false;
     try
     {
-      _sendAsyncMDN ((AS2Message) aMsg, aOptions);
+      aConn.setRequestProperty (CAS2Header.HEADER_USER_AGENT, CAS2Header.DEFAULT_USER_AGENT);
+      final Enumeration <?> aHeaders = aPending.m_aHeaders.getAllHeaders ();
+      while (aHeaders.hasMoreElements ())
+      {
+        final Header aHeader = (Header) aHeaders.nextElement ();
+        aConn.setRequestProperty (aHeader.getName (), aHeader.getValue ());
+      }
+      aConn.setFixedLengthStreamingMode (aPending.m_aData.length);
+
+      final StopWatch aSW = new StopWatch (true);
+      bConnecting = true;
+      final OutputStream aOS = aConn.getOutputStream ();
+      aOS.write (aPending.m_aData);
+      aOS.flush ();
+      aSW.stop ();
+      bUploaded = true;
+      s_aLogger.info ("transferred " + IOUtil.getTransferRate (aPending.m_aData.length, aSW) + aPending.getLoggingText ());
+
+      final int nResponseCode = aConn.getResponseCode ();
+      reportCircuitBreaker (aConn, nResponseCode < HttpURLConnection.HTTP_INTERNAL_ERROR);
+      // Consume the response so the connection can be reused
+      bReusable = consumeResponse (aConn);
+
+      if (nResponseCode != HttpURLConnection.HTTP_OK &&
+          nResponseCode != HttpURLConnection.HTTP_CREATED &&
+          nResponseCode != HttpURLConnection.HTTP_ACCEPTED &&
+          nResponseCode != HttpURLConnection.HTTP_PARTIAL &&
+          nResponseCode != HttpURLConnection.HTTP_NO_CONTENT)
+        throw new HttpResponseException (aPending.m_sURL, nResponseCode, aConn.getResponseMessage ());
+    }
+    catch (final IOException ex)
+    {
+      if (bConnecting)
+        reportCircuitBreaker (aConn, bUploaded);
+      throw ex;
     }
     finally
     {
-      if (s_aLogger.isDebugEnabled ())
-        s_aLogger.debug ("asynch mdn message sent");
+      releaseConnection (aConn, bReusable);
+    }
+  }
+
+  private void _onSent (@Nonnull final PendingMDN aPending)
+  {
+    m_aSent.incrementAndGet ();
+    s_aLogger.info ("sent AsyncMDN to " + aPending.m_sURL + " OK" + aPending.getLoggingText ());
+    if (aPending.m_aFile != null && !aPending.m_aFile.delete ())
+      s_aLogger.warn ("Failed to delete pending async MDN " + aPending.m_aFile.getAbsolutePath ());
+
+    // log & store mdn into backup folder.
+    if (aPending.m_aMsg != null)
+      try
+      {
+        getSession ().getProcessor ().handle (IProcessorStorageModule.DO_STOREMDN, aPending.m_aMsg, null);
+      }
+      catch (final OpenAS2Exception ex)
+      {
+        ex.terminate ();
+      }
+  }
+
+  /**
+   * @return <code>true</code> if the MDN should be retried, <code>false</code>
+   *         if all retries are used up.
+   */
+  private boolean _onFailed (@Nonnull final PendingMDN aPending, @Nonnull final Exception aCause)
+  {
+    final OpenAS2Exception aEx = aCause instanceof OpenAS2Exception ? (OpenAS2Exception) aCause
+                                                                    : new WrappedException (aCause);
+    if (aPending.m_aMsg != null)
+      aEx.addSource (OpenAS2Exception.SOURCE_MESSAGE, aPending.m_aMsg);
+    aEx.terminate ();
+
+    aPending.m_nAttempts++;
+    final int nRetries = getRetries (null);
+    if (nRetries >= 0 && aPending.m_nAttempts > nRetries)
+    {
+      m_aFailed.incrementAndGet ();
+      s_aLogger.error ("sent AsyncMDN to " +
+                       aPending.m_sURL +
+                       " Fail - giving up after " +
+                       aPending.m_nAttempts +
+                       " attempts" +
+                       aPending.getLoggingText ());
+      if (aPending.m_aFile != null)
+      {
+        final String sPath = aPending.m_aFile.getAbsolutePath ();
+        final File aFailedFile = new File (sPath.substring (0, sPath.length () - PENDING_EXTENSION.length ()) +
+                                           FAILED_EXTENSION);
+        if (!aPending.m_aFile.renameTo (aFailedFile))
+          s_aLogger.warn ("Failed to rename pending async MDN " + sPath);
+      }
+      return false;
+    }
+
+    m_aRetried.incrementAndGet ();
+    final long nRetryDelay = Math.max (0, getAttributeAsInt (PARAM_RETRY_DELAY, DEFAULT_RETRY_DELAY));
+    final long nMaxRetryDelay = getAttributeAsInt (PARAM_MAX_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY);
+    final long nDelay = Math.min (nRetryDelay << Math.min (aPending.m_nAttempts - 1, 20), nMaxRetryDelay);
+    aPending.m_nNextAttempt = System.currentTimeMillis () + nDelay;
+    s_aLogger.warn ("sent AsyncMDN to " +
+                    aPending.m_sURL +
+                    " Fail - retrying in " +
+                    nDelay +
+                    " ms" +
+                    aPending.getLoggingText ());
+    return true;
+  }
+
+  /**
+   * Takes the next destination with a ready MDN, sends up to
+   * {@link #PARAM_BATCH_SIZE} ready MDNs to it and gives it back.
+   */
+  private final class Worker implements Runnable
+  {
+    public void run ()
+    {
+      final int nBatchSize = Math.max (1, getAttributeAsInt (PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+      while (true)
+      {
+        final String sURL;
+        final Destination aDest;
+        synchronized (m_aDestinations)
+        {
+          final Map.Entry <String, Destination> aEntry = _waitForReadyDestination ();
+          if (aEntry == null)
+            return;
+          sURL = aEntry.getKey ();
+          aDest = aEntry.getValue ();
+          aDest.m_bBusy = true;
+        }
+
+        try
+        {
+          _sendBatch (aDest, nBatchSize);
+        }
+        finally
+        {
+          synchronized (m_aDestinations)
+          {
+            aDest.m_bBusy = false;
+            // Move to the end so other destinations get their turn
+            m_aDestinations.remove (sURL);
+            if (!aDest.m_aQueue.isEmpty ())
+              m_aDestinations.put (sURL, aDest);
+            m_aDestinations.notifyAll ();
+          }
+        }
+      }
+    }
+
+    // Must be called with the lock held. Returns null when the worker should
+    // end: the module was stopped and nothing is ready anymore.
+    @Nullable
+    private Map.Entry <String, Destination> _waitForReadyDestination ()
+    {
+      try
+      {
+        while (true)
+        {
+          final long nNow = System.currentTimeMillis ();
+          long nNextDue = Long.MAX_VALUE;
+          for (final Map.Entry <String, Destination> aEntry : m_aDestinations.entrySet ())
+          {
+            final Destination aDest = aEntry.getValue ();
+            if (!aDest.m_bBusy)
+            {
+              final long nNextAttempt = aDest.m_aQueue.getFirst ().m_nNextAttempt;
+              if (nNextAttempt <= nNow)
+                return aEntry;
+              nNextDue = Math.min (nNextDue, nNextAttempt);
+            }
+          }
+          if (!m_bRunning)
+            return null;
+          m_aDestinations.wait (Math.max (1, Math.min (nNextDue - nNow, 1000)));
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        return null;
+      }
+    }
+
+    private void _sendBatch (@Nonnull final Destination aDest, final int nBatchSize)
+    {
+      for (int i = 0; i < nBatchSize; ++i)
+      {
+        final PendingMDN aPending;
+        synchronized (m_aDestinations)
+        {
+          aPending = aDest.m_aQueue.peekFirst ();
+          if (aPending == null || aPending.m_nNextAttempt > System.currentTimeMillis ())
+            return;
+        }
+
+        boolean bRemove = true;
+        try
+        {
+          _send (aPending);
+          _onSent (aPending);
+        }
+        catch (final Exception ex)
+        {
+          bRemove = !_onFailed (aPending, ex);
+        }
+        synchronized (m_aDestinations)
+        {
+          if (bRemove)
+            aDest.m_aQueue.removeFirst ();
+          else
+            // The destination is probably down - don't try the others now
+            return;
+        }
+      }
     }
   }
 
   protected void updateHttpHeaders (@Nonnull final HttpURLConnection aConn, @Nonnull final IMessage aMsg)
   {
-    aConn.setRequestProperty (CAS2Header.HEADER_CONNECTION, CAS2Header.DEFAULT_CONNECTION);
     aConn.setRequestProperty (CAS2Header.HEADER_USER_AGENT, CAS2Header.DEFAULT_USER_AGENT);
 
     aConn.setRequestProperty (CAS2Header.HEADER_DATE, DateUtil.getFormattedDateNow (CAS2Header.DEFAULT_DATE_FORMAT));
@@ -119,13 +714,16 @@ public class AsynchMDNSenderModule extends AbstractHttpSenderModule
 
       // Create a HTTP connection
       final String sUrl = aMsg.getAsyncMDNurl ();
+      checkCircuitBreaker (sUrl);
       final HttpURLConnection aConn = getConnection (sUrl, true, true, false, "POST");
-
+      boolean bReusable = false;
+      // Only errors after connecting are reported to the circuit breaker
+      boolean bConnecting = false;
+      boolean bUploaded = false;
       try
       {
         s_aLogger.info ("connected to " + sUrl + aMsg.getLoggingText ());
 
-        aConn.setRequestProperty (CAS2Header.HEADER_CONNECTION, CAS2Header.DEFAULT_CONNECTION);
         aConn.setRequestProperty (CAS2Header.HEADER_USER_AGENT, CAS2Header.DEFAULT_USER_AGENT);
         // Copy all the header from mdn to the RequestProperties of conn
         final Enumeration <?> aHeaders = aMdn.getHeaders ().getAllHeaders ();
@@ -136,19 +734,23 @@ public class AsynchMDNSenderModule extends AbstractHttpSenderModule
           aConn.setRequestProperty (aHeader.getName (), sHeaderValue);
         }
 
+        final InputStream aMessageIS = aMdn.getData ().getInputStream ();
+
         // Note: closing this stream causes connection abort errors on some AS2
         // servers
+        bConnecting = true;
         final OutputStream aMessageOS = aConn.getOutputStream ();
 
         // Transfer the data
-        final InputStream aMessageIS = aMdn.getData ().getInputStream ();
         final StopWatch aSW = new StopWatch (true);
         final long nBytes = IOUtil.copy (aMessageIS, aMessageOS);
         aSW.stop ();
+        bUploaded = true;
         s_aLogger.info ("transferred " + IOUtil.getTransferRate (nBytes, aSW) + aMsg.getLoggingText ());
 
         // Check the HTTP Response code
         final int nResponseCode = aConn.getResponseCode ();
+        reportCircuitBreaker (aConn, nResponseCode < HttpURLConnection.HTTP_INTERNAL_ERROR);
         if (nResponseCode != HttpURLConnection.HTTP_OK &&
             nResponseCode != HttpURLConnection.HTTP_CREATED &&
             nResponseCode != HttpURLConnection.HTTP_ACCEPTED &&
@@ -161,12 +763,20 @@ public class AsynchMDNSenderModule extends AbstractHttpSenderModule
 
         s_aLogger.info ("sent AsyncMDN [" + aDisposition.toString () + "] OK " + aMsg.getLoggingText ());
 
+        bReusable = consumeResponse (aConn);
+
         // log & store mdn into backup folder.
-        ((ISession) aOptions.get ("session")).getProcessor ().handle (IProcessorStorageModule.DO_STOREMDN, aMsg, null);
+        getSession ().getProcessor ().handle (IProcessorStorageModule.DO_STOREMDN, aMsg, null);
+      }
+      catch (final IOException ex)
+      {
+        if (bConnecting)
+          reportCircuitBreaker (aConn, bUploaded);
+        throw ex;
       }
       finally
       {
-        aConn.disconnect ();
+        releaseConnection (aConn, bReusable);
       }
     }
     catch (final HttpResponseException ex)
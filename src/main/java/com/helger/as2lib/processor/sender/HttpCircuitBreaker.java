@@ -0,0 +1,258 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * Circuit breaker per destination host and port of the HTTP sender modules.
+ * After a number of consecutive connect errors or server errors the circuit
+ * of the destination is opened and all transfers to it fail immediately with
+ * a {@link ConnectException}, instead of waiting for the connect timeout. After
+ * the open interval a single transfer is let through as a trial (half open),
+ * while all others still fail immediately. If the trial succeeds the circuit
+ * is closed, if it fails the circuit stays open for another interval.<br>
+ * The trial is a real transfer, so it takes the same route as all other
+ * transfers, e.g. via an HTTP proxy. A trial that reports neither success nor
+ * failure is replaced by a new one after another interval.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class HttpCircuitBreaker
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (HttpCircuitBreaker.class);
+
+  private static final class Endpoint
+  {
+    private int m_nFailures = 0;
+    private long m_nOpenIntervalMS = 0;
+    // 0 if the circuit is closed
+    private long m_nOpenUntil = 0;
+    // 0 if no trial transfer is running
+    private long m_nTrialStart = 0;
+
+    Endpoint ()
+    {}
+
+    boolean isOpen ()
+    {
+      return m_nOpenUntil != 0;
+    }
+  }
+
+  private final Map <String, Endpoint> m_aEndpoints = new HashMap <String, Endpoint> ();
+  private final AtomicLong m_aOpened = new AtomicLong ();
+  private final AtomicLong m_aRejected = new AtomicLong ();
+
+  public HttpCircuitBreaker ()
+  {}
+
+  @Nonnull
+  private static String _getKey (@Nonnull final URL aURL)
+  {
+    final int nPort = aURL.getPort () < 0 ? aURL.getDefaultPort () : aURL.getPort ();
+    return aURL.getHost ().toLowerCase () + ':' + nPort;
+  }
+
+  /**
+   * @param aURL
+   *        The destination URL
+   * @return <code>true</code> if the circuit of the host and port of the URL is
+   *         open or half open.
+   */
+  public synchronized boolean isOpen (@Nonnull final URL aURL)
+  {
+    final Endpoint aEndpoint = m_aEndpoints.get (_getKey (aURL));
+    return aEndpoint != null && aEndpoint.isOpen ();
+  }
+
+  /**
+   * Check that a transfer to the host and port of the URL is allowed. If the
+   * open interval of an open circuit elapsed, the calling transfer is allowed
+   * as the trial.
+   *
+   * @param aURL
+   *        The destination URL
+   * @throws ConnectException
+   *         If the circuit of the destination is open
+   */
+  public void checkClosed (@Nonnull final URL aURL) throws ConnectException
+  {
+    final String sKey = _getKey (aURL);
+    synchronized (this)
+    {
+      final Endpoint aEndpoint = m_aEndpoints.get (sKey);
+      if (aEndpoint == null || !aEndpoint.isOpen ())
+        return;
+
+      final long nNow = System.currentTimeMillis ();
+      if (nNow >= aEndpoint.m_nOpenUntil &&
+          (aEndpoint.m_nTrialStart == 0 || nNow - aEndpoint.m_nTrialStart >= aEndpoint.m_nOpenIntervalMS))
+      {
+        aEndpoint.m_nTrialStart = nNow;
+        s_aLogger.info ("Circuit breaker for " + sKey + " is half open - letting a trial transfer through");
+        return;
+      }
+    }
+    m_aRejected.incrementAndGet ();
+    throw new ConnectException ("Circuit breaker is open for " + sKey);
+  }
+
+  /**
+   * A transfer to the host and port of the URL succeeded.
+   *
+   * @param aURL
+   *        The destination URL
+   */
+  public synchronized void onSuccess (@Nonnull final URL aURL)
+  {
+    final String sKey = _getKey (aURL);
+    final Endpoint aEndpoint = m_aEndpoints.get (sKey);
+    if (aEndpoint == null)
+      return;
+    if (aEndpoint.isOpen ())
+    {
+      // A transfer that started before the circuit was opened
+      if (aEndpoint.m_nTrialStart == 0)
+        return;
+      s_aLogger.info ("Closing circuit breaker for " + sKey);
+    }
+    aEndpoint.m_nFailures = 0;
+    aEndpoint.m_nOpenUntil = 0;
+    aEndpoint.m_nTrialStart = 0;
+  }
+
+  /**
+   * A transfer to the host and port of the URL failed because of a connect
+   * error or a server error.
+   *
+   * @param aURL
+   *        The destination URL
+   * @param nThreshold
+   *        Number of consecutive failures that open the circuit. Must be &gt;
+   *        0.
+   * @param nOpenIntervalMS
+   *        Milliseconds the circuit stays open before a trial transfer is
+   *        allowed
+   */
+  public synchronized void onFailure (@Nonnull final URL aURL,
+                                      @Nonnegative final int nThreshold,
+                                      @Nonnegative final long nOpenIntervalMS)
+  {
+    final String sKey = _getKey (aURL);
+    Endpoint aEndpoint = m_aEndpoints.get (sKey);
+    if (aEndpoint == null)
+    {
+      aEndpoint = new Endpoint ();
+      m_aEndpoints.put (sKey, aEndpoint);
+    }
+    aEndpoint.m_nOpenIntervalMS = nOpenIntervalMS;
+
+    if (aEndpoint.isOpen ())
+    {
+      if (aEndpoint.m_nTrialStart != 0)
+      {
+        // The trial failed - stay open for another interval
+        aEndpoint.m_nTrialStart = 0;
+        aEndpoint.m_nOpenUntil = System.currentTimeMillis () + nOpenIntervalMS;
+        s_aLogger.warn ("Trial transfer to " + sKey + " failed - circuit breaker stays open");
+      }
+      return;
+    }
+
+    aEndpoint.m_nFailures++;
+    if (aEndpoint.m_nFailures < nThreshold)
+      return;
+
+    s_aLogger.warn ("Opening circuit breaker for " + sKey + " after " + aEndpoint.m_nFailures + " consecutive failures");
+    m_aOpened.incrementAndGet ();
+    aEndpoint.m_nTrialStart = 0;
+    aEndpoint.m_nOpenUntil = System.currentTimeMillis () + nOpenIntervalMS;
+  }
+
+  /**
+   * @return The number of destinations whose circuit is currently open or
+   *         half open.
+   */
+  @Nonnegative
+  public synchronized int getOpenCount ()
+  {
+    int ret = 0;
+    for (final Endpoint aEndpoint : m_aEndpoints.values ())
+      if (aEndpoint.isOpen ())
+        ret++;
+    return ret;
+  }
+
+  /**
+   * @return The number of times a circuit was opened.
+   */
+  @Nonnegative
+  public long getOpenedCount ()
+  {
+    return m_aOpened.get ();
+  }
+
+  /**
+   * @return The number of transfers that failed immediately, because the
+   *         circuit of the destination was open.
+   */
+  @Nonnegative
+  public long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("open", getOpenCount ())
+                                       .append ("opened", getOpenedCount ())
+                                       .append ("rejected", getRejectedCount ())
+                                       .toString ();
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.phloc.commons.ValueEnforcer;
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * Limits and accounts the persistent HTTP connections of all HTTP sender
+ * modules per route (protocol, host and port).<br>
+ * The sockets themselves are kept alive by the JDK keep-alive cache of
+ * {@link HttpURLConnection} - a connection is returned to it if the response
+ * was read completely and it is not disconnected. TLS sessions are resumed by
+ * the session cache of the shared default SSL socket factory. This class
+ * optionally limits the number of connections leased per route and counts the
+ * leases.<br>
+ * Note: the JDK cache cannot be inspected, so whether a lease reuses an idle
+ * connection is not known. The JDK keeps at most
+ * <code>http.maxConnections</code> (5 by default) idle connections per
+ * destination, so a higher limit per route doesn't keep more connections
+ * alive between messages.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class HttpConnectionPool
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (HttpConnectionPool.class);
+
+  private static final class Route
+  {
+    private final int m_nMaxPerRoute;
+    // null if the number of connections is not limited
+    private final Semaphore m_aPermits;
+    private boolean m_bLimitMismatchLogged = false;
+
+    Route (final int nMaxPerRoute)
+    {
+      m_nMaxPerRoute = nMaxPerRoute;
+      m_aPermits = nMaxPerRoute > 0 ? new Semaphore (nMaxPerRoute, true) : null;
+    }
+  }
+
+  private final Map <String, Route> m_aRoutes = new HashMap <String, Route> ();
+  private final Map <HttpURLConnection, Route> m_aLeased = new IdentityHashMap <HttpURLConnection, Route> ();
+  private final AtomicLong m_aLeases = new AtomicLong ();
+  private final AtomicLong m_aWaitTimeouts = new AtomicLong ();
+
+  public HttpConnectionPool ()
+  {}
+
+  @Nonnull
+  public static String getRouteKey (@Nonnull final URL aURL)
+  {
+    final int nPort = aURL.getPort () >= 0 ? aURL.getPort () : aURL.getDefaultPort ();
+    return aURL.getProtocol ().toLowerCase () + "://" + aURL.getHost ().toLowerCase () + ":" + nPort;
+  }
+
+  @Nonnull
+  private synchronized Route _getRoute (@Nonnull final String sRouteKey, final int nMaxPerRoute)
+  {
+    Route aRoute = m_aRoutes.get (sRouteKey);
+    if (aRoute == null)
+    {
+      // The first module using a route defines its limit
+      aRoute = new Route (nMaxPerRoute);
+      m_aRoutes.put (sRouteKey, aRoute);
+    }
+    else
+      if (aRoute.m_nMaxPerRoute != Math.max (0, nMaxPerRoute) && !aRoute.m_bLimitMismatchLogged)
+      {
+        aRoute.m_bLimitMismatchLogged = true;
+        s_aLogger.warn ("Ignoring connection limit " +
+                        nMaxPerRoute +
+                        " for " +
+                        sRouteKey +
+                        " - the limit " +
+                        aRoute.m_nMaxPerRoute +
+                        " of the module that used the route first applies");
+      }
+    return aRoute;
+  }
+
+  /**
+   * Lease a connection of its route. If the route is limited, blocks until
+   * less than the maximum number of connections of the route are leased.
+   *
+   * @param aConn
+   *        The connection that is about to be used. May not be
+   *        <code>null</code>.
+   * @param nMaxPerRoute
+   *        Maximum number of leased connections per route or 0 for no limit.
+   *        Only the value passed on the first lease of a route is used.
+   * @param nWaitMS
+   *        Maximum milliseconds to wait for a free connection.
+   * @throws SendSlotTimeoutException
+   *         If no connection became available in time
+   */
+  public void lease (@Nonnull final HttpURLConnection aConn,
+                     final int nMaxPerRoute,
+                     final long nWaitMS) throws SendSlotTimeoutException
+  {
+    ValueEnforcer.notNull (aConn, "Connection");
+
+    final String sRouteKey = getRouteKey (aConn.getURL ());
+    final Route aRoute = _getRoute (sRouteKey, nMaxPerRoute);
+    if (aRoute.m_aPermits != null)
+    {
+      boolean bAcquired;
+      try
+      {
+        bAcquired = aRoute.m_aPermits.tryAcquire (nWaitMS, TimeUnit.MILLISECONDS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        bAcquired = false;
+      }
+      if (!bAcquired)
+      {
+        m_aWaitTimeouts.incrementAndGet ();
+        throw new SendSlotTimeoutException ("No connection to " + sRouteKey + " available within " + nWaitMS + "ms");
+      }
+    }
+
+    m_aLeases.incrementAndGet ();
+    synchronized (this)
+    {
+      m_aLeased.put (aConn, aRoute);
+    }
+  }
+
+  /**
+   * Return a leased connection.
+   *
+   * @param aConn
+   *        The connection to return. May not be <code>null</code>.
+   * @param bReusable
+   *        <code>true</code> if the response was read completely and the
+   *        server did not request to close the connection. Otherwise the
+   *        connection is disconnected.
+   */
+  public void release (@Nonnull final HttpURLConnection aConn, final boolean bReusable)
+  {
+    if (!bReusable)
+      aConn.disconnect ();
+
+    Route aRoute;
+    synchronized (this)
+    {
+      aRoute = m_aLeased.remove (aConn);
+    }
+    if (aRoute != null && aRoute.m_aPermits != null)
+      aRoute.m_aPermits.release ();
+  }
+
+  /**
+   * @return The number of successful leases.
+   */
+  @Nonnegative
+  public long getLeaseCount ()
+  {
+    return m_aLeases.get ();
+  }
+
+  /**
+   * @return The number of leases that timed out waiting for a free connection.
+   */
+  @Nonnegative
+  public long getWaitTimeoutCount ()
+  {
+    return m_aWaitTimeouts.get ();
+  }
+
+  /**
+   * @return The number of currently leased connections.
+   */
+  @Nonnegative
+  public synchronized int getLeasedCount ()
+  {
+    return m_aLeased.size ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("leases", getLeaseCount ())
+                                       .append ("waitTimeouts", getWaitTimeoutCount ())
+                                       .append ("leased", getLeasedCount ())
+                                       .toString ();
+  }
+}
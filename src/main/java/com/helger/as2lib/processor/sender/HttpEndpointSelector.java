@@ -0,0 +1,256 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.phloc.commons.string.StringParser;
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * Selects one of several endpoints a partner receives messages on. The
+ * endpoints are configured as a list of URLs separated by commas or
+ * whitespace, each with an optional weight, e.g.
+ * <code>https://node1/as2;weight=2, https://node2/as2</code>.<br>
+ * An endpoint that failed is not selected again for a retry interval, unless
+ * no other endpoint is left. Two selection modes are supported:
+ * <ul>
+ * <li>{@link #SELECTION_ROUND_ROBIN} - smooth weighted round robin</li>
+ * <li>{@link #SELECTION_LEAST_OUTSTANDING} - the endpoint with the fewest
+ * transfers in progress relative to its weight</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class HttpEndpointSelector
+{
+  public static final String SELECTION_ROUND_ROBIN = "roundrobin";
+  public static final String SELECTION_LEAST_OUTSTANDING = "leastoutstanding";
+
+  private static final String WEIGHT_PREFIX = ";weight=";
+
+  /**
+   * A single endpoint of a partner.
+   */
+  public static final class Endpoint
+  {
+    private final String m_sURL;
+    private final int m_nWeight;
+    // Guarded by the endpoint selector
+    private int m_nCurrentWeight = 0;
+    private int m_nOutstanding = 0;
+    private long m_nRetryAfter = 0;
+
+    Endpoint (@Nonnull final String sURL, @Nonnegative final int nWeight)
+    {
+      m_sURL = sURL;
+      m_nWeight = nWeight;
+    }
+
+    @Nonnull
+    public String getURL ()
+    {
+      return m_sURL;
+    }
+
+    @Nonnegative
+    public int getWeight ()
+    {
+      return m_nWeight;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("URL", m_sURL)
+                                         .append ("weight", m_nWeight)
+                                         .append ("outstanding", m_nOutstanding)
+                                         .append ("retryAfter", m_nRetryAfter)
+                                         .toString ();
+    }
+  }
+
+  private final Map <String, List <Endpoint>> m_aEndpoints = new HashMap <String, List <Endpoint>> ();
+
+  public HttpEndpointSelector ()
+  {}
+
+  /**
+   * Parse a list of endpoints.
+   *
+   * @param sURLs
+   *        The URLs separated by commas or whitespace, each with an optional
+   *        <code>;weight=n</code> suffix
+   * @return The endpoints in the order of the list. Never <code>null</code>.
+   */
+  @Nonnull
+  public static List <Endpoint> parseEndpoints (@Nonnull final String sURLs)
+  {
+    final List <Endpoint> ret = new ArrayList <Endpoint> ();
+    for (final String sToken : sURLs.trim ().split ("[,\\s]+"))
+      if (sToken.length () > 0)
+      {
+        final int nIndex = sToken.toLowerCase ().lastIndexOf (WEIGHT_PREFIX);
+        if (nIndex < 0)
+          ret.add (new Endpoint (sToken, 1));
+        else
+          ret.add (new Endpoint (sToken.substring (0, nIndex),
+                                 Math.max (1,
+                                           StringParser.parseInt (sToken.substring (nIndex + WEIGHT_PREFIX.length ()),
+                                                                  1))));
+      }
+    return ret;
+  }
+
+  @Nonnull
+  private List <Endpoint> _getEndpoints (@Nonnull final String sURLs)
+  {
+    List <Endpoint> aEndpoints = m_aEndpoints.get (sURLs);
+    if (aEndpoints == null)
+    {
+      aEndpoints = Collections.unmodifiableList (parseEndpoints (sURLs));
+      m_aEndpoints.put (sURLs, aEndpoints);
+    }
+    return aEndpoints;
+  }
+
+  /**
+   * Select the endpoint for the next transfer and count it as outstanding.
+   * Each selected endpoint must be passed to
+   * {@link #release(Endpoint, boolean, long)} afterwards.
+   *
+   * @param sURLs
+   *        The list of endpoints as configured in the partnership
+   * @param sSelection
+   *        The selection mode. Defaults to {@link #SELECTION_ROUND_ROBIN}.
+   * @param aTried
+   *        The endpoints already tried for the current message. These are not
+   *        selected again.
+   * @return <code>null</code> if no endpoint is left
+   */
+  @Nullable
+  public synchronized Endpoint select (@Nonnull final String sURLs,
+                                       @Nullable final String sSelection,
+                                       @Nonnull final Set <Endpoint> aTried)
+  {
+    final long nNow = System.currentTimeMillis ();
+    final List <Endpoint> aAll = _getEndpoints (sURLs);
+    final List <Endpoint> aCandidates = new ArrayList <Endpoint> ();
+    for (final Endpoint aEndpoint : aAll)
+      if (!aTried.contains (aEndpoint) && aEndpoint.m_nRetryAfter <= nNow)
+        aCandidates.add (aEndpoint);
+    // All endpoints failed recently - try them anyway instead of not at all
+    if (aCandidates.isEmpty () && aTried.isEmpty ())
+      aCandidates.addAll (aAll);
+    if (aCandidates.isEmpty ())
+      return null;
+
+    Endpoint ret = null;
+    if (SELECTION_LEAST_OUTSTANDING.equals (sSelection))
+    {
+      // Compare outstanding / weight without dividing
+      for (final Endpoint aEndpoint : aCandidates)
+        if (ret == null ||
+            (long) aEndpoint.m_nOutstanding * ret.m_nWeight < (long) ret.m_nOutstanding * aEndpoint.m_nWeight)
+          ret = aEndpoint;
+    }
+    else
+    {
+      int nTotalWeight = 0;
+      for (final Endpoint aEndpoint : aCandidates)
+      {
+        aEndpoint.m_nCurrentWeight += aEndpoint.m_nWeight;
+        nTotalWeight += aEndpoint.m_nWeight;
+        if (ret == null || aEndpoint.m_nCurrentWeight > ret.m_nCurrentWeight)
+          ret = aEndpoint;
+      }
+      ret.m_nCurrentWeight -= nTotalWeight;
+    }
+    ret.m_nOutstanding++;
+    return ret;
+  }
+
+  /**
+   * Finish a transfer to an endpoint returned by
+   * {@link #select(String, String, Set)}.
+   *
+   * @param aEndpoint
+   *        The endpoint
+   * @param bFailed
+   *        <code>true</code> if the endpoint was unreachable or responded with
+   *        a server error
+   * @param nRetryIntervalMS
+   *        Milliseconds a failed endpoint is not selected again
+   */
+  public synchronized void release (@Nonnull final Endpoint aEndpoint,
+                                    final boolean bFailed,
+                                    @Nonnegative final long nRetryIntervalMS)
+  {
+    aEndpoint.m_nOutstanding--;
+    aEndpoint.m_nRetryAfter = bFailed ? System.currentTimeMillis () + nRetryIntervalMS : 0;
+  }
+
+  /**
+   * @param sURLs
+   *        The list of endpoints as configured in the partnership
+   * @return The number of endpoints of the list that did not fail within
+   *         their retry interval.
+   */
+  @Nonnegative
+  public synchronized int getHealthyCount (@Nonnull final String sURLs)
+  {
+    final long nNow = System.currentTimeMillis ();
+    int ret = 0;
+    for (final Endpoint aEndpoint : _getEndpoints (sURLs))
+      if (aEndpoint.m_nRetryAfter <= nNow)
+        ret++;
+    return ret;
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    return new ToStringGenerator (this).append ("endpoints", m_aEndpoints).toString ();
+  }
+}
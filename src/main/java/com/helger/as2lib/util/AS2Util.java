@@ -129,6 +129,12 @@ public final class AS2Util
     final DispositionOptions aDispOptions = new DispositionOptions (aMsg.getHeader (CAS2Header.HEADER_DISPOSITION_NOTIFICATION_OPTIONS));
     String sMIC = null;
     if (aDispOptions.getMICAlg () != null)
+    {
+      // If the data was compressed before signing, the MIC was already
+      // calculated over the compressed data
+      sMIC = aMsg.getAttribute (AS2Message.MA_COMPRESSED_MIC);
+    }
+    if (sMIC == null && aDispOptions.getMICAlg () != null)
     {
       sMIC = getCryptoHelper ().calculateMIC (aMsg.getData (),
                                               aDispOptions.getMICAlg (),
@@ -152,18 +158,10 @@ public final class AS2Util
                                     @Nonnull final String sMicAlg,
                                     @Nullable final String sSignatureProtocol) throws Exception
   {
-    // Create the report and sub-body parts
-    final MimeMultipart aReportParts = new MimeMultipart ();
-
     // Create the text part
-    final MimeBodyPart aTextPart = new MimeBodyPart ();
     final String sText = aMdn.getText () + "\r\n";
-    aTextPart.setContent (sText, CMimeType.TEXT_PLAIN.getAsString ());
-    aTextPart.setHeader (CAS2Header.HEADER_CONTENT_TYPE, CMimeType.TEXT_PLAIN.getAsString ());
-    aReportParts.addBodyPart (aTextPart);
 
     // Create the report part
-    final MimeBodyPart aReportPart = new MimeBodyPart ();
     final InternetHeaders aReportValues = new InternetHeaders ();
     aReportValues.setHeader (HEADER_REPORTING_UA, aMdn.getAttribute (AS2MessageMDN.MDNA_REPORTING_UA));
     aReportValues.setHeader (HEADER_ORIGINAL_RECIPIENT, aMdn.getAttribute (AS2MessageMDN.MDNA_ORIG_RECIPIENT));
@@ -180,16 +178,8 @@ public final class AS2Util
     }
     aReportData.append ("\r\n");
 
-    final String sReportText = aReportData.toString ();
-    aReportPart.setContent (sReportText, "message/disposition-notification");
-    aReportPart.setHeader (CAS2Header.HEADER_CONTENT_TYPE, "message/disposition-notification");
-    aReportParts.addBodyPart (aReportPart);
-
-    // Convert report parts to MimeBodyPart
-    final MimeBodyPart aReport = new MimeBodyPart ();
-    aReportParts.setSubType ("report; report-type=disposition-notification");
-    aReport.setContent (aReportParts);
-    aReport.setHeader (CAS2Header.HEADER_CONTENT_TYPE, aReportParts.getContentType ());
+    // Render both parts into a multipart/report body part
+    final MimeBodyPart aReport = MDNSerializer.createReport (sText, aReportData.toString ());
 
     // Sign the data if needed
     if (sSignatureProtocol != null)
@@ -35,7 +35,7 @@ package com.helger.as2lib.util;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -75,7 +75,10 @@ import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
 import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientId;
 import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.bouncycastle.cms.jcajce.ZlibExpanderProvider;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.mail.smime.SMIMECompressed;
+import org.bouncycastle.mail.smime.SMIMECompressedGenerator;
 import org.bouncycastle.mail.smime.SMIMEEnveloped;
 import org.bouncycastle.mail.smime.SMIMEEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMEException;
@@ -87,12 +90,74 @@ import org.bouncycastle.operator.OutputEncryptor;
 import org.bouncycastle.util.encoders.Base64;
 
 import com.phloc.commons.ValueEnforcer;
-import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
-import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
 import com.phloc.commons.io.streams.StreamUtils;
 
 public final class BCCryptoHelper implements ICryptoHelper
 {
+  /**
+   * Updates a message digest with all bytes written, except for leading CRLF
+   * pairs.
+   */
+  private static final class CRLFPrefixSkippingDigestOutputStream extends OutputStream
+  {
+    private final MessageDigest m_aMessageDigest;
+    private boolean m_bInPrefix = true;
+    private boolean m_bPendingCR = false;
+
+    CRLFPrefixSkippingDigestOutputStream (@Nonnull final MessageDigest aMessageDigest)
+    {
+      m_aMessageDigest = aMessageDigest;
+    }
+
+    @Override
+    public void write (final int b)
+    {
+      if (m_bInPrefix)
+      {
+        if (m_bPendingCR)
+        {
+          m_bPendingCR = false;
+          if (b == '\n')
+            return;
+          // Not a CRLF pair
+          m_aMessageDigest.update ((byte) '\r');
+          m_bInPrefix = false;
+        }
+        else
+          if (b == '\r')
+          {
+            m_bPendingCR = true;
+            return;
+          }
+          else
+            m_bInPrefix = false;
+      }
+      m_aMessageDigest.update ((byte) b);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen)
+    {
+      int nStart = nOfs;
+      final int nEnd = nOfs + nLen;
+      while (m_bInPrefix && nStart < nEnd)
+        write (aBuf[nStart++]);
+      if (nStart < nEnd)
+        m_aMessageDigest.update (aBuf, nStart, nEnd - nStart);
+    }
+
+    @Override
+    public void close ()
+    {
+      // A single trailing CR is part of the data
+      if (m_bPendingCR)
+      {
+        m_aMessageDigest.update ((byte) '\r');
+        m_bPendingCR = false;
+      }
+    }
+  }
+
   public BCCryptoHelper ()
   {
     Security.addProvider (new BouncyCastleProvider ());
@@ -137,31 +202,21 @@ public final class BCCryptoHelper implements ICryptoHelper
 
     final MessageDigest aMessageDigest = MessageDigest.getInstance (aMICAlg.getId (), "BC");
 
-    // convert the Mime data to a byte array, then to an InputStream
-    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    // Hash the data while it is written - leading CRLFs are not part of the
+    // MIC
+    final CRLFPrefixSkippingDigestOutputStream aDigOS = new CRLFPrefixSkippingDigestOutputStream (aMessageDigest);
     if (bIncludeHeaders)
     {
-      aPart.writeTo (aBAOS);
+      aPart.writeTo (aDigOS);
     }
     else
     {
       // Only the "content" of the part
-      StreamUtils.copyInputStreamToOutputStream (aPart.getInputStream (), aBAOS);
+      StreamUtils.copyInputStreamToOutputStream (aPart.getInputStream (), aDigOS);
     }
+    aDigOS.close ();
 
-    final byte [] aData = aBAOS.toByteArray ();
-
-    final InputStream bIn = _trimCRLFPrefix (aData);
-
-    // calculate the hash of the data and mime header
-    final DigestInputStream aDigIS = new DigestInputStream (bIn, aMessageDigest);
-    final byte [] aBuf = new byte [4096];
-    while (aDigIS.read (aBuf) >= 0)
-    {}
-
-    aBAOS.close ();
-
-    final byte [] aMIC = aDigIS.getMessageDigest ().digest ();
+    final byte [] aMIC = aMessageDigest.digest ();
     final String sMICString = new String (Base64.encode (aMIC));
 
     return sMICString + ", " + sDigest;
@@ -284,6 +339,48 @@ public final class BCCryptoHelper implements ICryptoHelper
     return aSignedPart.getContent ();
   }
 
+  public boolean isCompressed (@Nonnull final MimeBodyPart aPart) throws MessagingException
+  {
+    // Content-Type is sthg like:
+    // application/pkcs7-mime; name=smime.p7z; smime-type=compressed-data
+    final ContentType aContentType = new ContentType (aPart.getContentType ());
+    final String sBaseType = aContentType.getBaseType ().toLowerCase (Locale.US);
+    if (!sBaseType.equals ("application/pkcs7-mime"))
+      return false;
+
+    final String sSmimeType = aContentType.getParameter ("smime-type");
+    return sSmimeType != null && sSmimeType.equalsIgnoreCase ("compressed-data");
+  }
+
+  @Nonnull
+  public MimeBodyPart compress (@Nonnull final MimeBodyPart aPart, @Nonnull final String sAlgorithm) throws NoSuchAlgorithmException,
+                                                                                                  SMIMEException
+  {
+    ValueEnforcer.notNull (sAlgorithm, "Algorithm");
+
+    // RFC 5402 only defines ZLIB compression
+    if (!sAlgorithm.equalsIgnoreCase (COMPRESSION_ZLIB))
+      throw new NoSuchAlgorithmException ("Unknown compression algorithm: " + sAlgorithm);
+
+    final SMIMECompressedGenerator aGen = new SMIMECompressedGenerator ();
+    return aGen.generate (aPart, SMIMECompressedGenerator.ZLIB);
+  }
+
+  @Nonnull
+  public MimeBodyPart decompress (@Nonnull final MimeBodyPart aPart) throws GeneralSecurityException,
+                                                                   MessagingException,
+                                                                   CMSException,
+                                                                   SMIMEException
+  {
+    // Make sure the data is compressed
+    if (!isCompressed (aPart))
+      throw new GeneralSecurityException ("Content-Type indicates data isn't compressed");
+
+    final SMIMECompressed aCompressed = new SMIMECompressed (aPart);
+    final byte [] aDecompressedData = aCompressed.getContent (new ZlibExpanderProvider ());
+    return SMIMEUtil.toMimeBodyPart (aDecompressedData);
+  }
+
   @Nonnull
   private static ASN1ObjectIdentifier _convertAlgorithmToBC (@Nonnull final String sAlgorithm) throws NoSuchAlgorithmException
   {
@@ -304,27 +401,6 @@ public final class BCCryptoHelper implements ICryptoHelper
     throw new NoSuchAlgorithmException ("Unknown algorithm to BC: " + sAlgorithm);
   }
 
-  @Nonnull
-  private static InputStream _trimCRLFPrefix (@Nonnull final byte [] aData)
-  {
-    final NonBlockingByteArrayInputStream aIS = new NonBlockingByteArrayInputStream (aData);
-
-    int nScanPos = 0;
-    final int nLen = aData.length;
-    while (nScanPos < (nLen - 1))
-    {
-      if (!new String (aData, nScanPos, 2).equals ("\r\n"))
-        break;
-
-      // skip \r\n
-      aIS.read ();
-      aIS.read ();
-      nScanPos += 2;
-    }
-
-    return aIS;
-  }
-
   @Nonnull
   public KeyStore getKeyStore () throws KeyStoreException, NoSuchProviderException
   {
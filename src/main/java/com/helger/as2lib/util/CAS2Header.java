@@ -48,6 +48,7 @@ public final class CAS2Header
   public static final String HEADER_DATE = "Date";
   public static final String HEADER_DISPOSITION_NOTIFICATION_OPTIONS = "Disposition-Notification-Options";
   public static final String HEADER_DISPOSITION_NOTIFICATION_TO = "Disposition-Notification-To";
+  public static final String HEADER_EXPECT = "Expect";
   public static final String HEADER_FROM = "From";
   public static final String HEADER_MESSAGE_ID = "Message-ID";
   public static final String HEADER_MIME_VERSION = "Mime-Version";
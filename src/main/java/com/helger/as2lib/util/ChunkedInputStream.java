@@ -0,0 +1,290 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import com.phloc.commons.ValueEnforcer;
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+
+/**
+ * An input stream that decodes the HTTP/1.1 <code>chunked</code> transfer
+ * encoding (RFC 2616 section 3.6.1) on the fly. Chunk extensions are ignored
+ * and the trailer headers are available via {@link #getTrailers()} once the
+ * end of the stream was reached.<br>
+ * Closing this stream does not close the underlying stream but skips all
+ * remaining chunks, so that the underlying stream is positioned after the
+ * message.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class ChunkedInputStream extends InputStream
+{
+  /** Maximum length of a single chunk size line incl. extensions */
+  private static final int MAX_CHUNK_LINE_LENGTH = 4096;
+
+  private final InputStream m_aIS;
+  private long m_nChunkRemaining = 0;
+  private boolean m_bFirstChunk = true;
+  private boolean m_bEOF = false;
+  private boolean m_bClosed = false;
+  private InternetHeaders m_aTrailers;
+
+  public ChunkedInputStream (@Nonnull @WillNotClose final InputStream aIS)
+  {
+    m_aIS = ValueEnforcer.notNull (aIS, "InputStream");
+  }
+
+  private int _readRaw () throws IOException
+  {
+    final int ret = m_aIS.read ();
+    if (ret < 0)
+      throw new EOFException ("Unexpected end of chunked stream");
+    return ret;
+  }
+
+  /**
+   * Read the chunk size line. It consists of the hex chunk size, optionally
+   * followed by chunk extensions starting with ';' which are ignored.
+   */
+  private long _readChunkSize () throws IOException
+  {
+    long nSize = 0;
+    int nDigits = 0;
+    boolean bSizeEnd = false;
+    boolean bInExtension = false;
+    int nLineLength = 0;
+    for (;;)
+    {
+      final int ch = _readRaw ();
+      if (ch == '\n')
+        break;
+      if (++nLineLength > MAX_CHUNK_LINE_LENGTH)
+        throw new IOException ("Chunk size line is too long");
+      if (bInExtension || ch == '\r')
+        continue;
+
+      int nValue;
+      if (ch >= '0' && ch <= '9')
+        nValue = ch - '0';
+      else
+        if (ch >= 'a' && ch <= 'f')
+          nValue = ch - 'a' + 10;
+        else
+          if (ch >= 'A' && ch <= 'F')
+            nValue = ch - 'A' + 10;
+          else
+          {
+            if (ch == ';')
+              bInExtension = true;
+            else
+              if (ch == ' ' || ch == '\t')
+              {
+                // Whitespace ends the size - "1 0" is not 0x10
+                if (nDigits > 0)
+                  bSizeEnd = true;
+              }
+              else
+                throw new IOException ("Invalid character in chunk size: 0x" + Integer.toHexString (ch));
+            continue;
+          }
+
+      if (bSizeEnd)
+        throw new IOException ("Whitespace inside the chunk size");
+
+      // 15 hex digits fit into a positive long
+      if (++nDigits > 15)
+        throw new IOException ("Chunk size is too large");
+      nSize = (nSize << 4) | nValue;
+    }
+    if (nDigits == 0)
+      throw new IOException ("Chunk size is missing");
+    return nSize;
+  }
+
+  private void _readChunkEnd () throws IOException
+  {
+    int ch = _readRaw ();
+    if (ch == '\r')
+      ch = _readRaw ();
+    if (ch != '\n')
+      throw new IOException ("Chunk data is not terminated by CRLF");
+  }
+
+  private void _readTrailers () throws IOException
+  {
+    // Read all header lines until the empty line
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    int nLineLength = 0;
+    for (;;)
+    {
+      final int ch = _readRaw ();
+      aBAOS.write (ch);
+      if (ch == '\n')
+      {
+        if (nLineLength == 0)
+          break;
+        nLineLength = 0;
+      }
+      else
+        if (ch != '\r')
+          if (++nLineLength > MAX_CHUNK_LINE_LENGTH)
+            throw new IOException ("Trailer line is too long");
+    }
+
+    try
+    {
+      m_aTrailers = new InternetHeaders (new NonBlockingByteArrayInputStream (aBAOS.toByteArray ()));
+    }
+    catch (final MessagingException ex)
+    {
+      final IOException ioe = new IOException ("Failed to parse chunked trailers");
+      ioe.initCause (ex);
+      throw ioe;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if data can be read from the current chunk,
+   *         <code>false</code> if the end of the stream was reached.
+   */
+  private boolean _ensureChunk () throws IOException
+  {
+    if (m_bEOF)
+      return false;
+    if (m_nChunkRemaining > 0)
+      return true;
+
+    // CRLF after the previous chunk
+    if (!m_bFirstChunk)
+      _readChunkEnd ();
+    m_bFirstChunk = false;
+
+    m_nChunkRemaining = _readChunkSize ();
+    if (m_nChunkRemaining == 0)
+    {
+      // Zero length is end of chunks
+      _readTrailers ();
+      m_bEOF = true;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int read () throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("Stream is closed");
+    if (!_ensureChunk ())
+      return -1;
+    final int ret = _readRaw ();
+    m_nChunkRemaining--;
+    return ret;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("Stream is closed");
+    if (nLen == 0)
+      return 0;
+    if (!_ensureChunk ())
+      return -1;
+    final int nRead = m_aIS.read (aBuf, nOfs, (int) Math.min (nLen, m_nChunkRemaining));
+    if (nRead < 0)
+      throw new EOFException ("Unexpected end of chunked stream");
+    m_nChunkRemaining -= nRead;
+    return nRead;
+  }
+
+  @Override
+  public int available () throws IOException
+  {
+    if (m_bClosed || m_bEOF)
+      return 0;
+    return (int) Math.min (m_aIS.available (), m_nChunkRemaining);
+  }
+
+  /**
+   * Skip all remaining chunks but leave the underlying stream open.
+   */
+  @Override
+  public void close () throws IOException
+  {
+    if (!m_bClosed)
+    {
+      try
+      {
+        if (!m_bEOF)
+        {
+          final byte [] aBuf = new byte [4096];
+          while (read (aBuf, 0, aBuf.length) >= 0)
+          {}
+        }
+      }
+      finally
+      {
+        m_bClosed = true;
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the last chunk was read.
+   */
+  public boolean isEOF ()
+  {
+    return m_bEOF;
+  }
+
+  /**
+   * @return The trailer headers after the last chunk. Only available after the
+   *         end of the stream was reached, <code>null</code> before.
+   */
+  public InternetHeaders getTrailers ()
+  {
+    return m_aTrailers;
+  }
+}
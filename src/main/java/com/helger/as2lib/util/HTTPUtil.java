@@ -32,7 +32,7 @@
  */
 package com.helger.as2lib.util;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -46,12 +46,98 @@ import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
 
 import com.helger.as2lib.message.IMessage;
+import com.phloc.commons.CGlobal;
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
 import com.phloc.commons.io.streams.StreamUtils;
+import com.phloc.commons.string.StringParser;
 
 public class HTTPUtil
 {
   public static final String MA_HTTP_REQ_TYPE = "HTTP_REQUEST_TYPE";
   public static final String MA_HTTP_REQ_URL = "HTTP_REQUEST_URL";
+  public static final String MA_HTTP_REQ_VERSION = "HTTP_REQUEST_VERSION";
+
+  private static final String HTTP_VERSION_1_0 = "HTTP/1.0";
+  private static final String CONNECTION_CLOSE = "close";
+  private static final String CONNECTION_KEEP_ALIVE = "keep-alive";
+  private static final String EXPECT_100_CONTINUE = "100-continue";
+  private static final int HTTP_CONTINUE = 100;
+  private static final byte [] CRLF = { '\r', '\n' };
+
+  private static final byte [] CONNECTION_CLOSE_HEADER = _encode (CAS2Header.HEADER_CONNECTION +
+                                                                  ": " +
+                                                                  CONNECTION_CLOSE +
+                                                                  "\r\n");
+  private static final byte [] CONNECTION_KEEP_ALIVE_HEADER = _encode (CAS2Header.HEADER_CONNECTION +
+                                                                       ": " +
+                                                                       CONNECTION_KEEP_ALIVE +
+                                                                       "\r\n");
+
+  // Pre-encoded status lines and complete body-less responses, indexed by the
+  // response code
+  private static final int MIN_CACHED_CODE = 100;
+  private static final int MAX_CACHED_CODE = 599;
+  private static final byte [][] s_aStatusLines = new byte [MAX_CACHED_CODE + 1][];
+  private static final byte [][] s_aResponsesClose = new byte [MAX_CACHED_CODE + 1][];
+  private static final byte [][] s_aResponsesKeepAlive = new byte [MAX_CACHED_CODE + 1][];
+
+  static
+  {
+    for (int nCode = MIN_CACHED_CODE; nCode <= MAX_CACHED_CODE; ++nCode)
+    {
+      final String sMsg = getHTTPResponseMessage (nCode);
+      if (!sMsg.startsWith ("Unknown"))
+      {
+        s_aStatusLines[nCode] = _getStatusLine (nCode);
+        s_aResponsesClose[nCode] = _getResponseWithoutData (nCode, false);
+        s_aResponsesKeepAlive[nCode] = _getResponseWithoutData (nCode, true);
+      }
+    }
+  }
+
+  @Nonnull
+  private static byte [] _encode (@Nonnull final String s)
+  {
+    return s.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ);
+  }
+
+  @Nonnull
+  private static String _getStatusText (final int nResponseCode)
+  {
+    return Integer.toString (nResponseCode) + " " + getHTTPResponseMessage (nResponseCode) + "\r\n";
+  }
+
+  @Nonnull
+  private static byte [] _getStatusLine (final int nResponseCode)
+  {
+    return _encode ("HTTP/1.1 " + _getStatusText (nResponseCode));
+  }
+
+  @Nonnull
+  private static byte [] _getResponseWithoutData (final int nResponseCode, final boolean bKeepAlive)
+  {
+    // if no data will be sent, write the HTTP code as body
+    final String sMsg = _getStatusText (nResponseCode);
+    return _encode ("HTTP/1.1 " +
+                    sMsg +
+                    CAS2Header.HEADER_CONNECTION +
+                    ": " +
+                    (bKeepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE) +
+                    "\r\n" +
+                    CAS2Header.HEADER_CONTENT_LENGTH +
+                    ": " +
+                    sMsg.length () +
+                    "\r\n\r\n" +
+                    sMsg);
+  }
+
+  private static boolean _isCached (final int nResponseCode)
+  {
+    return nResponseCode >= MIN_CACHED_CODE &&
+           nResponseCode <= MAX_CACHED_CODE &&
+           s_aStatusLines[nResponseCode] != null;
+  }
 
   public static String getHTTPResponseMessage (final int nResponseCode)
   {
@@ -188,14 +274,187 @@ public class HTTPUtil
   public static byte [] readData (@Nonnull final Socket aSocket, @Nonnull final IMessage aMsg) throws IOException,
                                                                                               MessagingException
   {
-    byte [] aData = null;
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    readData (aSocket, aMsg, aBAOS);
+    return aBAOS.toByteArray ();
+  }
+
+  /**
+   * Read the HTTP request, the headers and the message content from the passed
+   * socket. The content is written to the passed output stream and not kept in
+   * memory.
+   *
+   * @param aSocket
+   *        The socket to read from. May not be <code>null</code>.
+   * @param aMsg
+   *        The message to store the request and the headers in. May not be
+   *        <code>null</code>.
+   * @param aDataOS
+   *        The output stream to write the message content to. Is not closed by
+   *        this method. May not be <code>null</code>.
+   * @return The number of content bytes read.
+   * @throws IOException
+   *         In case of a read error
+   * @throws MessagingException
+   *         In case the headers cannot be parsed
+   */
+  public static long readData (@Nonnull final Socket aSocket,
+                               @Nonnull final IMessage aMsg,
+                               @Nonnull @WillNotClose final OutputStream aDataOS) throws IOException,
+                                                                                 MessagingException
+  {
     // Get the stream and read in the HTTP request and headers
     final InputStream aIS = StreamUtils.getBuffered (aSocket.getInputStream ());
+    readHeaders (aIS, aMsg);
+    final OutputStream aResponseOS = aSocket.getOutputStream ();
+    if (isContinueExpected (aMsg))
+      sendContinue (aResponseOS);
+    return readBody (aIS, aResponseOS, aMsg, aDataOS);
+  }
+
+  /**
+   * Read the HTTP request line and the headers and store them in the passed
+   * message.
+   *
+   * @param aIS
+   *        The buffered input stream to read from. Must be the same stream
+   *        that is later passed to
+   *        {@link #readBody(InputStream, OutputStream, IMessage, OutputStream)}
+   *        . May not be <code>null</code>.
+   * @param aMsg
+   *        The message to store the request and the headers in. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of a read error or an invalid request
+   * @throws MessagingException
+   *         In case the headers cannot be parsed
+   */
+  public static void readHeaders (@Nonnull @WillNotClose final InputStream aIS, @Nonnull final IMessage aMsg) throws IOException,
+                                                                                                             MessagingException
+  {
     final String [] aRequest = readRequest (aIS);
     aMsg.setAttribute (MA_HTTP_REQ_TYPE, aRequest[0]);
     aMsg.setAttribute (MA_HTTP_REQ_URL, aRequest[1]);
+    aMsg.setAttribute (MA_HTTP_REQ_VERSION, aRequest[2]);
     aMsg.setHeaders (new InternetHeaders (aIS));
-    final DataInputStream aDataIS = new DataInputStream (aIS);
+  }
+
+  /**
+   * @param aMsg
+   *        The message with the headers read by
+   *        {@link #readHeaders(InputStream, IMessage)}
+   * @return The value of the Content-Length header or -1 if it is not present
+   *         or invalid.
+   */
+  public static long getContentLength (@Nonnull final IMessage aMsg)
+  {
+    final String sContentLength = aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH);
+    if (sContentLength == null)
+      return -1;
+    return StringParser.parseLong (sContentLength.trim (), -1);
+  }
+
+  /**
+   * @param aMsg
+   *        The message with the headers read by
+   *        {@link #readHeaders(InputStream, IMessage)}
+   * @return <code>true</code> if the client sent
+   *         <code>Expect: 100-continue</code> and waits for an interim
+   *         response before sending the body.
+   */
+  public static boolean isContinueExpected (@Nonnull final IMessage aMsg)
+  {
+    final String sExpect = aMsg.getHeader (CAS2Header.HEADER_EXPECT);
+    return sExpect != null &&
+           sExpect.trim ().equalsIgnoreCase (EXPECT_100_CONTINUE) &&
+           !HTTP_VERSION_1_0.equalsIgnoreCase (aMsg.getAttribute (MA_HTTP_REQ_VERSION));
+  }
+
+  /**
+   * Send the interim <code>100 Continue</code> response, telling the client to
+   * send the body.
+   *
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public static void sendContinue (@Nonnull @WillNotClose final OutputStream aOS) throws IOException
+  {
+    aOS.write (s_aStatusLines[HTTP_CONTINUE]);
+    aOS.write (CRLF);
+    aOS.flush ();
+  }
+
+  /**
+   * Read the message content after the headers were read with
+   * {@link #readHeaders(InputStream, IMessage)}. Content-Length and chunked
+   * transfer encoding are supported. A request with both is rejected with
+   * <code>400</code> as required by RFC 7230, section 3.3.3, because the end
+   * of its body is ambiguous.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @param aResponseOS
+   *        The output stream to send an error response to, if the length of
+   *        the content cannot be determined. May not be <code>null</code>.
+   * @param aMsg
+   *        The message with the headers. May not be <code>null</code>.
+   * @param aDataOS
+   *        The output stream to write the message content to. Is not closed by
+   *        this method. May not be <code>null</code>.
+   * @return The number of content bytes read.
+   * @throws IOException
+   *         In case of a read error
+   */
+  public static long readBody (@Nonnull @WillNotClose final InputStream aIS,
+                               @Nonnull @WillNotClose final OutputStream aResponseOS,
+                               @Nonnull final IMessage aMsg,
+                               @Nonnull @WillNotClose final OutputStream aDataOS) throws IOException
+  {
+    return readBody (aIS, aResponseOS, aMsg, aDataOS, -1);
+  }
+
+  /**
+   * Read the message content like
+   * {@link #readBody(InputStream, OutputStream, IMessage, OutputStream)}, but
+   * with a maximum size. The limit is checked against the Content-Length
+   * before reading and enforced while reading chunked content, which has no
+   * length up front. If it is exceeded, <code>413</code> is sent.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @param aResponseOS
+   *        The output stream to send an error response to. May not be
+   *        <code>null</code>.
+   * @param aMsg
+   *        The message with the headers. May not be <code>null</code>.
+   * @param aDataOS
+   *        The output stream to write the message content to. Is not closed by
+   *        this method. May not be <code>null</code>.
+   * @param nMaxContentLength
+   *        The maximum number of content bytes. A negative value means no
+   *        limit.
+   * @return The number of content bytes read.
+   * @throws IOException
+   *         In case of a read error or if the content is too large
+   */
+  public static long readBody (@Nonnull @WillNotClose final InputStream aIS,
+                               @Nonnull @WillNotClose final OutputStream aResponseOS,
+                               @Nonnull final IMessage aMsg,
+                               @Nonnull @WillNotClose final OutputStream aDataOS,
+                               final long nMaxContentLength) throws IOException
+  {
+    if (aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH) != null &&
+        aMsg.getHeader (CAS2Header.HEADER_TRANSFER_ENCODING) != null)
+    {
+      // A proxy in between may have used the other header to find the end of
+      // the body, so the rest of the connection can't be trusted either
+      sendHTTPResponse (aResponseOS, HttpURLConnection.HTTP_BAD_REQUEST, false);
+      throw new IOException ("Both Content-Length and Transfer-Encoding present");
+    }
+
+    final byte [] aBuffer = new byte [16 * CGlobal.BYTES_PER_KILOBYTE];
     // Retrieve the message content
     if (aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH) == null)
     {
@@ -204,72 +463,91 @@ public class HTTPUtil
       {
         if (sTransferEncoding.replaceAll ("\\s+", "").equalsIgnoreCase ("chunked"))
         {
-          int nLength = 0;
-          for (;;)
+          // Decode the chunks directly into the target stream
+          final ChunkedInputStream aChunkedIS = new ChunkedInputStream (aIS);
+          final long nLength = _copyAll (aChunkedIS, aDataOS, aBuffer, nMaxContentLength);
+          if (nLength < 0)
           {
-            // First get hex chunk length; followed by CRLF
-            int nBlocklen = 0;
-            for (;;)
-            {
-              int ch = aDataIS.readByte ();
-              if (ch == '\n')
-                break;
-              if (ch >= 'a' && ch <= 'f')
-                ch -= ('a' - 10);
-              else
-                if (ch >= 'A' && ch <= 'F')
-                  ch -= ('A' - 10);
-                else
-                  if (ch >= '0' && ch <= '9')
-                    ch -= '0';
-                  else
-                    continue;
-              nBlocklen = (nBlocklen * 16) + ch;
-            }
-            // Zero length is end of chunks
-            if (nBlocklen == 0)
-              break;
-            // Ok, now read new chunk
-            final int nNewlen = nLength + nBlocklen;
-            final byte [] aNewData = new byte [nNewlen];
-            if (nLength > 0)
-              System.arraycopy (aData, 0, aNewData, 0, nLength);
-            aDataIS.readFully (aNewData, nLength, nBlocklen);
-            aData = aNewData;
-            nLength = nNewlen;
-            // And now the CRLF after the chunk;
-            while (aDataIS.readByte () != '\n')
-            {}
+            sendHTTPResponse (aResponseOS, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, false);
+            throw new IOException ("Chunked content exceeds the maximum of " + nMaxContentLength + " bytes");
           }
-          aMsg.setHeader (CAS2Header.HEADER_CONTENT_LENGTH, Integer.toString (nLength));
-        }
-        else
-        {
-          sendHTTPResponse (aSocket.getOutputStream (), HttpURLConnection.HTTP_LENGTH_REQUIRED, false);
-          throw new IOException ("Transfer-Encoding unimplemented: " + sTransferEncoding);
+          aChunkedIS.close ();
+          aMsg.setHeader (CAS2Header.HEADER_CONTENT_LENGTH, Long.toString (nLength));
+          return nLength;
         }
+
+        sendHTTPResponse (aResponseOS, HttpURLConnection.HTTP_LENGTH_REQUIRED, false);
+        throw new IOException ("Transfer-Encoding unimplemented: " + sTransferEncoding);
       }
-      else
-        if (aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH) == null)
-        {
-          sendHTTPResponse (aSocket.getOutputStream (), HttpURLConnection.HTTP_LENGTH_REQUIRED, false);
-          throw new IOException ("Content-Length missing");
-        }
+
+      sendHTTPResponse (aResponseOS, HttpURLConnection.HTTP_LENGTH_REQUIRED, false);
+      throw new IOException ("Content-Length missing");
     }
-    else
+
+    // Receive the transmission's data
+    final long nContentSize = getContentLength (aMsg);
+    if (nContentSize < 0)
+      throw new IOException ("Invalid Content-Length: " + aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH));
+    if (nMaxContentLength >= 0 && nContentSize > nMaxContentLength)
+    {
+      sendHTTPResponse (aResponseOS, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, false);
+      throw new IOException ("Content-Length " + nContentSize + " exceeds the maximum of " + nMaxContentLength);
+    }
+    _copyFully (aIS, aDataOS, nContentSize, aBuffer);
+    return nContentSize;
+  }
+
+  /**
+   * Copy all bytes from the input stream to the output stream without closing
+   * the input stream. Stops with -1 as soon as more than the maximum number of
+   * bytes were read, without writing them.
+   */
+  private static long _copyAll (@Nonnull final InputStream aIS,
+                                @Nonnull final OutputStream aOS,
+                                @Nonnull final byte [] aBuffer,
+                                final long nMaxLength) throws IOException
+  {
+    long nTotal = 0;
+    int nRead;
+    while ((nRead = aIS.read (aBuffer, 0, aBuffer.length)) >= 0)
+    {
+      nTotal += nRead;
+      if (nMaxLength >= 0 && nTotal > nMaxLength)
+        return -1;
+      aOS.write (aBuffer, 0, nRead);
+    }
+    return nTotal;
+  }
+
+  /**
+   * Copy exactly the specified number of bytes from the input stream to the
+   * output stream. In contrast to the {@link StreamUtils} copy methods the
+   * input stream is not closed, as it is the socket input stream.
+   */
+  private static void _copyFully (@Nonnull final InputStream aIS,
+                                  @Nonnull final OutputStream aOS,
+                                  final long nLength,
+                                  @Nonnull final byte [] aBuffer) throws IOException
+  {
+    long nRemaining = nLength;
+    while (nRemaining > 0)
     {
-      // Receive the transmission's data
-      final int nContentSize = Integer.parseInt (aMsg.getHeader (CAS2Header.HEADER_CONTENT_LENGTH));
-      aData = new byte [nContentSize];
-      aDataIS.readFully (aData);
+      final int nRead = aIS.read (aBuffer, 0, (int) Math.min (aBuffer.length, nRemaining));
+      if (nRead < 0)
+        throw new EOFException ("Unexpected end of stream - " + nRemaining + " of " + nLength + " bytes missing");
+      aOS.write (aBuffer, 0, nRead);
+      nRemaining -= nRead;
     }
-    return aData;
   }
 
   @Nonnull
   public static String [] readRequest (@Nonnull final InputStream aIS) throws IOException
   {
     int nByteBuf = aIS.read ();
+    // Ignore empty lines before the request line, e.g. a CRLF a client sent
+    // after the body of the previous request on a persistent connection
+    while (nByteBuf == '\r' || nByteBuf == '\n')
+      nByteBuf = aIS.read ();
     final StringBuilder aSB = new StringBuilder ();
     while (nByteBuf != -1 && nByteBuf != '\r')
     {
@@ -303,17 +581,97 @@ public class HTTPUtil
     throw new IOException ("Invalid HTTP Request");
   }
 
+  /**
+   * Check if the client wants to keep the connection open after the passed
+   * request. HTTP/1.1 connections are persistent unless
+   * <code>Connection: close</code> is present, HTTP/1.0 connections only if
+   * <code>Connection: keep-alive</code> is present.
+   *
+   * @param aMsg
+   *        The message that was read with
+   *        {@link #readData(Socket, IMessage, OutputStream)}
+   * @return <code>true</code> if the client requested a persistent connection
+   */
+  public static boolean isKeepAliveRequested (@Nonnull final IMessage aMsg)
+  {
+    final String sVersion = aMsg.getAttribute (MA_HTTP_REQ_VERSION);
+    if (sVersion == null || !sVersion.startsWith ("HTTP/"))
+      return false;
+    final boolean bIsHttp10 = sVersion.equalsIgnoreCase (HTTP_VERSION_1_0);
+
+    final String sConnection = aMsg.getHeader (CAS2Header.HEADER_CONNECTION);
+    if (sConnection != null)
+    {
+      final StringTokenizer aTokens = new StringTokenizer (sConnection, ", \t");
+      while (aTokens.hasMoreTokens ())
+      {
+        final String sToken = aTokens.nextToken ();
+        if (sToken.equalsIgnoreCase (CONNECTION_CLOSE))
+          return false;
+        if (sToken.equalsIgnoreCase (CONNECTION_KEEP_ALIVE))
+          return true;
+      }
+    }
+    return !bIsHttp10;
+  }
+
   public static void sendHTTPResponse (@Nonnull @WillNotClose final OutputStream aOS,
                                        final int nResponseCode,
                                        final boolean bHasData) throws IOException
   {
-    final String sMsg = Integer.toString (nResponseCode) + " " + getHTTPResponseMessage (nResponseCode) + "\r\n";
-    aOS.write (("HTTP/1.1 " + sMsg).getBytes ());
-    if (!bHasData)
+    sendHTTPResponse (aOS, nResponseCode, bHasData, false);
+  }
+
+  /**
+   * Send the HTTP status line and the <code>Connection</code> header. If no
+   * data is sent, the response is completed with a short text body and a
+   * matching <code>Content-Length</code>. Otherwise the caller must write the
+   * remaining headers incl. <code>Content-Length</code> and the body.
+   *
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @param nResponseCode
+   *        The HTTP response code
+   * @param bHasData
+   *        <code>true</code> if the caller writes headers and body
+   * @param bKeepAlive
+   *        <code>true</code> if the connection stays open after the response
+   * @throws IOException
+   *         In case of a write error
+   */
+  public static void sendHTTPResponse (@Nonnull @WillNotClose final OutputStream aOS,
+                                       final int nResponseCode,
+                                       final boolean bHasData,
+                                       final boolean bKeepAlive) throws IOException
+  {
+    final boolean bCached = _isCached (nResponseCode);
+    if (bHasData)
     {
-      // if no data will be sent, write the HTTP code
-      aOS.write ("\r\n".getBytes ());
-      aOS.write (sMsg.getBytes ());
+      aOS.write (bCached ? s_aStatusLines[nResponseCode] : _getStatusLine (nResponseCode));
+      aOS.write (bKeepAlive ? CONNECTION_KEEP_ALIVE_HEADER : CONNECTION_CLOSE_HEADER);
     }
+    else
+    {
+      if (bCached)
+        aOS.write (bKeepAlive ? s_aResponsesKeepAlive[nResponseCode] : s_aResponsesClose[nResponseCode]);
+      else
+        aOS.write (_getResponseWithoutData (nResponseCode, bKeepAlive));
+    }
+  }
+
+  public static void sendServiceUnavailable (@Nonnull @WillNotClose final OutputStream aOS, final int nRetryAfterSeconds) throws IOException
+  {
+    final String sMsg = Integer.toString (HttpURLConnection.HTTP_UNAVAILABLE) +
+                        " " +
+                        getHTTPResponseMessage (HttpURLConnection.HTTP_UNAVAILABLE) +
+                        "\r\n";
+    aOS.write (_encode ("HTTP/1.1 " +
+                        sMsg +
+                        "Retry-After: " +
+                        Integer.toString (nRetryAfterSeconds) +
+                        "\r\nContent-Length: " +
+                        Integer.toString (sMsg.length ()) +
+                        "\r\nConnection: close\r\n\r\n" +
+                        sMsg));
   }
 }
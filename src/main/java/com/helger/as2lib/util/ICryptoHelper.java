@@ -48,6 +48,7 @@ public interface ICryptoHelper
   String CRYPT_3DES = "3des";
   String CRYPT_IDEA = "idea";
   String CRYPT_RC2 = "rc2";
+  String COMPRESSION_ZLIB = "zlib";
 
   boolean isEncrypted (@Nonnull MimeBodyPart aPart) throws Exception;
 
@@ -79,4 +80,12 @@ public interface ICryptoHelper
 
   @Nonnull
   MimeBodyPart verify (@Nonnull MimeBodyPart aPart, @Nonnull X509Certificate aCert) throws Exception;
+
+  boolean isCompressed (@Nonnull MimeBodyPart aPart) throws Exception;
+
+  @Nonnull
+  MimeBodyPart compress (@Nonnull MimeBodyPart aPart, @Nonnull String sAlgorithm) throws Exception;
+
+  @Nonnull
+  MimeBodyPart decompress (@Nonnull MimeBodyPart aPart) throws Exception;
 }
@@ -0,0 +1,252 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+import com.helger.as2lib.message.IMessageMDN;
+import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.phloc.commons.CGlobal;
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+import com.phloc.commons.mime.CMimeType;
+
+/**
+ * Renders MDNs directly into bytes. The <code>multipart/report</code> body is
+ * written without building a <code>MimeMultipart</code>, and a synchronous MDN
+ * is rendered once with the HTTP response headers in front of the body, so it
+ * can be sent with a single write.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class MDNSerializer
+{
+  public static final String MIME_TYPE_DISPOSITION_NOTIFICATION = "message/disposition-notification";
+
+  private static final byte [] CRLF = { '\r', '\n' };
+  private static final byte [] DASHES = { '-', '-' };
+  private static final String CONTENT_LENGTH_PREFIX = CAS2Header.HEADER_CONTENT_LENGTH + ": ";
+  // Content-Length header with the largest int value and the empty line
+  private static final int MAX_HEAD_SUFFIX_SIZE = CONTENT_LENGTH_PREFIX.length () +
+                                                  Integer.toString (Integer.MAX_VALUE).length () +
+                                                  2 * CRLF.length;
+  private static final AtomicLong s_aBoundaryCounter = new AtomicLong ();
+  private static final int s_nBoundaryRandom = new Random ().nextInt () & Integer.MAX_VALUE;
+
+  /**
+   * Buffer for an HTTP response whose body is written behind a gap. The head is
+   * put into the gap once the length of the body is known, so the body is not
+   * copied.
+   */
+  private static final class ResponseBuffer extends ByteArrayOutputStream
+  {
+    private final int m_nGap;
+
+    ResponseBuffer (final int nGap)
+    {
+      super (nGap + 4 * CGlobal.BYTES_PER_KILOBYTE);
+      m_nGap = nGap;
+      count = nGap;
+    }
+
+    int getBodySize ()
+    {
+      return count - m_nGap;
+    }
+
+    void writeTo (@Nonnull final OutputStream aOS, @Nonnull final byte [] aHead) throws IOException
+    {
+      final int nStart = m_nGap - aHead.length;
+      System.arraycopy (aHead, 0, buf, nStart, aHead.length);
+      aOS.write (buf, nStart, count - nStart);
+    }
+  }
+
+  private MDNSerializer ()
+  {}
+
+  private static boolean _isAscii (@Nonnull final String s)
+  {
+    for (int i = 0; i < s.length (); ++i)
+      if (s.charAt (i) > 127)
+        return false;
+    return true;
+  }
+
+  // Write the headers and the content of a single body part
+  private static void _writePart (@Nonnull final OutputStream aOS,
+                                  @Nonnull final String sContentType,
+                                  @Nonnull final String sContent) throws IOException, MessagingException
+  {
+    // 7bit is what JavaMail would choose for the usual ASCII only content
+    final boolean bAscii = _isAscii (sContent);
+    final String sEncoding = bAscii ? "7bit" : "quoted-printable";
+    aOS.write ((CAS2Header.HEADER_CONTENT_TYPE +
+                ": " +
+                (bAscii ? sContentType : sContentType + "; charset=UTF-8") +
+                "\r\nContent-Transfer-Encoding: " +
+                sEncoding +
+                "\r\n\r\n").getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+    if (bAscii)
+      aOS.write (sContent.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+    else
+    {
+      final OutputStream aEncOS = MimeUtility.encode (aOS, sEncoding);
+      aEncOS.write (sContent.getBytes (CCharset.CHARSET_UTF_8_OBJ));
+      aEncOS.flush ();
+    }
+  }
+
+  @Nonnull
+  private static String _createBoundary ()
+  {
+    return "----=_Part_" +
+           s_aBoundaryCounter.incrementAndGet () +
+           "_" +
+           s_nBoundaryRandom +
+           "." +
+           System.currentTimeMillis ();
+  }
+
+  /**
+   * Create the <code>multipart/report</code> body part of an MDN.
+   *
+   * @param sText
+   *        The human readable text, incl. the trailing line break.
+   * @param sDispositionNotification
+   *        The <code>message/disposition-notification</code> content, incl.
+   *        the terminating empty line.
+   * @return The body part with the rendered multipart content.
+   * @throws MessagingException
+   *         In case of a MIME error
+   */
+  @Nonnull
+  public static MimeBodyPart createReport (@Nonnull final String sText,
+                                           @Nonnull final String sDispositionNotification) throws MessagingException
+  {
+    final String sBoundary = _createBoundary ();
+    final byte [] aBoundary = sBoundary.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ);
+    final NonBlockingByteArrayOutputStream aOS = new NonBlockingByteArrayOutputStream (2 * CGlobal.BYTES_PER_KILOBYTE);
+    try
+    {
+      // Same layout as MimeMultipart.writeTo
+      aOS.write (DASHES);
+      aOS.write (aBoundary);
+      aOS.write (CRLF);
+      _writePart (aOS, CMimeType.TEXT_PLAIN.getAsString (), sText);
+      aOS.write (CRLF);
+      aOS.write (DASHES);
+      aOS.write (aBoundary);
+      aOS.write (CRLF);
+      _writePart (aOS, MIME_TYPE_DISPOSITION_NOTIFICATION, sDispositionNotification);
+      aOS.write (CRLF);
+      aOS.write (DASHES);
+      aOS.write (aBoundary);
+      aOS.write (DASHES);
+      aOS.write (CRLF);
+    }
+    catch (final IOException ex)
+    {
+      // Cannot happen when writing to memory
+      throw new MessagingException ("Failed to render MDN report", ex);
+    }
+
+    final String sContentType = "multipart/report; report-type=disposition-notification; boundary=\"" +
+                                sBoundary +
+                                "\"";
+    final MimeBodyPart aReport = new MimeBodyPart ();
+    aReport.setDataHandler (new DataHandler (new ByteArrayDataSource (aOS.toByteArray (), sContentType, null)));
+    aReport.setHeader (CAS2Header.HEADER_CONTENT_TYPE, sContentType);
+    return aReport;
+  }
+
+  /**
+   * Send a synchronous MDN as HTTP <code>200</code> response. The body is
+   * rendered once, and the status line and the headers incl.
+   * <code>Content-Length</code> are put in front of it, so the response is
+   * written at once.
+   *
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>.
+   * @param aMdn
+   *        The MDN to send. Its <code>Content-Length</code> header is updated.
+   * @param bKeepAlive
+   *        <code>true</code> if the connection stays open after the response
+   * @throws IOException
+   *         In case of a write error
+   * @throws MessagingException
+   *         In case of a MIME error
+   */
+  public static void writeHTTPResponse (@Nonnull @WillNotClose final OutputStream aOS,
+                                        @Nonnull final IMessageMDN aMdn,
+                                        final boolean bKeepAlive) throws IOException, MessagingException
+  {
+    // Everything but the Content-Length is known before the body is rendered
+    final NonBlockingByteArrayOutputStream aHead = new NonBlockingByteArrayOutputStream ();
+    HTTPUtil.sendHTTPResponse (aHead, HttpURLConnection.HTTP_OK, true, bKeepAlive);
+    final Enumeration <?> aHeaders = aMdn.getHeaders ()
+                                         .getNonMatchingHeaderLines (new String [] { CAS2Header.HEADER_CONTENT_LENGTH });
+    while (aHeaders.hasMoreElements ())
+    {
+      aHead.write (((String) aHeaders.nextElement ()).getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+      aHead.write (CRLF);
+    }
+
+    // The data handler writes the content without the part headers, like
+    // getInputStream but without a pipe for multipart content
+    final ResponseBuffer aResponse = new ResponseBuffer (aHead.size () + MAX_HEAD_SUFFIX_SIZE);
+    aMdn.getData ().getDataHandler ().writeTo (aResponse);
+    final String sContentLength = Integer.toString (aResponse.getBodySize ());
+    aMdn.setHeader (CAS2Header.HEADER_CONTENT_LENGTH, sContentLength);
+
+    aHead.write ((CONTENT_LENGTH_PREFIX + sContentLength).getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+    aHead.write (CRLF);
+    aHead.write (CRLF);
+    aResponse.writeTo (aOS, aHead.toByteArray ());
+  }
+}
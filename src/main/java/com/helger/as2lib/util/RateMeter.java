@@ -0,0 +1,121 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.phloc.commons.CGlobal;
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * Counts events per second. The rate is the number of events in the last
+ * complete second, so it is cheap to record and easy to compare with the
+ * numbers of a load generator.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class RateMeter
+{
+  private long m_nTotal;
+  private long m_nCurrentSecond;
+  private long m_nCurrentCount;
+  private long m_nLastCount;
+  private long m_nPeakCount;
+
+  private void _roll (final long nSecond)
+  {
+    if (nSecond != m_nCurrentSecond)
+    {
+      // Seconds without events count as 0
+      m_nLastCount = nSecond == m_nCurrentSecond + 1 ? m_nCurrentCount : 0;
+      m_nPeakCount = Math.max (m_nPeakCount, m_nCurrentCount);
+      m_nCurrentSecond = nSecond;
+      m_nCurrentCount = 0;
+    }
+  }
+
+  private static long _getCurrentSecond ()
+  {
+    return System.currentTimeMillis () / CGlobal.MILLISECONDS_PER_SECOND;
+  }
+
+  /**
+   * Record a single event.
+   */
+  public synchronized void mark ()
+  {
+    _roll (_getCurrentSecond ());
+    m_nCurrentCount++;
+    m_nTotal++;
+  }
+
+  /**
+   * @return The total number of events.
+   */
+  @Nonnegative
+  public synchronized long getTotalCount ()
+  {
+    return m_nTotal;
+  }
+
+  /**
+   * @return The number of events in the last complete second.
+   */
+  @Nonnegative
+  public synchronized long getRatePerSecond ()
+  {
+    _roll (_getCurrentSecond ());
+    return m_nLastCount;
+  }
+
+  /**
+   * @return The highest number of events in a single complete second.
+   */
+  @Nonnegative
+  public synchronized long getPeakRatePerSecond ()
+  {
+    _roll (_getCurrentSecond ());
+    return m_nPeakCount;
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    return new ToStringGenerator (this).append ("total", m_nTotal)
+                                       .append ("lastCount", m_nLastCount)
+                                       .append ("peakCount", m_nPeakCount)
+                                       .toString ();
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for socket options that are not available in all Java versions.
+ * <code>SO_REUSEPORT</code> is only available on Java 9 and later and only on
+ * some operating systems (e.g. Linux), so it is looked up via reflection. If
+ * several sockets are bound to the same port with this option, the kernel
+ * spreads new connections across them.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SocketUtil
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SocketUtil.class);
+  private static final Object s_aReusePort;
+  private static final Method s_aServerSocketSupportedOptions;
+  private static final Method s_aServerSocketSetOption;
+  private static final Method s_aChannelSupportedOptions;
+  private static final Method s_aChannelSetOption;
+
+  static
+  {
+    Object aReusePort = null;
+    Method aServerSocketSupportedOptions = null;
+    Method aServerSocketSetOption = null;
+    Method aChannelSupportedOptions = null;
+    Method aChannelSetOption = null;
+    try
+    {
+      final Class <?> aSocketOptionClass = Class.forName ("java.net.SocketOption");
+      aReusePort = Class.forName ("java.net.StandardSocketOptions").getField ("SO_REUSEPORT").get (null);
+      aServerSocketSupportedOptions = ServerSocket.class.getMethod ("supportedOptions");
+      aServerSocketSetOption = ServerSocket.class.getMethod ("setOption", aSocketOptionClass, Object.class);
+      final Class <?> aChannelClass = Class.forName ("java.nio.channels.NetworkChannel");
+      aChannelSupportedOptions = aChannelClass.getMethod ("supportedOptions");
+      aChannelSetOption = aChannelClass.getMethod ("setOption", aSocketOptionClass, Object.class);
+    }
+    catch (final Exception ex)
+    {
+      // Java runtime before 9
+      aReusePort = null;
+    }
+    s_aReusePort = aReusePort;
+    s_aServerSocketSupportedOptions = aServerSocketSupportedOptions;
+    s_aServerSocketSetOption = aServerSocketSetOption;
+    s_aChannelSupportedOptions = aChannelSupportedOptions;
+    s_aChannelSetOption = aChannelSetOption;
+  }
+
+  private SocketUtil ()
+  {}
+
+  private static boolean _setReusePort (@Nonnull final Object aTarget,
+                                        @Nullable final Method aSupportedOptions,
+                                        @Nullable final Method aSetOption)
+  {
+    if (s_aReusePort == null)
+      return false;
+    try
+    {
+      if (!((Set <?>) aSupportedOptions.invoke (aTarget)).contains (s_aReusePort))
+        return false;
+      aSetOption.invoke (aTarget, s_aReusePort, Boolean.TRUE);
+      return true;
+    }
+    catch (final Exception ex)
+    {
+      s_aLogger.warn ("Failed to enable SO_REUSEPORT", ex);
+      return false;
+    }
+  }
+
+  /**
+   * Enable <code>SO_REUSEPORT</code> on an unbound server socket.
+   *
+   * @param aServerSocket
+   *        The server socket. May not be <code>null</code>.
+   * @return <code>true</code> if the option was set, <code>false</code> if the
+   *         Java runtime or the operating system does not support it.
+   */
+  public static boolean setReusePort (@Nonnull final ServerSocket aServerSocket)
+  {
+    return _setReusePort (aServerSocket, s_aServerSocketSupportedOptions, s_aServerSocketSetOption);
+  }
+
+  /**
+   * Enable <code>SO_REUSEPORT</code> on an unbound server socket channel.
+   *
+   * @param aChannel
+   *        The server socket channel. May not be <code>null</code>.
+   * @return <code>true</code> if the option was set, <code>false</code> if the
+   *         Java runtime or the operating system does not support it.
+   */
+  public static boolean setReusePort (@Nonnull final ServerSocketChannel aChannel)
+  {
+    return _setReusePort (aChannel, s_aChannelSupportedOptions, s_aChannelSetOption);
+  }
+}
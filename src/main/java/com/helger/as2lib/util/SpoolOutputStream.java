@@ -0,0 +1,198 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.helger.as2lib.util.javamail.TempFileDataSource;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * An output stream that keeps the written data in memory until a configurable
+ * threshold is exceeded. All data is then moved to a temporary file and all
+ * further data is written to that file. This keeps the heap usage independent
+ * of the size of the received data.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class SpoolOutputStream extends OutputStream
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (SpoolOutputStream.class);
+
+  private final long m_nThreshold;
+  private final File m_aTempDir;
+  private NonBlockingByteArrayOutputStream m_aMemoryOS = new NonBlockingByteArrayOutputStream ();
+  private File m_aFile;
+  private OutputStream m_aFileOS;
+  private long m_nSize = 0;
+
+  /**
+   * @param nThreshold
+   *        The maximum number of bytes kept in memory. If it is &lt; 0 the data
+   *        is never written to a file.
+   * @param aTempDir
+   *        The directory for the temporary file. If it is <code>null</code>
+   *        the default temporary directory is used.
+   */
+  public SpoolOutputStream (final long nThreshold, @Nullable final File aTempDir)
+  {
+    m_nThreshold = nThreshold;
+    m_aTempDir = aTempDir;
+  }
+
+  private void _checkThreshold (final int nLength) throws IOException
+  {
+    if (m_aFile == null && m_nThreshold >= 0 && m_nSize + nLength > m_nThreshold)
+    {
+      // Switch to a temporary file
+      m_aFile = File.createTempFile ("as2-", ".spool", m_aTempDir);
+      m_aFileOS = StreamUtils.getBuffered (new FileOutputStream (m_aFile));
+      m_aMemoryOS.writeTo (m_aFileOS);
+      m_aMemoryOS = null;
+      if (s_aLogger.isDebugEnabled ())
+        s_aLogger.debug ("Spooling data to " + m_aFile.getAbsolutePath ());
+    }
+  }
+
+  @Override
+  public void write (final int b) throws IOException
+  {
+    _checkThreshold (1);
+    if (m_aFileOS != null)
+      m_aFileOS.write (b);
+    else
+      m_aMemoryOS.write (b);
+    m_nSize++;
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    _checkThreshold (nLen);
+    if (m_aFileOS != null)
+      m_aFileOS.write (aBuf, nOfs, nLen);
+    else
+      m_aMemoryOS.write (aBuf, nOfs, nLen);
+    m_nSize += nLen;
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    if (m_aFileOS != null)
+      m_aFileOS.flush ();
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    if (m_aFileOS != null)
+    {
+      m_aFileOS.close ();
+      m_aFileOS = null;
+    }
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if all data is still kept in memory.
+   */
+  public boolean isInMemory ()
+  {
+    return m_aFile == null;
+  }
+
+  /**
+   * @return The temporary file the data was spooled to or <code>null</code>
+   *         if the data is kept in memory.
+   */
+  @Nullable
+  public File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * Get the written data as a data source. The stream must be closed before.
+   *
+   * @param sContentType
+   *        The content type of the data source
+   * @return A byte array based or a file based data source
+   */
+  @Nonnull
+  public DataSource getAsDataSource (@Nullable final String sContentType)
+  {
+    if (m_aFile != null)
+      return new TempFileDataSource (m_aFile, sContentType, null);
+    return new ByteArrayDataSource (m_aMemoryOS.toByteArray (), sContentType, null);
+  }
+
+  /**
+   * Close this stream and delete the temporary file if one was created. The
+   * data is no longer accessible afterwards.
+   */
+  public void dispose ()
+  {
+    StreamUtils.close (this);
+    m_aMemoryOS = null;
+    if (m_aFile != null)
+    {
+      if (!m_aFile.delete ())
+        s_aLogger.warn ("Failed to delete temporary file " + m_aFile.getAbsolutePath ());
+      m_aFile = null;
+    }
+  }
+}
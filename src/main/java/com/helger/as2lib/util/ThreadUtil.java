@@ -0,0 +1,117 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper for creating threads. Virtual threads are only available on Java 21
+ * and later, so they are looked up via reflection.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class ThreadUtil
+{
+  private static final Logger s_aLogger = LoggerFactory.getLogger (ThreadUtil.class);
+  private static final Method s_aOfVirtual;
+  private static final Method s_aBuilderName;
+  private static final Method s_aBuilderFactory;
+
+  static
+  {
+    Method aOfVirtual = null;
+    Method aBuilderName = null;
+    Method aBuilderFactory = null;
+    try
+    {
+      final Class <?> aBuilderClass = Class.forName ("java.lang.Thread$Builder");
+      aOfVirtual = Thread.class.getMethod ("ofVirtual");
+      aBuilderName = aBuilderClass.getMethod ("name", String.class, long.class);
+      aBuilderFactory = aBuilderClass.getMethod ("factory");
+    }
+    catch (final Exception ex)
+    {
+      // Java runtime before 21
+      aOfVirtual = null;
+    }
+    s_aOfVirtual = aOfVirtual;
+    s_aBuilderName = aBuilderName;
+    s_aBuilderFactory = aBuilderFactory;
+  }
+
+  private ThreadUtil ()
+  {}
+
+  /**
+   * @return <code>true</code> if the current Java runtime supports virtual
+   *         threads.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return s_aOfVirtual != null;
+  }
+
+  /**
+   * Create a thread factory that creates virtual threads.
+   *
+   * @param sNamePrefix
+   *        The prefix of the thread names. A running number is appended.
+   * @return <code>null</code> if the current Java runtime does not support
+   *         virtual threads.
+   */
+  @Nullable
+  public static ThreadFactory createVirtualThreadFactory (@Nonnull final String sNamePrefix)
+  {
+    if (s_aOfVirtual != null)
+      try
+      {
+        final Object aBuilder = s_aOfVirtual.invoke (null);
+        s_aBuilderName.invoke (aBuilder, sNamePrefix, Long.valueOf (0));
+        return (ThreadFactory) s_aBuilderFactory.invoke (aBuilder);
+      }
+      catch (final Exception ex)
+      {
+        s_aLogger.warn ("Failed to create virtual thread factory", ex);
+      }
+    return null;
+  }
+}
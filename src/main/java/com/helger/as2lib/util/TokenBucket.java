@@ -0,0 +1,135 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.phloc.commons.string.ToStringGenerator;
+
+/**
+ * A simple token bucket rate limiter. Tokens are refilled continuously with a
+ * fixed rate up to the capacity of the bucket. A request larger than the
+ * capacity is allowed once the bucket is full - the bucket then goes into
+ * debt, and later requests are rejected until the debt is paid back. This
+ * allows limiting variable sized requests (e.g. bytes) without rejecting
+ * requests larger than the capacity forever.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class TokenBucket
+{
+  private final double m_dRatePerSecond;
+  private final double m_dCapacity;
+  private double m_dTokens;
+  private long m_nLastRefillNanos;
+
+  /**
+   * @param dRatePerSecond
+   *        Number of tokens added per second. Must be &gt; 0.
+   * @param dCapacity
+   *        Maximum number of tokens in the bucket (burst size). Must be &gt; 0.
+   */
+  public TokenBucket (final double dRatePerSecond, final double dCapacity)
+  {
+    if (dRatePerSecond <= 0)
+      throw new IllegalArgumentException ("Rate must be positive: " + dRatePerSecond);
+    if (dCapacity <= 0)
+      throw new IllegalArgumentException ("Capacity must be positive: " + dCapacity);
+    m_dRatePerSecond = dRatePerSecond;
+    m_dCapacity = dCapacity;
+    m_dTokens = dCapacity;
+    m_nLastRefillNanos = System.nanoTime ();
+  }
+
+  public double getRatePerSecond ()
+  {
+    return m_dRatePerSecond;
+  }
+
+  public double getCapacity ()
+  {
+    return m_dCapacity;
+  }
+
+  private void _refill ()
+  {
+    final long nNow = System.nanoTime ();
+    final long nElapsed = nNow - m_nLastRefillNanos;
+    if (nElapsed > 0)
+    {
+      m_dTokens = Math.min (m_dCapacity, m_dTokens + nElapsed * m_dRatePerSecond / 1000000000d);
+      m_nLastRefillNanos = nNow;
+    }
+  }
+
+  /**
+   * Try to take the passed number of tokens.
+   *
+   * @param dTokens
+   *        The number of tokens to take
+   * @return <code>true</code> if the tokens were taken, <code>false</code> if
+   *         not enough tokens are available. A request larger than the
+   *         capacity needs a full bucket.
+   */
+  public synchronized boolean tryAcquire (@Nonnegative final double dTokens)
+  {
+    _refill ();
+    // Not just "not empty" - the refill since the last request would let one
+    // request more through than the rate allows
+    if (m_dTokens < Math.min (dTokens, m_dCapacity))
+      return false;
+    m_dTokens -= dTokens;
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the bucket is completely filled, meaning it
+   *         was not used for a while.
+   */
+  public synchronized boolean isFull ()
+  {
+    _refill ();
+    return m_dTokens >= m_dCapacity;
+  }
+
+  @Override
+  public synchronized String toString ()
+  {
+    return new ToStringGenerator (this).append ("ratePerSecond", m_dRatePerSecond)
+                                       .append ("capacity", m_dCapacity)
+                                       .append ("tokens", m_dTokens)
+                                       .toString ();
+  }
+}
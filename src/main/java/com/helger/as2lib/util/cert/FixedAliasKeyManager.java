@@ -0,0 +1,124 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util.cert;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+
+import com.phloc.commons.ValueEnforcer;
+
+/**
+ * A key manager that always selects the key with a fixed alias. This is
+ * required if a key store contains several private keys (e.g. one per own AS2
+ * ID) and a specific one should be used for a TLS server socket.
+ *
+ * @author Philip Helger
+ */
+public class FixedAliasKeyManager extends X509ExtendedKeyManager
+{
+  private final X509KeyManager m_aKeyManager;
+  private final String m_sAlias;
+
+  public FixedAliasKeyManager (@Nonnull final X509KeyManager aKeyManager, @Nonnull final String sAlias)
+  {
+    ValueEnforcer.notNull (aKeyManager, "KeyManager");
+    ValueEnforcer.notEmpty (sAlias, "Alias");
+    m_aKeyManager = aKeyManager;
+    m_sAlias = sAlias;
+  }
+
+  @Nonnull
+  public String getAlias ()
+  {
+    return m_sAlias;
+  }
+
+  public String [] getClientAliases (final String sKeyType, final Principal [] aIssuers)
+  {
+    return m_aKeyManager.getClientAliases (sKeyType, aIssuers);
+  }
+
+  public String chooseClientAlias (final String [] aKeyTypes, final Principal [] aIssuers, final Socket aSocket)
+  {
+    return m_aKeyManager.chooseClientAlias (aKeyTypes, aIssuers, aSocket);
+  }
+
+  public String [] getServerAliases (final String sKeyType, final Principal [] aIssuers)
+  {
+    return m_aKeyManager.getServerAliases (sKeyType, aIssuers);
+  }
+
+  /**
+   * @return The fixed alias if it has a key of the requested type,
+   *         <code>null</code> otherwise.
+   */
+  @Nullable
+  private String _chooseServerAlias (final String sKeyType, final Principal [] aIssuers)
+  {
+    final String [] aAliases = m_aKeyManager.getServerAliases (sKeyType, aIssuers);
+    if (aAliases != null)
+      for (final String sAlias : aAliases)
+        if (m_sAlias.equals (sAlias))
+          return m_sAlias;
+    return null;
+  }
+
+  public String chooseServerAlias (final String sKeyType, final Principal [] aIssuers, final Socket aSocket)
+  {
+    return _chooseServerAlias (sKeyType, aIssuers);
+  }
+
+  @Override
+  public String chooseEngineServerAlias (final String sKeyType, final Principal [] aIssuers, final SSLEngine aEngine)
+  {
+    return _chooseServerAlias (sKeyType, aIssuers);
+  }
+
+  public X509Certificate [] getCertificateChain (final String sAlias)
+  {
+    return m_aKeyManager.getCertificateChain (sAlias);
+  }
+
+  public PrivateKey getPrivateKey (final String sAlias)
+  {
+    return m_aKeyManager.getPrivateKey (sAlias);
+  }
+}
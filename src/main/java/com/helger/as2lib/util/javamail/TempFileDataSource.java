@@ -0,0 +1,96 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util.javamail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.util.SharedFileInputStream;
+
+import com.phloc.commons.mime.CMimeType;
+
+/**
+ * A read-only data source based on a file with an explicit content type. The
+ * returned input streams implement
+ * {@link javax.mail.internet.SharedInputStream}, so that JavaMail does not copy
+ * the content of contained body parts into memory.
+ *
+ * @author Philip Helger
+ */
+public class TempFileDataSource implements DataSource
+{
+  private final File m_aFile;
+  private final String m_sContentType;
+  private final String m_sName;
+
+  public TempFileDataSource (@Nonnull final File aFile, @Nullable final String sContentType, @Nullable final String sName)
+  {
+    m_aFile = aFile;
+    m_sContentType = sContentType == null ? CMimeType.APPLICATION_OCTET_STREAM.getAsString () : sContentType;
+    m_sName = sName;
+  }
+
+  @Nonnull
+  public File getFile ()
+  {
+    return m_aFile;
+  }
+
+  @Nonnull
+  public String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  @Nullable
+  public String getName ()
+  {
+    return m_sName;
+  }
+
+  @Nonnull
+  public InputStream getInputStream () throws IOException
+  {
+    return new SharedFileInputStream (m_aFile);
+  }
+
+  public OutputStream getOutputStream () throws IOException
+  {
+    throw new IOException ("Data source is read-only");
+  }
+}
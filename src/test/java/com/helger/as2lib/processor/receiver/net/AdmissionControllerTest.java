@@ -0,0 +1,135 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.receiver.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.helger.as2lib.partner.CPartnershipIDs;
+import com.helger.as2lib.partner.Partnership;
+
+/**
+ * Test class for class {@link AdmissionController}.
+ *
+ * @author Philip Helger
+ */
+public final class AdmissionControllerTest
+{
+  @Test
+  public void testUnlimited ()
+  {
+    final AdmissionController aAC = new AdmissionController (0, 0, 0);
+    for (int i = 0; i < 100; ++i)
+    {
+      assertNotNull (aAC.admitConnection ("1.2.3.4"));
+      assertNotNull (aAC.admitMessage ("1.2.3.4", "sender", new Partnership ("p"), 1000));
+    }
+    assertEquals (0, aAC.getRejectedCount ());
+  }
+
+  @Test
+  public void testConnectionsPerIP ()
+  {
+    final AdmissionController aAC = new AdmissionController (2, 0, 0);
+    final AdmissionController.Permit aPermit1 = aAC.admitConnection ("1.2.3.4");
+    assertNotNull (aPermit1);
+    assertNotNull (aAC.admitConnection ("1.2.3.4"));
+    assertNull (aAC.admitConnection ("1.2.3.4"));
+    // Other IPs are not affected
+    assertNotNull (aAC.admitConnection ("5.6.7.8"));
+
+    // Releasing twice frees only one slot
+    aPermit1.release ();
+    aPermit1.release ();
+    assertNotNull (aAC.admitConnection ("1.2.3.4"));
+    assertNull (aAC.admitConnection ("1.2.3.4"));
+    assertEquals (2, aAC.getRejectedCount ());
+  }
+
+  @Test
+  public void testMessagesPerIP ()
+  {
+    // A burst of one second is allowed
+    final AdmissionController aAC = new AdmissionController (0, 2, 0);
+    assertNotNull (aAC.admitMessage ("1.2.3.4", null, null, -1));
+    assertNotNull (aAC.admitMessage ("1.2.3.4", null, null, -1));
+    assertNull (aAC.admitMessage ("1.2.3.4", null, null, -1));
+    assertNotNull (aAC.admitMessage ("5.6.7.8", null, null, -1));
+    assertEquals (1, aAC.getRejectedCount ());
+  }
+
+  @Test
+  public void testBytesPerIP ()
+  {
+    final AdmissionController aAC = new AdmissionController (0, 0, 1000);
+    // Without a length the size is unknown
+    assertNotNull (aAC.admitMessage ("1.2.3.4", null, null, -1));
+    // The bucket may go into debt once
+    assertNotNull (aAC.admitMessage ("1.2.3.4", null, null, 5000));
+    assertNull (aAC.admitMessage ("1.2.3.4", null, null, 1));
+  }
+
+  @Test
+  public void testPartner ()
+  {
+    final AdmissionController aAC = new AdmissionController (0, 0, 0);
+    final Partnership aPartnership = new Partnership ("p");
+    aPartnership.setAttribute (CPartnershipIDs.PA_MAX_CONCURRENT_MESSAGES, "1");
+
+    final AdmissionController.Permit aPermit = aAC.admitMessage ("1.2.3.4", "sender", aPartnership, 100);
+    assertNotNull (aPermit);
+    // Also from another IP
+    assertNull (aAC.admitMessage ("5.6.7.8", "sender", aPartnership, 100));
+    // Other senders are not affected
+    assertNotNull (aAC.admitMessage ("5.6.7.8", "other", aPartnership, 100));
+    // Unknown senders are not limited
+    assertNotNull (aAC.admitMessage ("1.2.3.4", null, aPartnership, 100));
+
+    aPermit.release ();
+    assertNotNull (aAC.admitMessage ("5.6.7.8", "sender", aPartnership, 100));
+    assertEquals (1, aAC.getRejectedCount ());
+  }
+
+  @Test
+  public void testPartnerMessagesPerSecond ()
+  {
+    final AdmissionController aAC = new AdmissionController (0, 0, 0);
+    final Partnership aPartnership = new Partnership ("p");
+    aPartnership.setAttribute (CPartnershipIDs.PA_MAX_MESSAGES_PER_SECOND, "1");
+    assertNotNull (aAC.admitMessage ("1.2.3.4", "sender", aPartnership, -1));
+    assertNull (aAC.admitMessage ("1.2.3.4", "sender", aPartnership, -1));
+  }
+}
@@ -0,0 +1,135 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AdaptiveConcurrencyLimiter}.
+ *
+ * @author Philip Helger
+ */
+public final class AdaptiveConcurrencyLimiterTest
+{
+  private static final String KEY = "http://localhost/as2";
+  private static final double DELTA = 0.0001;
+
+  @Test
+  public void testLimitAndQueue ()
+  {
+    final AdaptiveConcurrencyLimiter aLimiter = new AdaptiveConcurrencyLimiter ();
+    assertEquals (0, aLimiter.getLimit (KEY), DELTA);
+
+    final AdaptiveConcurrencyLimiter.Permit aPermit = aLimiter.acquire (KEY, 1, 10, 0);
+    assertNotNull (aPermit);
+    assertEquals (1, aLimiter.getLimit (KEY), DELTA);
+    // Limit reached
+    assertNull (aLimiter.acquire (KEY, 1, 10, 10));
+    // Other destinations are not affected
+    assertNotNull (aLimiter.acquire ("http://other/as2", 1, 10, 0));
+
+    aPermit.release (10, 100);
+    assertEquals (2, aLimiter.getAdmittedCount ());
+    assertEquals (1, aLimiter.getQueuedCount ());
+    assertEquals (1, aLimiter.getRejectedCount ());
+  }
+
+  @Test
+  public void testIncreaseAndDecrease ()
+  {
+    final AdaptiveConcurrencyLimiter aLimiter = new AdaptiveConcurrencyLimiter ();
+    // A used limit grows by one per round trip
+    aLimiter.acquire (KEY, 1, 3, 0).release (10, 100);
+    assertEquals (2, aLimiter.getLimit (KEY), DELTA);
+    AdaptiveConcurrencyLimiter.Permit aPermit1 = aLimiter.acquire (KEY, 1, 3, 0);
+    AdaptiveConcurrencyLimiter.Permit aPermit2 = aLimiter.acquire (KEY, 1, 3, 0);
+    aPermit1.release (10, 100);
+    assertEquals (2.5, aLimiter.getLimit (KEY), DELTA);
+    aPermit2.release (10, 100);
+    assertEquals (2.5, aLimiter.getLimit (KEY), DELTA);
+
+    // Errors decrease it
+    aLimiter.acquire (KEY, 1, 3, 0).release (-1, 0);
+    assertEquals (2.25, aLimiter.getLimit (KEY), DELTA);
+
+    // Latencies above twice the baseline decrease it as well
+    aLimiter.acquire (KEY, 1, 3, 0).release (50, 100);
+    assertEquals (2.025, aLimiter.getLimit (KEY), DELTA);
+
+    // Never below the minimum or above the maximum
+    for (int i = 0; i < 100; ++i)
+      aLimiter.acquire (KEY, 2, 3, 0).release (-1, 0);
+    assertEquals (2, aLimiter.getLimit (KEY), DELTA);
+    for (int i = 0; i < 100; ++i)
+    {
+      aPermit1 = aLimiter.acquire (KEY, 2, 3, 0);
+      aPermit2 = aLimiter.acquire (KEY, 2, 3, 0);
+      aPermit1.release (10, 100);
+      aPermit2.release (10, 100);
+    }
+    assertEquals (3, aLimiter.getLimit (KEY), DELTA);
+  }
+
+  @Test
+  public void testLatencyNormalisedByPayload ()
+  {
+    final AdaptiveConcurrencyLimiter aLimiter = new AdaptiveConcurrencyLimiter ();
+    aLimiter.acquire (KEY, 1, 10, 0).release (10, 1000);
+    final double dLimit = aLimiter.getLimit (KEY);
+
+    // 50 times the latency for 100 times the payload is no overload
+    aLimiter.acquire (KEY, 1, 10, 0).release (500, 100 * 1024 * 1024);
+    assertTrue (aLimiter.getLimit (KEY) >= dLimit);
+
+    // The same latency for a small payload is
+    aLimiter.acquire (KEY, 1, 10, 0).release (500, 1000);
+    assertTrue (aLimiter.getLimit (KEY) < dLimit);
+  }
+
+  @Test
+  public void testReleaseTwice ()
+  {
+    final AdaptiveConcurrencyLimiter aLimiter = new AdaptiveConcurrencyLimiter ();
+    final AdaptiveConcurrencyLimiter.Permit aPermit = aLimiter.acquire (KEY, 1, 1, 0);
+    aPermit.release (10, 100);
+    aPermit.release (10, 100);
+    assertNotNull (aLimiter.acquire (KEY, 1, 1, 0));
+    // Only one slot was freed
+    assertNull (aLimiter.acquire (KEY, 1, 1, 0));
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link HttpCircuitBreaker}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpCircuitBreakerTest
+{
+  private static final int THRESHOLD = 2;
+  private static final long INTERVAL = 100;
+
+  private static URL _url (final String s)
+  {
+    try
+    {
+      return new URL (s);
+    }
+    catch (final MalformedURLException ex)
+    {
+      throw new IllegalArgumentException (ex);
+    }
+  }
+
+  private static final URL URL1 = _url ("http://as2.example.org:8080/as2");
+  private static final URL URL1_OTHER_PATH = _url ("http://AS2.example.org:8080/mdn");
+  private static final URL URL2 = _url ("http://as2.example.org/as2");
+
+  private static void _assertRejected (final HttpCircuitBreaker aCB, final URL aURL)
+  {
+    try
+    {
+      aCB.checkClosed (aURL);
+      fail ("Circuit should be open for " + aURL);
+    }
+    catch (final ConnectException ex)
+    {
+      // expected
+    }
+  }
+
+  private static void _open (final HttpCircuitBreaker aCB, final URL aURL)
+  {
+    for (int i = 0; i < THRESHOLD; ++i)
+      aCB.onFailure (aURL, THRESHOLD, INTERVAL);
+  }
+
+  @Test
+  public void testOpenAfterThreshold () throws ConnectException
+  {
+    final HttpCircuitBreaker aCB = new HttpCircuitBreaker ();
+    aCB.checkClosed (URL1);
+    aCB.onFailure (URL1, THRESHOLD, INTERVAL);
+    assertFalse (aCB.isOpen (URL1));
+    aCB.checkClosed (URL1);
+    aCB.onFailure (URL1, THRESHOLD, INTERVAL);
+    assertTrue (aCB.isOpen (URL1));
+
+    // Per host and port, not per URL
+    _assertRejected (aCB, URL1_OTHER_PATH);
+    aCB.checkClosed (URL2);
+
+    assertEquals (1, aCB.getOpenCount ());
+    assertEquals (1, aCB.getOpenedCount ());
+    assertEquals (1, aCB.getRejectedCount ());
+  }
+
+  @Test
+  public void testSuccessResetsFailures () throws ConnectException
+  {
+    final HttpCircuitBreaker aCB = new HttpCircuitBreaker ();
+    aCB.onFailure (URL1, THRESHOLD, INTERVAL);
+    aCB.onSuccess (URL1);
+    aCB.onFailure (URL1, THRESHOLD, INTERVAL);
+    assertFalse (aCB.isOpen (URL1));
+    aCB.checkClosed (URL1);
+  }
+
+  @Test
+  public void testSingleTrialAfterInterval () throws Exception
+  {
+    final HttpCircuitBreaker aCB = new HttpCircuitBreaker ();
+    _open (aCB, URL1);
+    _assertRejected (aCB, URL1);
+
+    // A late success of a transfer started before opening does not close it
+    aCB.onSuccess (URL1);
+    assertTrue (aCB.isOpen (URL1));
+
+    Thread.sleep (INTERVAL + 50);
+    // Only one trial is let through
+    aCB.checkClosed (URL1);
+    _assertRejected (aCB, URL1);
+    _assertRejected (aCB, URL1);
+
+    // The trial succeeded
+    aCB.onSuccess (URL1);
+    assertFalse (aCB.isOpen (URL1));
+    aCB.checkClosed (URL1);
+    aCB.checkClosed (URL1);
+    assertEquals (0, aCB.getOpenCount ());
+  }
+
+  @Test
+  public void testFailedTrial () throws Exception
+  {
+    final HttpCircuitBreaker aCB = new HttpCircuitBreaker ();
+    _open (aCB, URL1);
+    Thread.sleep (INTERVAL + 50);
+    aCB.checkClosed (URL1);
+
+    // The trial failed - open for another interval
+    aCB.onFailure (URL1, THRESHOLD, INTERVAL);
+    assertTrue (aCB.isOpen (URL1));
+    _assertRejected (aCB, URL1);
+    assertEquals (1, aCB.getOpenedCount ());
+
+    Thread.sleep (INTERVAL + 50);
+    aCB.checkClosed (URL1);
+    aCB.onSuccess (URL1);
+    assertFalse (aCB.isOpen (URL1));
+  }
+
+  @Test
+  public void testTrialWithoutResult () throws Exception
+  {
+    final HttpCircuitBreaker aCB = new HttpCircuitBreaker ();
+    _open (aCB, URL1);
+    Thread.sleep (INTERVAL + 50);
+    aCB.checkClosed (URL1);
+    _assertRejected (aCB, URL1);
+
+    // The trial never reported - another one is allowed after an interval
+    Thread.sleep (INTERVAL + 50);
+    aCB.checkClosed (URL1);
+    _assertRejected (aCB, URL1);
+  }
+}
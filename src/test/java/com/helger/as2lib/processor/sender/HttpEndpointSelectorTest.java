@@ -0,0 +1,154 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.processor.sender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link HttpEndpointSelector}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpEndpointSelectorTest
+{
+  private static final long RETRY = 60000;
+
+  @Test
+  public void testParseEndpoints ()
+  {
+    final List <HttpEndpointSelector.Endpoint> aList = HttpEndpointSelector.parseEndpoints (" http://a/as2;weight=3 ,http://b/as2\n\thttp://c/as2;WEIGHT=x, http://d/as2;weight=0 ");
+    assertEquals (4, aList.size ());
+    assertEquals ("http://a/as2", aList.get (0).getURL ());
+    assertEquals (3, aList.get (0).getWeight ());
+    assertEquals ("http://b/as2", aList.get (1).getURL ());
+    assertEquals (1, aList.get (1).getWeight ());
+    assertEquals ("http://c/as2", aList.get (2).getURL ());
+    assertEquals (1, aList.get (2).getWeight ());
+    assertEquals (1, aList.get (3).getWeight ());
+
+    assertEquals (1, HttpEndpointSelector.parseEndpoints ("http://a/as2").size ());
+    assertEquals (0, HttpEndpointSelector.parseEndpoints ("  ").size ());
+  }
+
+  @Test
+  public void testWeightedRoundRobin ()
+  {
+    final HttpEndpointSelector aSelector = new HttpEndpointSelector ();
+    final String sURLs = "http://a/as2;weight=2, http://b/as2";
+    final StringBuilder aSB = new StringBuilder ();
+    for (int i = 0; i < 6; ++i)
+    {
+      final HttpEndpointSelector.Endpoint aEndpoint = aSelector.select (sURLs, null, new HashSet <HttpEndpointSelector.Endpoint> ());
+      aSB.append (aEndpoint.getURL ().charAt (7));
+      aSelector.release (aEndpoint, false, RETRY);
+    }
+    // Smooth - the heavier endpoint is not selected twice in a row
+    assertEquals ("abaaba", aSB.toString ());
+  }
+
+  @Test
+  public void testLeastOutstanding ()
+  {
+    final HttpEndpointSelector aSelector = new HttpEndpointSelector ();
+    final String sURLs = "http://a/as2;weight=2 http://b/as2";
+    final Set <HttpEndpointSelector.Endpoint> aNone = new HashSet <HttpEndpointSelector.Endpoint> ();
+    final HttpEndpointSelector.Endpoint aA = aSelector.select (sURLs,
+                                                               HttpEndpointSelector.SELECTION_LEAST_OUTSTANDING,
+                                                               aNone);
+    assertEquals ("http://a/as2", aA.getURL ());
+    final HttpEndpointSelector.Endpoint aB = aSelector.select (sURLs,
+                                                               HttpEndpointSelector.SELECTION_LEAST_OUTSTANDING,
+                                                               aNone);
+    assertEquals ("http://b/as2", aB.getURL ());
+    // a: 1/2, b: 1/1
+    assertSame (aA, aSelector.select (sURLs, HttpEndpointSelector.SELECTION_LEAST_OUTSTANDING, aNone));
+    // a: 2/2, b: 1/1 - equal, the first one wins
+    assertSame (aA, aSelector.select (sURLs, HttpEndpointSelector.SELECTION_LEAST_OUTSTANDING, aNone));
+    aSelector.release (aA, false, RETRY);
+    aSelector.release (aA, false, RETRY);
+    aSelector.release (aA, false, RETRY);
+    // a: 0/2, b: 1/1
+    assertSame (aA, aSelector.select (sURLs, HttpEndpointSelector.SELECTION_LEAST_OUTSTANDING, aNone));
+  }
+
+  @Test
+  public void testFailover ()
+  {
+    final HttpEndpointSelector aSelector = new HttpEndpointSelector ();
+    final String sURLs = "http://a/as2, http://b/as2";
+    final Set <HttpEndpointSelector.Endpoint> aTried = new HashSet <HttpEndpointSelector.Endpoint> ();
+    final HttpEndpointSelector.Endpoint aA = aSelector.select (sURLs, null, aTried);
+    aTried.add (aA);
+    aSelector.release (aA, true, RETRY);
+    assertEquals (1, aSelector.getHealthyCount (sURLs));
+
+    final HttpEndpointSelector.Endpoint aB = aSelector.select (sURLs, null, aTried);
+    assertEquals ("http://b/as2", aB.getURL ());
+    aTried.add (aB);
+    aSelector.release (aB, true, RETRY);
+    assertEquals (0, aSelector.getHealthyCount (sURLs));
+
+    // Everything was tried for this message
+    assertNull (aSelector.select (sURLs, null, aTried));
+
+    // A new message still tries the failed endpoints instead of none at all
+    final HttpEndpointSelector.Endpoint aNext = aSelector.select (sURLs,
+                                                                  null,
+                                                                  new HashSet <HttpEndpointSelector.Endpoint> ());
+    assertNotNull (aNext);
+    // A success makes the endpoint healthy again
+    aSelector.release (aNext, false, RETRY);
+    assertEquals (1, aSelector.getHealthyCount (sURLs));
+  }
+
+  @Test
+  public void testRetryIntervalElapsed () throws InterruptedException
+  {
+    final HttpEndpointSelector aSelector = new HttpEndpointSelector ();
+    final String sURLs = "http://a/as2, http://b/as2";
+    final HttpEndpointSelector.Endpoint aA = aSelector.select (sURLs, null, new HashSet <HttpEndpointSelector.Endpoint> ());
+    aSelector.release (aA, true, 50);
+    assertEquals (1, aSelector.getHealthyCount (sURLs));
+    Thread.sleep (100);
+    assertEquals (2, aSelector.getHealthyCount (sURLs));
+  }
+}
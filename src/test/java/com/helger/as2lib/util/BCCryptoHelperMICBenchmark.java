@@ -0,0 +1,164 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.util.encoders.Base64;
+
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+
+/**
+ * Timing harness comparing {@link BCCryptoHelper#calculateMIC(MimeBodyPart, String, boolean)}
+ * with the previous implementation, which serialized the part into a byte
+ * array and skipped the leading CRLFs while re-reading it. Payloads of 1 KB, 1
+ * MB and 100 MB are hashed including the headers. Not run as part of the unit
+ * tests - start the main method manually with enough heap (e.g. -Xmx1g) for
+ * the previous implementation.
+ *
+ * @author Philip Helger
+ */
+public final class BCCryptoHelperMICBenchmark
+{
+  private static final int [] SIZES = { 1024, 1024 * 1024, 100 * 1024 * 1024 };
+
+  private interface ICalcMIC
+  {
+    String calc (MimeBodyPart aPart) throws Exception;
+  }
+
+  private BCCryptoHelperMICBenchmark ()
+  {}
+
+  private static String _calcPrevious (final MimeBodyPart aPart) throws Exception
+  {
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    aPart.writeTo (aBAOS);
+    final byte [] aData = aBAOS.toByteArray ();
+
+    final NonBlockingByteArrayInputStream aIS = new NonBlockingByteArrayInputStream (aData);
+    int nScanPos = 0;
+    while (nScanPos < (aData.length - 1))
+    {
+      if (!new String (aData, nScanPos, 2).equals ("\r\n"))
+        break;
+      aIS.read ();
+      aIS.read ();
+      nScanPos += 2;
+    }
+
+    final DigestInputStream aDigIS = new DigestInputStream (aIS, MessageDigest.getInstance (OIWObjectIdentifiers.idSHA1.getId (), "BC"));
+    final byte [] aBuf = new byte [4096];
+    while (aDigIS.read (aBuf) >= 0)
+    {}
+    return new String (Base64.encode (aDigIS.getMessageDigest ().digest ())) + ", " + ICryptoHelper.DIGEST_SHA1;
+  }
+
+  private static long _getUsedMemory ()
+  {
+    final Runtime aRuntime = Runtime.getRuntime ();
+    return aRuntime.totalMemory () - aRuntime.freeMemory ();
+  }
+
+  private static void _run (final String sName,
+                            final MimeBodyPart aPart,
+                            final int nSize,
+                            final ICalcMIC aCalc) throws Exception
+  {
+    // Enough iterations for about 200 MB of data, at least 3
+    final int nIterations = Math.max (3, 200 * 1024 * 1024 / nSize);
+    String sMIC = null;
+    for (int i = 0; i < nIterations; ++i)
+      sMIC = aCalc.calc (aPart);
+
+    System.gc ();
+    final long nMemBefore = _getUsedMemory ();
+    long nMaxMemDelta = 0;
+    final long nStart = System.nanoTime ();
+    for (int i = 0; i < nIterations; ++i)
+    {
+      sMIC = aCalc.calc (aPart);
+      nMaxMemDelta = Math.max (nMaxMemDelta, _getUsedMemory () - nMemBefore);
+    }
+    final long nNanos = System.nanoTime () - nStart;
+    System.out.println (sName +
+                        " " +
+                        (nSize / 1024) +
+                        " KB: " +
+                        (nNanos / nIterations / 1000) +
+                        " us/MIC, heap growth up to " +
+                        (nMaxMemDelta / 1024 / 1024) +
+                        " MB (" +
+                        sMIC +
+                        ")");
+  }
+
+  public static void main (final String [] args) throws Exception
+  {
+    final BCCryptoHelper aCryptoHelper = new BCCryptoHelper ();
+    final ICalcMIC aCurrent = new ICalcMIC ()
+    {
+      public String calc (final MimeBodyPart aPart) throws Exception
+      {
+        return aCryptoHelper.calculateMIC (aPart, ICryptoHelper.DIGEST_SHA1, true);
+      }
+    };
+    final ICalcMIC aPrevious = new ICalcMIC ()
+    {
+      public String calc (final MimeBodyPart aPart) throws Exception
+      {
+        return _calcPrevious (aPart);
+      }
+    };
+
+    for (final int nSize : SIZES)
+    {
+      final byte [] aContent = new byte [nSize];
+      Arrays.fill (aContent, (byte) 'x');
+      final InternetHeaders aHeaders = new InternetHeaders ();
+      aHeaders.setHeader ("Content-Type", "application/octet-stream");
+      aHeaders.setHeader ("Content-Transfer-Encoding", "binary");
+      final MimeBodyPart aPart = new MimeBodyPart (aHeaders, aContent);
+
+      _run ("calculateMIC", aPart, nSize, aCurrent);
+      _run ("previous    ", aPart, nSize, aPrevious);
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Test;
+
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * Test class for class {@link BCCryptoHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class BCCryptoHelperTest
+{
+  private static final BCCryptoHelper CRYPTO = new BCCryptoHelper ();
+
+  /**
+   * The MIC calculation as it was before the data was hashed while being
+   * written: serialize everything, skip leading CRLF pairs and hash the rest.
+   */
+  private static String _getExpectedMIC (final byte [] aData, final String sDigest) throws GeneralSecurityException
+  {
+    int nScanPos = 0;
+    final int nLen = aData.length;
+    while (nScanPos < (nLen - 1))
+    {
+      if (!new String (aData, nScanPos, 2, CCharset.CHARSET_ISO_8859_1_OBJ).equals ("\r\n"))
+        break;
+      nScanPos += 2;
+    }
+
+    final MessageDigest aMessageDigest = MessageDigest.getInstance (sDigest);
+    aMessageDigest.update (aData, nScanPos, nLen - nScanPos);
+    return new String (Base64.encode (aMessageDigest.digest ())) + ", " + sDigest;
+  }
+
+  private static MimeBodyPart _createPart (final byte [] aContent) throws MessagingException
+  {
+    final InternetHeaders aHeaders = new InternetHeaders ();
+    aHeaders.setHeader ("Content-Type", "application/octet-stream");
+    aHeaders.setHeader ("Content-Transfer-Encoding", "binary");
+    return new MimeBodyPart (aHeaders, aContent);
+  }
+
+  private static void _assertSameMIC (final String sContent) throws Exception
+  {
+    final byte [] aContent = sContent.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ);
+    final MimeBodyPart aPart = _createPart (aContent);
+    for (final String sDigest : new String [] { ICryptoHelper.DIGEST_SHA1, ICryptoHelper.DIGEST_MD5 })
+    {
+      // Content only
+      assertEquals (_getExpectedMIC (aContent, sDigest), CRYPTO.calculateMIC (aPart, sDigest, false));
+
+      // Headers and content
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+      aPart.writeTo (aBAOS);
+      assertEquals (_getExpectedMIC (aBAOS.toByteArray (), sDigest), CRYPTO.calculateMIC (aPart, sDigest, true));
+    }
+  }
+
+  @Test
+  public void testCalculateMICPlain () throws Exception
+  {
+    _assertSameMIC ("");
+    _assertSameMIC ("a");
+    _assertSameMIC ("Hello world\r\n");
+  }
+
+  @Test
+  public void testCalculateMICLeadingCRLF () throws Exception
+  {
+    _assertSameMIC ("\r\n");
+    _assertSameMIC ("\r\nabc");
+    _assertSameMIC ("\r\n\r\n\r\nabc\r\n\r\n");
+    _assertSameMIC ("\n\r\nabc");
+    _assertSameMIC ("\r\n\n\r\nabc");
+  }
+
+  @Test
+  public void testCalculateMICLoneCR () throws Exception
+  {
+    _assertSameMIC ("\r");
+    _assertSameMIC ("\rabc");
+    _assertSameMIC ("\r\rabc");
+    _assertSameMIC ("\r\n\rabc");
+    _assertSameMIC ("\r\n\r\r\nabc");
+  }
+
+  @Test
+  public void testCalculateMICTrailingCR () throws Exception
+  {
+    _assertSameMIC ("\r\n\r");
+    _assertSameMIC ("\r\n\r\n\r");
+    _assertSameMIC ("abc\r");
+  }
+
+  @Test
+  public void testCalculateMICLargePrefix () throws Exception
+  {
+    // More leading CRLFs than fit into one copy buffer
+    final StringBuilder aSB = new StringBuilder ();
+    for (int i = 0; i < 50000; ++i)
+      aSB.append ("\r\n");
+    aSB.append ("data");
+    _assertSameMIC (aSB.toString ());
+    aSB.append ('\r');
+    _assertSameMIC ("\r" + aSB.toString ());
+  }
+
+  @Test
+  public void testCompressDecompress () throws Exception
+  {
+    final byte [] aContent = new byte [100000];
+    for (int i = 0; i < aContent.length; ++i)
+      aContent[i] = (byte) ("AS2 compression test\r\n".charAt (i % 22));
+    final MimeBodyPart aPart = _createPart (aContent);
+    assertFalse (CRYPTO.isCompressed (aPart));
+
+    final MimeBodyPart aCompressed = CRYPTO.compress (aPart, ICryptoHelper.COMPRESSION_ZLIB);
+    assertTrue (CRYPTO.isCompressed (aCompressed));
+    assertTrue (StreamUtils.getAllBytes (aCompressed.getInputStream ()).length < aContent.length / 10);
+
+    final MimeBodyPart aDecompressed = CRYPTO.decompress (aCompressed);
+    assertFalse (CRYPTO.isCompressed (aDecompressed));
+    assertEquals ("application/octet-stream", aDecompressed.getContentType ());
+    assertArrayEquals (aContent, StreamUtils.getAllBytes (aDecompressed.getInputStream ()));
+    // The MIC of the decompressed data is the MIC of the original data
+    assertEquals (CRYPTO.calculateMIC (aPart, ICryptoHelper.DIGEST_SHA1, true),
+                  CRYPTO.calculateMIC (aDecompressed, ICryptoHelper.DIGEST_SHA1, true));
+  }
+
+  @Test (expected = NoSuchAlgorithmException.class)
+  public void testCompressUnknownAlgorithm () throws Exception
+  {
+    CRYPTO.compress (_createPart (new byte [1]), "gzip");
+  }
+
+  @Test (expected = GeneralSecurityException.class)
+  public void testDecompressUncompressed () throws Exception
+  {
+    CRYPTO.decompress (_createPart (new byte [1]));
+  }
+
+  @Test (expected = GeneralSecurityException.class)
+  public void testCalculateMICUnknownAlgorithm () throws GeneralSecurityException, MessagingException, IOException
+  {
+    CRYPTO.calculateMIC (_createPart (new byte [1]), "sha-unknown", false);
+  }
+}
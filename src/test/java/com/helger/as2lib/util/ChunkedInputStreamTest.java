@@ -0,0 +1,193 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+
+/**
+ * Test class for class {@link ChunkedInputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class ChunkedInputStreamTest
+{
+  private static InputStream _getIS (final String s)
+  {
+    return new NonBlockingByteArrayInputStream (s.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+  }
+
+  private static String _readAll (final InputStream aIS) throws IOException
+  {
+    // Not StreamUtils - it closes the stream and only logs read errors
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+    final byte [] aBuf = new byte [3];
+    int nRead;
+    while ((nRead = aIS.read (aBuf, 0, aBuf.length)) >= 0)
+      aBAOS.write (aBuf, 0, nRead);
+    return aBAOS.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ);
+  }
+
+  private static void _assertInvalid (final String sChunked)
+  {
+    try
+    {
+      _readAll (new ChunkedInputStream (_getIS (sChunked)));
+      fail ("Invalid chunked data was accepted: " + sChunked);
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDecode () throws IOException
+  {
+    final InputStream aIS = _getIS ("5\r\nhello\r\n6;name=value\r\n world\r\n0\r\nX-Trailer: abc\r\n\r\nnext");
+    final ChunkedInputStream aCIS = new ChunkedInputStream (aIS);
+    assertNull (aCIS.getTrailers ());
+    assertEquals ("hello world", _readAll (aCIS));
+    assertTrue (aCIS.isEOF ());
+    assertEquals ("abc", aCIS.getTrailers ().getHeader ("X-Trailer", null));
+    assertEquals (-1, aCIS.read ());
+
+    // The underlying stream is positioned after the message
+    assertEquals ("next", _readAll (aIS));
+  }
+
+  @Test
+  public void testSingleBytes () throws IOException
+  {
+    final ChunkedInputStream aCIS = new ChunkedInputStream (_getIS ("2\r\nab\r\n1\r\nc\r\n0\r\n\r\n"));
+    assertEquals ('a', aCIS.read ());
+    assertEquals ('b', aCIS.read ());
+    assertEquals ('c', aCIS.read ());
+    assertEquals (-1, aCIS.read ());
+  }
+
+  @Test
+  public void testHexAndWhitespace () throws IOException
+  {
+    assertEquals ("0123456789", _readAll (new ChunkedInputStream (_getIS ("A \r\n0123456789\r\n0\r\n\r\n"))));
+    assertEquals ("0123456789ABCDEF",
+                  _readAll (new ChunkedInputStream (_getIS (" 0010 ;x\r\n0123456789ABCDEF\r\n0\r\n\r\n"))));
+    assertEquals ("0123456789", _readAll (new ChunkedInputStream (_getIS ("a\r\n0123456789\r\n0\r\n\r\n"))));
+  }
+
+  @Test
+  public void testBareLF () throws IOException
+  {
+    assertEquals ("abc", _readAll (new ChunkedInputStream (_getIS ("3\nabc\n0\n\n"))));
+  }
+
+  @Test
+  public void testEmpty () throws IOException
+  {
+    final ChunkedInputStream aCIS = new ChunkedInputStream (_getIS ("0\r\n\r\n"));
+    assertEquals (-1, aCIS.read (new byte [10], 0, 10));
+    assertTrue (aCIS.isEOF ());
+    assertFalse (aCIS.getTrailers ().getAllHeaders ().hasMoreElements ());
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    // Whitespace inside the size
+    _assertInvalid ("1 0\r\n0123456789ABCDEF\r\n0\r\n\r\n");
+    _assertInvalid ("1\t0\r\n0123456789ABCDEF\r\n0\r\n\r\n");
+    // Missing or invalid size
+    _assertInvalid ("\r\nabc\r\n0\r\n\r\n");
+    _assertInvalid (";ext\r\nabc\r\n0\r\n\r\n");
+    _assertInvalid ("3x\r\nabc\r\n0\r\n\r\n");
+    _assertInvalid ("-3\r\nabc\r\n0\r\n\r\n");
+    // Too large
+    _assertInvalid ("1000000000000000\r\n");
+    // Data not terminated by CRLF
+    _assertInvalid ("3\r\nabcd\r\n0\r\n\r\n");
+  }
+
+  @Test
+  public void testTruncated () throws IOException
+  {
+    for (final String s : new String [] { "", "5", "5\r\nhel", "5\r\nhello", "5\r\nhello\r\n", "0\r\nX: y\r\n" })
+      try
+      {
+        _readAll (new ChunkedInputStream (_getIS (s)));
+        fail ("Truncated chunked data was accepted: " + s);
+      }
+      catch (final EOFException ex)
+      {
+        // expected
+      }
+  }
+
+  @Test
+  public void testCloseSkipsRemainingChunks () throws IOException
+  {
+    final InputStream aIS = _getIS ("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\nnext");
+    final ChunkedInputStream aCIS = new ChunkedInputStream (aIS);
+    assertEquals ('h', aCIS.read ());
+    aCIS.close ();
+    assertTrue (aCIS.isEOF ());
+    assertEquals ("next", _readAll (aIS));
+    try
+    {
+      aCIS.read ();
+      fail ("Read from a closed stream");
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test (expected = NullPointerException.class)
+  public void testNull ()
+  {
+    new ChunkedInputStream (null);
+  }
+}
@@ -0,0 +1,154 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.helger.as2lib.message.AS2Message;
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+
+/**
+ * Test class for class {@link HTTPUtil}.
+ *
+ * @author Philip Helger
+ */
+public final class HTTPUtilTest
+{
+  private static InputStream _getIS (final String s)
+  {
+    return new NonBlockingByteArrayInputStream (s.getBytes (CCharset.CHARSET_ISO_8859_1_OBJ));
+  }
+
+  @Test
+  public void testReadBodyContentLength () throws Exception
+  {
+    final InputStream aIS = _getIS ("POST /as2 HTTP/1.1\r\nContent-Length: 5\r\n\r\nHelloGET");
+    final AS2Message aMsg = new AS2Message ();
+    HTTPUtil.readHeaders (aIS, aMsg);
+    final NonBlockingByteArrayOutputStream aResponse = new NonBlockingByteArrayOutputStream ();
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    assertEquals (5, HTTPUtil.readBody (aIS, aResponse, aMsg, aData));
+    assertEquals ("Hello", aData.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ));
+    assertEquals (0, aResponse.size ());
+  }
+
+  @Test
+  public void testReadBodyChunked () throws Exception
+  {
+    final InputStream aIS = _getIS ("POST /as2 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nHello\r\n0\r\n\r\n");
+    final AS2Message aMsg = new AS2Message ();
+    HTTPUtil.readHeaders (aIS, aMsg);
+    final NonBlockingByteArrayOutputStream aResponse = new NonBlockingByteArrayOutputStream ();
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    assertEquals (5, HTTPUtil.readBody (aIS, aResponse, aMsg, aData));
+    assertEquals ("Hello", aData.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ));
+    assertEquals ("5", aMsg.getHeader ("Content-Length"));
+  }
+
+  @Test
+  public void testReadBodyContentLengthAndChunked () throws Exception
+  {
+    // A front end using the Content-Length would take "0\r\n\r\nGET..." as the
+    // next request
+    final InputStream aIS = _getIS ("POST /as2 HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                                    "0\r\n\r\nGET /admin HTTP/1.1\r\n\r\n");
+    final AS2Message aMsg = new AS2Message ();
+    HTTPUtil.readHeaders (aIS, aMsg);
+    final NonBlockingByteArrayOutputStream aResponse = new NonBlockingByteArrayOutputStream ();
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    try
+    {
+      HTTPUtil.readBody (aIS, aResponse, aMsg, aData);
+      fail ("Request with Content-Length and Transfer-Encoding was accepted");
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertEquals (0, aData.size ());
+    final String sResponse = aResponse.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ);
+    assertTrue (sResponse, sResponse.startsWith ("HTTP/1.1 400 "));
+    assertTrue (sResponse, sResponse.contains ("Connection: close\r\n"));
+  }
+
+  private static String _readBodyTooLarge (final String sRequest, final long nMaxContentLength) throws Exception
+  {
+    final InputStream aIS = _getIS (sRequest);
+    final AS2Message aMsg = new AS2Message ();
+    HTTPUtil.readHeaders (aIS, aMsg);
+    final NonBlockingByteArrayOutputStream aResponse = new NonBlockingByteArrayOutputStream ();
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    try
+    {
+      HTTPUtil.readBody (aIS, aResponse, aMsg, aData, nMaxContentLength);
+      fail ("Too large content was accepted");
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+    assertTrue (aData.size () <= nMaxContentLength);
+    return aResponse.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ);
+  }
+
+  @Test
+  public void testReadBodyMaxContentLength () throws Exception
+  {
+    // Within the limit
+    final InputStream aIS = _getIS ("POST /as2 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                                    "3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n");
+    final AS2Message aMsg = new AS2Message ();
+    HTTPUtil.readHeaders (aIS, aMsg);
+    final NonBlockingByteArrayOutputStream aData = new NonBlockingByteArrayOutputStream ();
+    assertEquals (5, HTTPUtil.readBody (aIS, new NonBlockingByteArrayOutputStream (), aMsg, aData, 5));
+    assertEquals ("abcde", aData.getAsString (CCharset.CHARSET_ISO_8859_1_OBJ));
+
+    // Exceeded by the chunks, although each chunk is small
+    String sResponse = _readBodyTooLarge ("POST /as2 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                                          "3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n", 5);
+    assertTrue (sResponse, sResponse.startsWith ("HTTP/1.1 413 "));
+
+    // Exceeded by the Content-Length
+    sResponse = _readBodyTooLarge ("POST /as2 HTTP/1.1\r\nContent-Length: 6\r\n\r\nabcdef", 5);
+    assertTrue (sResponse, sResponse.startsWith ("HTTP/1.1 413 "));
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.BodyPart;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Test;
+
+import com.helger.as2lib.message.AS2Message;
+import com.helger.as2lib.message.AS2MessageMDN;
+import com.helger.as2lib.util.javamail.ByteArrayDataSource;
+import com.phloc.commons.charset.CCharset;
+import com.phloc.commons.io.streams.NonBlockingByteArrayInputStream;
+import com.phloc.commons.io.streams.NonBlockingByteArrayOutputStream;
+import com.phloc.commons.io.streams.StreamUtils;
+
+/**
+ * Test class for class {@link MDNSerializer}.
+ *
+ * @author Philip Helger
+ */
+public final class MDNSerializerTest
+{
+  private static final String TEXT = "The AS2 message has been received.\r\n";
+  private static final String DISPOSITION = "Reporting-UA: test\r\n" +
+                                            "Original-Recipient: rfc822; receiver\r\n" +
+                                            "Final-Recipient: rfc822; receiver\r\n" +
+                                            "Original-Message-ID: <abc@def>\r\n" +
+                                            "Disposition: automatic-action/MDN-sent-automatically; processed\r\n" +
+                                            "Received-Content-MIC: abc=, sha1\r\n" +
+                                            "\r\n";
+
+  private static String _getContent (final BodyPart aPart) throws Exception
+  {
+    final String sCharset = new ContentType (aPart.getContentType ()).getParameter ("charset");
+    return new String (StreamUtils.getAllBytes (aPart.getInputStream ()),
+                       sCharset == null ? CCharset.CHARSET_ISO_8859_1_OBJ : CCharset.CHARSET_UTF_8_OBJ);
+  }
+
+  private static void _assertReport (final MimeMultipart aMultipart, final String sText) throws Exception
+  {
+    assertEquals (2, aMultipart.getCount ());
+    assertTrue (aMultipart.getBodyPart (0).isMimeType ("text/plain"));
+    assertEquals (sText, _getContent (aMultipart.getBodyPart (0)));
+    assertTrue (aMultipart.getBodyPart (1).isMimeType (MDNSerializer.MIME_TYPE_DISPOSITION_NOTIFICATION));
+    assertEquals (DISPOSITION, _getContent (aMultipart.getBodyPart (1)));
+  }
+
+  @Test
+  public void testCreateReport () throws Exception
+  {
+    final MimeBodyPart aReport = MDNSerializer.createReport (TEXT, DISPOSITION);
+    final ContentType aContentType = new ContentType (aReport.getContentType ());
+    assertTrue (aContentType.match ("multipart/report"));
+    assertEquals ("disposition-notification", aContentType.getParameter ("report-type"));
+    _assertReport (new MimeMultipart (aReport.getDataHandler ().getDataSource ()), TEXT);
+  }
+
+  @Test
+  public void testCreateReportNonAscii () throws Exception
+  {
+    final String sText = "Die Nachricht wurde empfangen - äöüß€\r\n";
+    final MimeBodyPart aReport = MDNSerializer.createReport (sText, DISPOSITION);
+    final MimeMultipart aMultipart = new MimeMultipart (aReport.getDataHandler ().getDataSource ());
+    assertEquals ("quoted-printable", aMultipart.getBodyPart (0).getHeader ("Content-Transfer-Encoding")[0]);
+    _assertReport (aMultipart, sText);
+  }
+
+  @Test
+  public void testBoundariesDiffer () throws Exception
+  {
+    final String s1 = new ContentType (MDNSerializer.createReport (TEXT, DISPOSITION).getContentType ()).getParameter ("boundary");
+    final String s2 = new ContentType (MDNSerializer.createReport (TEXT, DISPOSITION).getContentType ()).getParameter ("boundary");
+    assertTrue (!s1.equals (s2));
+  }
+
+  @Test
+  public void testWriteHTTPResponse () throws Exception
+  {
+    final AS2MessageMDN aMdn = new AS2MessageMDN (new AS2Message ());
+    final MimeBodyPart aReport = MDNSerializer.createReport (TEXT, DISPOSITION);
+    aMdn.setData (aReport);
+    aMdn.setHeader (CAS2Header.HEADER_CONTENT_TYPE, aReport.getContentType ());
+
+    // Twice, as the first call sets the Content-Length header of the MDN
+    for (int i = 0; i < 2; ++i)
+    {
+      final AtomicInteger aWrites = new AtomicInteger ();
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ()
+      {
+        @Override
+        public void write (final byte [] aBuf, final int nOfs, final int nLen)
+        {
+          aWrites.incrementAndGet ();
+          super.write (aBuf, nOfs, nLen);
+        }
+      };
+      MDNSerializer.writeHTTPResponse (aBAOS, aMdn, true);
+      assertEquals (1, aWrites.get ());
+
+      final InputStream aIS = new NonBlockingByteArrayInputStream (aBAOS.toByteArray ());
+      assertEquals ("200", HTTPUtil.readRequest (aIS)[1]);
+      final InternetHeaders aHeaders = new InternetHeaders (aIS);
+
+      final byte [] aBody = StreamUtils.getAllBytes (aIS);
+      assertEquals (Integer.parseInt (aHeaders.getHeader (CAS2Header.HEADER_CONTENT_LENGTH, null)), aBody.length);
+      final String sContentType = aHeaders.getHeader (CAS2Header.HEADER_CONTENT_TYPE, null);
+      _assertReport (new MimeMultipart (new ByteArrayDataSource (aBody, sContentType, null)), TEXT);
+    }
+  }
+}
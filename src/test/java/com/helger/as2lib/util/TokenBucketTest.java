@@ -0,0 +1,89 @@
+/**
+ * The FreeBSD Copyright
+ * Copyright 1994-2008 The FreeBSD Project. All rights reserved.
+ * Copyright (C) 2014 Philip Helger ph[at]phloc[dot]com
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *    1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE FREEBSD PROJECT ``AS IS'' AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE FREEBSD PROJECT OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * The views and conclusions contained in the software and documentation
+ * are those of the authors and should not be interpreted as representing
+ * official policies, either expressed or implied, of the FreeBSD Project.
+ */
+package com.helger.as2lib.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link TokenBucket}.
+ *
+ * @author Philip Helger
+ */
+public final class TokenBucketTest
+{
+  @Test
+  public void testCapacity ()
+  {
+    // Refills one token in 1000 seconds - nothing within the test
+    final TokenBucket aBucket = new TokenBucket (0.001, 3);
+    assertTrue (aBucket.isFull ());
+    assertTrue (aBucket.tryAcquire (1));
+    assertFalse (aBucket.isFull ());
+    assertTrue (aBucket.tryAcquire (1));
+    assertTrue (aBucket.tryAcquire (1));
+    assertFalse (aBucket.tryAcquire (1));
+  }
+
+  @Test
+  public void testDebt () throws InterruptedException
+  {
+    final TokenBucket aBucket = new TokenBucket (1000, 10);
+    // Larger than the capacity - allowed, but the bucket is in debt
+    assertTrue (aBucket.tryAcquire (100));
+    assertFalse (aBucket.tryAcquire (1));
+
+    // The debt of 90 tokens is paid back after 90 milliseconds
+    Thread.sleep (200);
+    assertTrue (aBucket.tryAcquire (1));
+    Thread.sleep (200);
+    assertTrue (aBucket.isFull ());
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    for (final double [] aArgs : new double [] [] { { 0, 1 }, { -1, 1 }, { 1, 0 }, { 1, -1 } })
+      try
+      {
+        new TokenBucket (aArgs[0], aArgs[1]);
+        throw new AssertionError ("Invalid bucket was created");
+      }
+      catch (final IllegalArgumentException ex)
+      {
+        // expected
+      }
+  }
+}